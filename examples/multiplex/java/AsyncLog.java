@@ -0,0 +1,340 @@
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous, lazily formatted logger for the streaming hot path.
+ *
+ * Log calls claim a preallocated record in a bounded lock-free ring and only copy raw values into
+ * it: a message template, a few long arguments, an optional object and an optional byte range for
+ * hex dumps. A background thread formats the records in order and passes them to
+ * {@link java.util.logging}. Disabled levels cost a single comparison, and when the ring is full
+ * trace records are dropped (and counted) instead of slowing down the caller. The writer sleeps
+ * while the ring is empty and is woken by the next record published.
+ *
+ * A record is claimed before the caller evaluates its arguments. If an argument throws, the
+ * record is never published; the writer skips such a record once it has waited
+ * {@code ABANDONED_NANOS} for it, so one failed call site cannot stop the log.
+ *
+ * Templates use {@code {}} for the next argument in decimal, {@code {h}} for the next argument as
+ * a hex byte, {@code {i}} for the next argument as a packed 8 byte identifier, {@code {s}} for the
+ * object (a {@link Supplier} is only evaluated on the background thread) and {@code {x}} for the
+ * byte range as a hex stream.
+ */
+final class AsyncLog {
+    static final int MAX_DATA_BYTES = 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int MAX_ARGS = 6;
+    private static final long FLUSH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    // Far longer than any caller needs between claiming and publishing, even when it is descheduled
+    private static final long ABANDONED_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Logger logger;
+    private final Record[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile long consumed;
+    // Set while the writer is parked, so publishers only unpark it when it actually sleeps
+    private volatile boolean sleeping;
+    private volatile int levelValue = Level.INFO.intValue();
+    private volatile boolean running = true;
+
+    AsyncLog(Logger logger, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        this.logger = logger;
+        this.ring = new Record[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Record(this);
+        }
+
+        this.writer = new Thread(this::drain, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    void setLevel(Level level) {
+        levelValue = level.intValue();
+    }
+
+    boolean isLoggable(Level level) {
+        return level.intValue() >= levelValue;
+    }
+
+    /**
+     * Claims a record for the template. Returns a no-op record if the level is disabled or the
+     * ring is full, so call sites can always chain {@code begin(...).arg(...).publish()}.
+     */
+    Record begin(Level level, String threadName, String template) {
+        if (!isLoggable(level)) {
+            return Record.DISABLED;
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.incrementAndGet();
+                return Record.DISABLED;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Record record = ring[(int) sequence & mask];
+        record.reset(sequence, level, threadName, template);
+        return record;
+    }
+
+    void log(Level level, String threadName, String message) {
+        Record record = begin(level, threadName, "{s}");
+        if (record != Record.DISABLED) {
+            record.text(message).publish();
+        } else if (isLoggable(level) && level.intValue() >= Level.INFO.intValue()) {
+            // Never lose regular messages: write them synchronously when the ring is full
+            logger.log(level, threadName + ": " + message);
+        }
+    }
+
+    void log(Level level, String threadName, Supplier<String> message) {
+        begin(level, threadName, "{s}").text(message).publish();
+    }
+
+    /**
+     * Waits until all records claimed so far are written, at most the given time.
+     */
+    void flush(long timeoutMillis) {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (consumed < target && writer.isAlive() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(FLUSH_PARK_NANOS);
+        }
+    }
+
+    void close() {
+        flush(1000);
+        running = false;
+        LockSupport.unpark(writer);
+    }
+
+    private void wake() {
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void drain() {
+        StringBuilder message = new StringBuilder(256);
+        long next = 0;
+        long waitingSince = 0;
+        while (running) {
+            Record record = ring[(int) next & mask];
+            if (record.published != next) {
+                if (claimed.get() == next) {
+                    // Empty ring: sleep until the next record is published
+                    waitingSince = 0;
+                    await(record, next, 0);
+                    continue;
+                }
+                // Claimed, but its caller has not published it yet
+                long now = System.nanoTime();
+                if (waitingSince == 0) {
+                    waitingSince = now;
+                } else if (now - waitingSince >= ABANDONED_NANOS) {
+                    record.release();
+                    consumed = ++next;
+                    waitingSince = 0;
+                    logger.warning("Skipped a log record that was claimed but never published");
+                    continue;
+                }
+                await(record, next, ABANDONED_NANOS - (now - waitingSince));
+                continue;
+            }
+            waitingSince = 0;
+
+            message.setLength(0);
+            record.format(message);
+            LogRecord logRecord = new LogRecord(record.level, message.toString());
+            logRecord.setInstant(Instant.ofEpochMilli(record.millis));
+            logRecord.setLoggerName(logger.getName());
+            record.release();
+            consumed = ++next;
+
+            logger.log(logRecord);
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                logger.warning(lost + " trace records dropped, log ring full");
+            }
+        }
+    }
+
+    // Parks until the record is published, or at most the given time if positive
+    private void await(Record record, long sequence, long timeoutNanos) {
+        sleeping = true;
+        // Checked again after announcing the sleep: a record published before was missed by its publisher
+        if (record.published != sequence && running) {
+            if (timeoutNanos > 0) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        sleeping = false;
+    }
+
+    // ======== HEX ENCODING ========
+
+    static void appendHex(StringBuilder sb, ByteBuffer data, int offset, int length) {
+        sb.append("0x");
+        for (int i = offset; i < offset + length; i++) {
+            appendHexByte(sb, data.get(i));
+        }
+    }
+
+    static void appendHex(StringBuilder sb, byte[] data, int offset, int length) {
+        sb.append("0x");
+        for (int i = offset; i < offset + length; i++) {
+            appendHexByte(sb, data[i]);
+        }
+    }
+
+    private static void appendHexByte(StringBuilder sb, byte value) {
+        sb.append(HEX_DIGITS[(value >> 4) & 0x0F]).append(HEX_DIGITS[value & 0x0F]);
+    }
+
+    // ======== RECORD ========
+
+    static final class Record {
+        static final Record DISABLED = new Record(null);
+
+        private final AsyncLog log;
+        private final boolean enabled;
+        private final long[] args = new long[MAX_ARGS];
+        private final byte[] data;
+        private volatile long published = -1;
+        private long sequence;
+        private long millis;
+        private Level level;
+        private String threadName;
+        private String template;
+        private int argCount;
+        private Object text;
+        private int dataLength;
+        private int dataTruncated;
+
+        private Record(AsyncLog log) {
+            this.log = log;
+            this.enabled = log != null;
+            this.data = new byte[enabled ? MAX_DATA_BYTES : 0];
+        }
+
+        private void reset(long sequence, Level level, String threadName, String template) {
+            this.sequence = sequence;
+            this.millis = System.currentTimeMillis();
+            this.level = level;
+            this.threadName = threadName;
+            this.template = template;
+            this.argCount = 0;
+            this.text = null;
+            this.dataLength = 0;
+            this.dataTruncated = 0;
+        }
+
+        Record arg(long value) {
+            if (enabled && argCount < MAX_ARGS) {
+                args[argCount++] = value;
+            }
+            return this;
+        }
+
+        Record text(Object value) {
+            if (enabled) {
+                text = value;
+            }
+            return this;
+        }
+
+        Record data(ByteBuffer buffer, int offset, int length) {
+            if (enabled) {
+                dataLength = Math.min(length, MAX_DATA_BYTES);
+                dataTruncated = length - dataLength;
+                for (int i = 0; i < dataLength; i++) {
+                    data[i] = buffer.get(offset + i);
+                }
+            }
+            return this;
+        }
+
+        Record data(byte[] bytes, int offset, int length) {
+            if (enabled) {
+                dataLength = Math.min(length, MAX_DATA_BYTES);
+                dataTruncated = length - dataLength;
+                System.arraycopy(bytes, offset, data, 0, dataLength);
+            }
+            return this;
+        }
+
+        void publish() {
+            if (enabled) {
+                published = sequence;
+                log.wake();
+            }
+        }
+
+        private void release() {
+            threadName = null;
+            template = null;
+            text = null;
+        }
+
+        private void format(StringBuilder sb) {
+            sb.append(threadName).append(": ");
+            int arg = 0;
+            for (int i = 0; i < template.length(); i++) {
+                char c = template.charAt(i);
+                if (c != '{' || i + 1 >= template.length()) {
+                    sb.append(c);
+                    continue;
+                }
+
+                char token = template.charAt(i + 1);
+                if (token == '}') {
+                    sb.append(args[arg++]);
+                    i += 1;
+                    continue;
+                }
+                switch (token) {
+                    case 'h':
+                        sb.append("0x");
+                        appendHexByte(sb, (byte) args[arg++]);
+                        break;
+                    case 'i':
+                        DatagramCodec.appendIdentifier(sb, args[arg++]);
+                        break;
+                    case 's':
+                        sb.append(text instanceof Supplier ? ((Supplier<?>) text).get() : text);
+                        break;
+                    case 'x':
+                        appendHex(sb, data, 0, dataLength);
+                        if (dataTruncated > 0) {
+                            sb.append("...(+").append(dataTruncated).append(" bytes)");
+                        }
+                        break;
+                    default:
+                        sb.append(c).append(token);
+                }
+                i += 2;
+            }
+        }
+    }
+}
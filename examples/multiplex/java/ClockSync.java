@@ -0,0 +1,205 @@
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client clock for protocol timestamps, synchronised to the Streaming Service.
+ *
+ * The clock is backed by {@link System#nanoTime()}, anchored to the wall clock once at startup, so
+ * it never jumps when the system clock is stepped. Every timestamp request (0x06) yields a sample
+ * of t1 - t0: the offset of the client clock against the server clock plus the one-way network
+ * delay. The estimator keeps the lower envelope of the recent samples (the least delayed ones)
+ * and fits the drift as its slope, and {@link #currentTimeMillis()} subtracts the estimate.
+ *
+ * The one-way delay cannot be separated from the offset with t0 and t1 alone, so the corrected
+ * clock trails the server clock by the minimum one-way delay; it is never ahead of it. Changes of
+ * the estimate after the first one are slewed in at most 10% of the elapsed time, which keeps the
+ * clock monotonic once it is synchronised.
+ *
+ * Without correction the clock is the system wall clock: the anchored clock would drift away from
+ * it over a long run, with nothing to pull it back.
+ */
+final class ClockSync {
+    private static final int MAX_SAMPLES = 64;
+    private static final int MIN_DRIFT_SAMPLES = 4;
+    private static final long MIN_DRIFT_SPAN_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final double MAX_DRIFT = 500e-6;
+    private static final long SLEW_FACTOR = 10;
+
+    private final long anchorEpochNanos;
+    private final long anchorNanoTime;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long[] sampleNanos = new long[MAX_SAMPLES];
+    private final long[] sampleOffsets = new long[MAX_SAMPLES];
+    private int sampleCount;
+    private int sampleNext;
+    private long samples;
+    private double drift;
+    private double jitterNanos;
+    private volatile boolean correcting;
+    private volatile Correction correction = new Correction(0, 0, 0, 0, 0);
+
+    ClockSync(boolean correcting) {
+        Instant now = Instant.now();
+        this.anchorNanoTime = System.nanoTime();
+        this.anchorEpochNanos = TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+        this.correcting = correcting;
+    }
+
+    /**
+     * Returns the corrected epoch time in milliseconds, or the wall clock without correction.
+     */
+    long currentTimeMillis() {
+        if (!correcting) {
+            return System.currentTimeMillis();
+        }
+        return toMillis(System.nanoTime());
+    }
+
+    /**
+     * Converts a {@link System#nanoTime()} reading taken earlier, such as the arrival of a frame,
+     * into the corrected epoch time in milliseconds, or into wall clock time without correction.
+     */
+    long toMillis(long nanoTime) {
+        if (!correcting) {
+            return System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(rawEpochNanos(nanoTime) - correction.offsetAt(nanoTime));
+    }
+
+    void setCorrecting(boolean correcting) {
+        this.correcting = correcting;
+    }
+
+    /**
+     * Adds the sample of a timestamp request: the server time t0 and the {@link System#nanoTime()}
+     * at which the request arrived.
+     */
+    void onTimestampRequest(long timestampT0, long receiveNanoTime) {
+        long apparentOffset = rawEpochNanos(receiveNanoTime) - TimeUnit.MILLISECONDS.toNanos(timestampT0);
+        lock.lock();
+        try {
+            sampleNanos[sampleNext] = receiveNanoTime;
+            sampleOffsets[sampleNext] = apparentOffset;
+            sampleNext = (sampleNext + 1) % MAX_SAMPLES;
+            sampleCount = Math.min(sampleCount + 1, MAX_SAMPLES);
+            samples++;
+            estimate(receiveNanoTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the estimated offset of the uncorrected clock against the server, in milliseconds.
+     */
+    double offsetMillis() {
+        return correction.targetAt(System.nanoTime()) / 1e6;
+    }
+
+    /**
+     * Returns the estimated drift of the local clock against the server in parts per million.
+     */
+    double driftPpm() {
+        lock.lock();
+        try {
+            return drift * 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long rawEpochNanos(long nanoTime) {
+        return anchorEpochNanos + (nanoTime - anchorNanoTime);
+    }
+
+    private void estimate(long now) {
+        // Least-squares slope over the samples, relative to the oldest one to keep the numbers small
+        int oldest = (sampleNext - sampleCount + MAX_SAMPLES) % MAX_SAMPLES;
+        long referenceNanos = sampleNanos[oldest];
+        long span = now - referenceNanos;
+        drift = 0;
+        if (sampleCount >= MIN_DRIFT_SAMPLES && span >= MIN_DRIFT_SPAN_NANOS) {
+            double meanX = 0;
+            double meanY = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                meanX += sampleNanos[i] - referenceNanos;
+                meanY += sampleOffsets[i] - sampleOffsets[oldest];
+            }
+            meanX /= sampleCount;
+            meanY /= sampleCount;
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                double dx = sampleNanos[i] - referenceNanos - meanX;
+                covariance += dx * (sampleOffsets[i] - sampleOffsets[oldest] - meanY);
+                variance += dx * dx;
+            }
+            if (variance > 0) {
+                drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, covariance / variance));
+            }
+        }
+
+        // The line is moved down to the least delayed sample, the lower envelope of the samples
+        double minResidual = Double.MAX_VALUE;
+        double sumResidual = 0;
+        double sumSquares = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            double residual = sampleOffsets[i] - drift * (sampleNanos[i] - now);
+            minResidual = Math.min(minResidual, residual);
+            sumResidual += residual;
+            sumSquares += residual * residual;
+        }
+        double mean = sumResidual / sampleCount;
+        jitterNanos = Math.sqrt(Math.max(0, sumSquares / sampleCount - mean * mean));
+
+        // The first estimate is applied at once, later changes are slewed in
+        long target = (long) minResidual;
+        long delta = samples > 1 ? correction.offsetAt(now) - target : 0;
+        correction = new Correction(now, target, drift, delta, Math.abs(delta) * SLEW_FACTOR);
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("samples=%d, offset=%.3fms, drift=%.2fppm, jitter=%.3fms, correcting=%b",
+                samples, correction.targetAt(System.nanoTime()) / 1e6, drift * 1e6, jitterNanos / 1e6, correcting);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Offset to subtract at a given time: the estimate extrapolated with the drift, plus the part
+     * of the previous estimate that is still being slewed out.
+     */
+    private static final class Correction {
+        private final long referenceNanos;
+        private final long offsetNanos;
+        private final double drift;
+        private final long slewDeltaNanos;
+        private final long slewNanos;
+
+        Correction(long referenceNanos, long offsetNanos, double drift, long slewDeltaNanos, long slewNanos) {
+            this.referenceNanos = referenceNanos;
+            this.offsetNanos = offsetNanos;
+            this.drift = drift;
+            this.slewDeltaNanos = slewDeltaNanos;
+            this.slewNanos = slewNanos;
+        }
+
+        long targetAt(long nanoTime) {
+            return offsetNanos + (long) (drift * (nanoTime - referenceNanos));
+        }
+
+        long offsetAt(long nanoTime) {
+            long elapsed = nanoTime - referenceNanos;
+            if (elapsed >= slewNanos || slewNanos == 0) {
+                return targetAt(nanoTime);
+            }
+            double remaining = 1 - (double) Math.max(0, elapsed) / slewNanos;
+            return targetAt(nanoTime) + (long) (slewDeltaNanos * remaining);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Latest-value cache between the socket reader and a slow payload consumer.
+ *
+ * Payloads are kept per key (TLC identifier, payload type): a new payload replaces the one
+ * stored for its key, so when the consumer falls behind it skips the outdated states instead of
+ * working through a backlog. Each key holds its latest datagram (payload and origin timestamp) in
+ * a slot from a preallocated pool, so storing a payload only copies it. Keys that changed since
+ * the consumer last read them are kept in a FIFO list, and {@link #drain} delivers just those,
+ * as views like any other {@link Main.PayloadViewCallback}.
+ *
+ * Identifiers whose keys were not updated for a while can be evicted to free their slots. When
+ * the pool is exhausted, payloads for new keys are dropped (and counted) until slots are freed.
+ *
+ * Any thread may store payloads; {@link #drain} is meant for a single consumer thread.
+ */
+final class ConflatingCache implements Main.PayloadViewCallback {
+    // A lock rather than synchronized: the consumer waits for changes on a condition of it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final IdentifierMap<Slot> identifiers;
+    private final Slot[] slots;
+    private Slot free;
+    private Slot dirtyHead;
+    private Slot dirtyTail;
+
+    // Owned by the draining thread: the datagram is copied out of the slot before the consumer runs
+    private byte[] drainBuffer;
+    private final PayloadView drainView = new PayloadView();
+
+    private long received;
+    private long conflated;
+    private long delivered;
+    private long evicted;
+    private long overflowed;
+    private int used;
+
+    ConflatingCache(int capacity, int slotSize) {
+        this.identifiers = new IdentifierMap<>(capacity);
+        this.slots = new Slot[capacity];
+        for (int i = capacity - 1; i >= 0; i--) {
+            slots[i] = new Slot(slotSize);
+            slots[i].next = free;
+            free = slots[i];
+        }
+        this.drainBuffer = new byte[slotSize];
+    }
+
+    /**
+     * Stores the payload as the latest value of its key; the view is copied.
+     */
+    @Override
+    public void onPayload(PayloadView view) {
+        long identifierKey = view.identifierKey();
+        byte payloadType = view.payloadType();
+        lock.lock();
+        try {
+            received++;
+            Slot slot = find(identifierKey, payloadType);
+            if (slot == null) {
+                slot = allocate(identifierKey, payloadType);
+                if (slot == null) {
+                    overflowed++;
+                    return;
+                }
+            }
+
+            if (slot.datagram.length < view.length()) {
+                slot.datagram = new byte[view.length()];
+            }
+            view.copyDatagram(slot.datagram, 0);
+            slot.length = view.length();
+            slot.updatedNanos = System.nanoTime();
+
+            if (slot.dirty) {
+                // The previous value was never read by the consumer
+                conflated++;
+            } else {
+                slot.dirty = true;
+                if (dirtyTail == null) {
+                    dirtyHead = slot;
+                    changed.signal();
+                } else {
+                    dirtyTail.nextDirty = slot;
+                }
+                dirtyTail = slot;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers the latest value of each key that changed since it was last drained, up to
+     * {@code max} keys, in the order the keys first changed. Returns the number delivered.
+     */
+    int drain(Main.PayloadViewCallback consumer, int max) {
+        int count = 0;
+        while (count < max) {
+            int length;
+            lock.lock();
+            try {
+                Slot slot = dirtyHead;
+                if (slot == null) {
+                    break;
+                }
+                dirtyHead = slot.nextDirty;
+                if (dirtyHead == null) {
+                    dirtyTail = null;
+                }
+                slot.nextDirty = null;
+                slot.dirty = false;
+
+                length = slot.length;
+                if (drainBuffer.length < length) {
+                    drainBuffer = new byte[slot.datagram.length];
+                }
+                System.arraycopy(slot.datagram, 0, drainBuffer, 0, length);
+                delivered++;
+            } finally {
+                lock.unlock();
+            }
+            // The consumer runs without the lock, so new payloads are stored meanwhile
+            consumer.onPayload(drainView.wrap(ByteBuffer.wrap(drainBuffer, 0, length), 0, length));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Waits until a key changed or the timeout elapsed. Returns true if there are changes.
+     */
+    boolean awaitChanges(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (dirtyHead == null) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = changed.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees the slots of identifiers none of whose keys was updated within the given time and
+     * which have nothing left to drain. Returns the number of identifiers evicted.
+     */
+    int evictIdle(long idleTime, TimeUnit unit) {
+        long now = System.nanoTime();
+        long idleNanos = unit.toNanos(idleTime);
+        int count = 0;
+        lock.lock();
+        try {
+            for (Slot head : slots) {
+                // Visit each identifier once, through the first slot of its chain
+                if (!head.inUse || identifiers.get(head.identifierKey) != head) {
+                    continue;
+                }
+                boolean idle = true;
+                for (Slot slot = head; slot != null && idle; slot = slot.next) {
+                    idle = !slot.dirty && now - slot.updatedNanos >= idleNanos;
+                }
+                if (idle) {
+                    identifiers.remove(head.identifierKey);
+                    Slot slot = head;
+                    while (slot != null) {
+                        Slot next = slot.next;
+                        release(slot);
+                        slot = next;
+                    }
+                    count++;
+                }
+            }
+            evicted += count;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Slot find(long identifierKey, byte payloadType) {
+        for (Slot slot = identifiers.get(identifierKey); slot != null; slot = slot.next) {
+            if (slot.payloadType == payloadType) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private Slot allocate(long identifierKey, byte payloadType) {
+        Slot slot = free;
+        if (slot == null) {
+            return null;
+        }
+        free = slot.next;
+        used++;
+
+        slot.inUse = true;
+        slot.identifierKey = identifierKey;
+        slot.payloadType = payloadType;
+        // New keys go to the front of the identifier's chain, which keeps the map entry pointing at the head
+        slot.next = identifiers.get(identifierKey);
+        identifiers.put(identifierKey, slot);
+        return slot;
+    }
+
+    private void release(Slot slot) {
+        slot.inUse = false;
+        slot.length = 0;
+        slot.next = free;
+        free = slot;
+        used--;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("received=%d, conflated=%d, delivered=%d, evicted=%d, overflowed=%d, slots=%d/%d",
+                received, conflated, delivered, evicted, overflowed, used, slots.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Slot {
+        byte[] datagram;
+        int length;
+        long identifierKey;
+        byte payloadType;
+        long updatedNanos;
+        boolean inUse;
+        boolean dirty;
+        // Next slot of the same identifier, or of the free list
+        Slot next;
+        Slot nextDirty;
+
+        Slot(int size) {
+            this.datagram = new byte[size];
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation-free encoder for TCP streaming frames.
+ *
+ * Frames are encoded in place into a caller supplied {@link ByteBuffer}, normally the per-thread
+ * buffer returned by {@link #frameBuffer()}. Every encode method appends one complete frame
+ * (prefix, size and datagram) at the buffer position, so several frames can be packed into the
+ * same buffer before it is flipped and written.
+ */
+final class DatagramCodec {
+    static final byte KEEPALIVE = 0x00;
+    static final byte TOKEN = 0x01;
+    static final byte BYE = 0x02;
+    static final byte RECONNECT = 0x03;
+    static final byte PAYLOAD = 0x04;
+    static final byte PAYLOAD_WITH_IDENTIFIER = 0x05;
+    static final byte TIMESTAMP_REQUEST = 0x06;
+    static final byte TIMESTAMP_RESPONSE = 0x07;
+    static final byte MONITOR_PAYLOAD = (byte) 0xF0;
+
+    static final int HEADER_SIZE = 4;
+    static final int IDENTIFIER_SIZE = 8;
+    static final int MAX_DATAGRAM_SIZE = 0xFFFF;
+    static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_DATAGRAM_SIZE;
+    // Header, type, payload type and origin timestamp of a 0x04 frame; 0x05 adds the identifier
+    static final int PAYLOAD_FRAME_OVERHEAD = HEADER_SIZE + 1 + 1 + 8;
+    static final int PAYLOAD_WITH_IDENTIFIER_FRAME_OVERHEAD = PAYLOAD_FRAME_OVERHEAD + IDENTIFIER_SIZE;
+
+    private static final ThreadLocal<ByteBuffer> FRAME_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_FRAME_SIZE));
+
+    private DatagramCodec() {
+    }
+
+    /**
+     * Returns the cleared encode buffer of the calling thread. It is reused by the next call on
+     * the same thread, so its content must be written out before that.
+     */
+    static ByteBuffer frameBuffer() {
+        ByteBuffer buffer = FRAME_BUFFER.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    // ======== DECODING ========
+
+    /**
+     * Validates the frame header at {@code start} and returns the size of the datagram behind it.
+     */
+    static int datagramSize(ByteBuffer src, int start) throws Exception {
+        byte first = src.get(start);
+        byte second = src.get(start + 1);
+        if (first != Main.HEADER_PREFIX[0] || second != Main.HEADER_PREFIX[1]) {
+            throw new Exception(String.format("Framing error: header prefix %s != %s",
+                Main.asHexStream(new byte[]{first, second}), Main.asHexStream(Main.HEADER_PREFIX)));
+        }
+        return src.getShort(start + 2) & 0xFFFF;
+    }
+
+    // ======== ENCODING ========
+
+    static void encodeDatagram(ByteBuffer dst, byte[] datagram, int offset, int length) {
+        dst.put(Main.HEADER_PREFIX);
+        dst.putShort((short) length);
+        dst.put(datagram, offset, length);
+    }
+
+    static void encodeKeepalive(ByteBuffer dst) {
+        int start = beginFrame(dst, KEEPALIVE);
+        endFrame(dst, start);
+    }
+
+    static void encodeToken(ByteBuffer dst, CharSequence token) {
+        int start = beginFrame(dst, TOKEN);
+        putAscii(dst, token);
+        endFrame(dst, start);
+    }
+
+    static void encodeBye(ByteBuffer dst, CharSequence reason) {
+        int start = beginFrame(dst, BYE);
+        if (reason != null) {
+            putAscii(dst, reason);
+        }
+        endFrame(dst, start);
+    }
+
+    static void encodeReconnect(ByteBuffer dst) {
+        int start = beginFrame(dst, RECONNECT);
+        endFrame(dst, start);
+    }
+
+    static void encodeTimestampRequest(ByteBuffer dst, long timestampT0) {
+        int start = beginFrame(dst, TIMESTAMP_REQUEST);
+        dst.putLong(timestampT0);
+        endFrame(dst, start);
+    }
+
+    static void encodeTimestampResponse(ByteBuffer dst, long timestampT0, long timestampT1, long timestampT2) {
+        int start = beginFrame(dst, TIMESTAMP_RESPONSE);
+        dst.putLong(timestampT0);
+        dst.putLong(timestampT1);
+        dst.putLong(timestampT2);
+        endFrame(dst, start);
+    }
+
+    /**
+     * Encodes a payload (0x04) of a singleplex session, whose identifier is given by the session.
+     */
+    static void encodePayload(ByteBuffer dst, byte payloadType, long originTimestamp,
+            byte[] payload, int offset, int length) {
+        int start = beginFrame(dst, PAYLOAD);
+        dst.put(payloadType);
+        dst.putLong(originTimestamp);
+        dst.put(payload, offset, length);
+        endFrame(dst, start);
+    }
+
+    static void encodePayloadWithIdentifier(ByteBuffer dst, CharSequence identifier, byte payloadType,
+            long originTimestamp, byte[] payload, int offset, int length) {
+        encodePayloadWithIdentifier(dst, packIdentifier(identifier), payloadType, originTimestamp, payload, offset, length);
+    }
+
+    static void encodePayloadWithIdentifier(ByteBuffer dst, long identifierKey, byte payloadType,
+            long originTimestamp, byte[] payload, int offset, int length) {
+        int start = beginFrame(dst, PAYLOAD_WITH_IDENTIFIER);
+        dst.putLong(identifierKey);
+        dst.put(payloadType);
+        dst.putLong(originTimestamp);
+        dst.put(payload, offset, length);
+        endFrame(dst, start);
+    }
+
+    /**
+     * Encodes a monitor payload (0xF0) that encapsulates the original 0x04 or 0x05 datagram,
+     * type byte included, as sent to Monitor sessions.
+     */
+    static void encodeMonitorPayload(ByteBuffer dst, byte[] publisherToken, long publishTimestamp,
+            long sentTimestamp, ByteBuffer original, int offset, int length) {
+        int start = beginFrame(dst, MONITOR_PAYLOAD);
+        dst.putInt(publisherToken.length);
+        dst.put(publisherToken);
+        dst.putLong(publishTimestamp);
+        dst.putLong(sentTimestamp);
+        dst.put(original.slice(offset, length));
+        endFrame(dst, start);
+    }
+
+    // ======== IDENTIFIERS ========
+
+    /**
+     * Packs an identifier into the long key used for routing: its 8 ASCII bytes as they appear on
+     * the wire (null padded or truncated), read big-endian.
+     */
+    static long packIdentifier(CharSequence identifier) {
+        long key = 0;
+        int length = Math.min(identifier.length(), IDENTIFIER_SIZE);
+        for (int i = 0; i < IDENTIFIER_SIZE; i++) {
+            key = (key << 8) | (i < length ? identifier.charAt(i) & 0xFF : 0);
+        }
+        return key;
+    }
+
+    /**
+     * Decodes a packed identifier into a trimmed string.
+     */
+    static String unpackIdentifier(long key) {
+        StringBuilder sb = new StringBuilder(IDENTIFIER_SIZE);
+        appendIdentifier(sb, key);
+        return sb.toString();
+    }
+
+    /**
+     * Appends a packed identifier without the padding (and other leading or trailing control and
+     * space characters, as {@link String#trim()} would).
+     */
+    static void appendIdentifier(StringBuilder sb, long key) {
+        int start = 0;
+        int end = IDENTIFIER_SIZE;
+        while (start < end && identifierByte(key, start) <= ' ') {
+            start++;
+        }
+        while (end > start && identifierByte(key, end - 1) <= ' ') {
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            sb.append((char) identifierByte(key, i));
+        }
+    }
+
+    private static int identifierByte(long key, int index) {
+        return (int) (key >>> (8 * (IDENTIFIER_SIZE - 1 - index))) & 0xFF;
+    }
+
+    private static void putAscii(ByteBuffer dst, CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            dst.put((byte) value.charAt(i));
+        }
+    }
+
+    private static int beginFrame(ByteBuffer dst, byte type) {
+        int start = dst.position();
+        dst.put(Main.HEADER_PREFIX);
+        dst.putShort((short) 0);
+        dst.put(type);
+        return start;
+    }
+
+    private static void endFrame(ByteBuffer dst, int start) {
+        int size = dst.position() - start - HEADER_SIZE;
+        if (size > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Datagram of " + size + " bytes exceeds the maximum frame size");
+        }
+        dst.putShort(start + 2, (short) size);
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from packed identifier keys to values.
+ *
+ * Keys are the identifiers packed into a long by {@link DatagramCodec#packIdentifier}, so lookups
+ * neither decode nor hash strings and never allocate. Entries live in two parallel arrays (linear
+ * probing, backward shift deletion), which costs one long and one reference per slot. The key 0
+ * (no identifier) is kept outside the table.
+ *
+ * The map is not thread-safe. {@link #get} reads the table arrays only once per call and stays
+ * within their bounds, so a lookup racing a writer may return a wrong result but never fails;
+ * callers that allow this must validate the result, as {@link PayloadRouter} does.
+ */
+final class IdentifierMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    /** Visits an entry of the map. */
+    interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int resizeAt;
+    private Object zeroValue;
+
+    IdentifierMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        if (key == 0) {
+            return (V) zeroValue;
+        }
+        long[] keys = this.keys;
+        Object[] values = this.values;
+        if (keys.length != values.length) {
+            return null;
+        }
+
+        int mask = keys.length - 1;
+        int index = slot(key, mask);
+        for (int probes = 0; probes < keys.length; probes++) {
+            long candidate = keys[index];
+            if (candidate == key) {
+                return (V) values[index];
+            }
+            if (candidate == 0) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps the key to a non-null value and returns the previous value, if any.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        if (key == 0) {
+            V previous = (V) zeroValue;
+            zeroValue = value;
+            if (previous == null) {
+                size++;
+            }
+            return previous;
+        }
+
+        int mask = keys.length - 1;
+        int index = slot(key, mask);
+        while (keys[index] != 0) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+
+        // The value is stored before the key, so a racing lookup never sees a key without value
+        values[index] = value;
+        keys[index] = key;
+        if (++size >= resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        if (key == 0) {
+            V previous = (V) zeroValue;
+            if (previous != null) {
+                zeroValue = null;
+                size--;
+            }
+            return previous;
+        }
+
+        int mask = keys.length - 1;
+        int index = slot(key, mask);
+        while (keys[index] != key) {
+            if (keys[index] == 0) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+
+        V previous = (V) values[index];
+        size--;
+
+        // Shift the following entries of the probe sequence back, so no tombstones are needed
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (keys[next] != 0) {
+            int home = slot(keys[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        return previous;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(Visitor<? super V> visitor) {
+        if (zeroValue != null) {
+            visitor.visit(0, (V) zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                visitor.visit(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        zeroValue = null;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int index = slot(oldKeys[i], mask);
+                while (keys[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        // Keys and values are replaced together; see the bounds check in get
+        Object[] newValues = new Object[capacity];
+        long[] newKeys = new long[capacity];
+        values = newValues;
+        keys = newKeys;
+        resizeAt = capacity / 2;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        // Load factor 0.5 keeps probe sequences short
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 <= expectedSize) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    private static int slot(long key, int mask) {
+        // Identifiers often differ in their last character only, so all bits are mixed into the slot
+        long hash = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash & mask;
+    }
+}
@@ -0,0 +1,208 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single-pass extractor of scalar fields from a JSON document.
+ *
+ * Fields are addressed by the dotted path of their object keys, such as
+ * {@code details.listener.host}. The document is scanned once without building a tree: values
+ * outside the requested paths are skipped, only the requested scalars are decoded, and the scan
+ * stops as soon as all of them were found. Arrays are skipped as a whole. Strings are returned
+ * unescaped, numbers and booleans as their literal text; null values count as absent.
+ */
+final class JsonFields {
+    private final byte[] json;
+    private final Set<String> paths;
+    private final Map<String, String> values = new HashMap<>();
+    private final StringBuilder path = new StringBuilder();
+    private int pos;
+
+    private JsonFields(byte[] json, Set<String> paths) {
+        this.json = json;
+        this.paths = paths;
+    }
+
+    /**
+     * Returns the values found for the given paths; paths that are missing are not in the map.
+     */
+    static Map<String, String> extract(byte[] json, Set<String> paths) {
+        JsonFields scanner = new JsonFields(json, paths);
+        scanner.skipWhitespace();
+        scanner.value();
+        return scanner.values;
+    }
+
+    private boolean done() {
+        return values.size() == paths.size();
+    }
+
+    private void value() {
+        skipWhitespace();
+        switch (peek()) {
+            case '{':
+                object();
+                break;
+            case '[':
+                skipArray();
+                break;
+            case '"':
+                String key = wantedKey();
+                if (key != null) {
+                    values.put(key, string());
+                } else {
+                    skipString();
+                }
+                break;
+            default:
+                int start = pos;
+                while (pos < json.length && !isDelimiter(json[pos])) {
+                    pos++;
+                }
+                if (start == pos) {
+                    throw error("Unexpected character");
+                }
+                String literalKey = wantedKey();
+                String literal = new String(json, start, pos - start, StandardCharsets.US_ASCII);
+                if (literalKey != null && !literal.equals("null")) {
+                    values.put(literalKey, literal);
+                }
+        }
+    }
+
+    private String wantedKey() {
+        String key = path.toString();
+        return paths.contains(key) ? key : null;
+    }
+
+    private void object() {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        int parentLength = path.length();
+        while (true) {
+            skipWhitespace();
+            String key = string();
+            skipWhitespace();
+            expect(':');
+            if (parentLength > 0) {
+                path.append('.');
+            }
+            path.append(key);
+            value();
+            path.setLength(parentLength);
+            // Once all fields were found, the enclosing objects return here as well, before their next ',' or '}'
+            if (done()) {
+                return;
+            }
+
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect('}');
+                return;
+            }
+        }
+    }
+
+    private void skipArray() {
+        // Nested structures are skipped by depth; strings are skipped so their brackets do not count
+        int depth = 0;
+        do {
+            byte b = json[pos];
+            if (b == '"') {
+                skipString();
+                continue;
+            }
+            if (b == '[' || b == '{') {
+                depth++;
+            } else if (b == ']' || b == '}') {
+                depth--;
+            }
+            pos++;
+        } while (depth > 0 && pos < json.length);
+    }
+
+    private void skipString() {
+        expect('"');
+        while (pos < json.length && json[pos] != '"') {
+            pos += json[pos] == '\\' ? 2 : 1;
+        }
+        expect('"');
+    }
+
+    private String string() {
+        expect('"');
+        int start = pos;
+        while (pos < json.length && json[pos] != '"' && json[pos] != '\\') {
+            pos++;
+        }
+        if (pos < json.length && json[pos] == '"') {
+            // Common case: no escapes
+            return new String(json, start, pos++ - start, StandardCharsets.UTF_8);
+        }
+
+        StringBuilder sb = new StringBuilder(new String(json, start, pos - start, StandardCharsets.UTF_8));
+        while (pos < json.length && json[pos] != '"') {
+            if (json[pos] != '\\') {
+                int end = pos;
+                while (end < json.length && json[end] != '"' && json[end] != '\\') {
+                    end++;
+                }
+                sb.append(new String(json, pos, end - pos, StandardCharsets.UTF_8));
+                pos = end;
+                continue;
+            }
+            char escaped = (char) json[pos + 1];
+            pos += 2;
+            switch (escaped) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(new String(json, pos, 4, StandardCharsets.US_ASCII), 16));
+                    pos += 4;
+                    break;
+                default:
+                    sb.append(escaped);
+            }
+        }
+        expect('"');
+        return sb.toString();
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length && (json[pos] == ' ' || json[pos] == '\n' || json[pos] == '\r' || json[pos] == '\t')) {
+            pos++;
+        }
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private byte peek() {
+        if (pos >= json.length) {
+            throw error("Unexpected end of document");
+        }
+        return json[pos];
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + pos + " of the JSON document");
+    }
+}
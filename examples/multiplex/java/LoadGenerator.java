@@ -0,0 +1,245 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load generator against the in-process {@link LocalStreamingService}.
+ *
+ * Starts the stand-in, then N producer (TLC) sessions with one identifier each and M consumer
+ * (Broker) sessions subscribed to all of them, using the same client code as {@link Main}: REST
+ * session creation, handshake, token, timestamp responses and keep alives. Every producer sends
+ * payloads at a fixed rate, over a multiplex or singleplex session, one by one or in batches that
+ * are published once the whole batch is due; each payload starts with the {@link System#nanoTime()}
+ * of its creation, so consumers measure the end-to-end latency (client encode, node relay, client
+ * decode) on the same clock. Throughput and the latency histogram are reported periodically and
+ * at the end.
+ */
+public final class LoadGenerator {
+    private static final String STREAMING_API_LOAD_PRODUCERS = System.getenv("STREAMING_API_LOAD_PRODUCERS") != null
+        ? System.getenv("STREAMING_API_LOAD_PRODUCERS") : "10";
+    private static final String STREAMING_API_LOAD_CONSUMERS = System.getenv("STREAMING_API_LOAD_CONSUMERS") != null
+        ? System.getenv("STREAMING_API_LOAD_CONSUMERS") : "2";
+    private static final String STREAMING_API_LOAD_RATE = System.getenv("STREAMING_API_LOAD_RATE") != null
+        ? System.getenv("STREAMING_API_LOAD_RATE") : "10";
+    private static final String STREAMING_API_LOAD_PAYLOAD_SIZE = System.getenv("STREAMING_API_LOAD_PAYLOAD_SIZE") != null
+        ? System.getenv("STREAMING_API_LOAD_PAYLOAD_SIZE") : "100";
+    private static final String STREAMING_API_LOAD_PROTOCOL = System.getenv("STREAMING_API_LOAD_PROTOCOL") != null
+        ? System.getenv("STREAMING_API_LOAD_PROTOCOL") : Main.PROTOCOL_MULTIPLEX;
+    private static final String STREAMING_API_LOAD_BATCH = System.getenv("STREAMING_API_LOAD_BATCH") != null
+        ? System.getenv("STREAMING_API_LOAD_BATCH") : "1";
+    private static final String STREAMING_API_LOAD_DURATION = System.getenv("STREAMING_API_LOAD_DURATION") != null
+        ? System.getenv("STREAMING_API_LOAD_DURATION") : "30";
+    private static final String STREAMING_API_LOAD_LOG_LEVEL = System.getenv("STREAMING_API_LOAD_LOG_LEVEL") != null
+        ? System.getenv("STREAMING_API_LOAD_LOG_LEVEL") : "WARNING";
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+    private static final long MAX_BACKLOG_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int TIMESTAMP_SIZE = 8;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+
+    private final String baseUrl;
+    private final List<String> identifiers;
+    private final long intervalNanos;
+    private final int payloadSize;
+    private final String protocol;
+    private final int batchSize;
+
+    private LoadGenerator(String baseUrl, List<String> identifiers, double rate, int payloadSize, String protocol,
+            int batchSize) {
+        this.baseUrl = baseUrl;
+        this.identifiers = identifiers;
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.payloadSize = Math.max(TIMESTAMP_SIZE, payloadSize);
+        this.protocol = protocol;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // ======== PRODUCER ========
+
+    private void runProducer(String identifier, String threadName) throws Exception {
+        Main.SessionInfo session = Main.createSession(LocalStreamingService.TYPE_TLC, "load-tlc", baseUrl,
+            "NONE", protocol, List.of(identifier), threadName);
+        long identifierKey = DatagramCodec.packIdentifier(identifier);
+        PayloadGovernor governor = new PayloadGovernor(session, PayloadGovernor.Backpressure.REJECT, 0,
+            PayloadGovernor.DEFAULT_HEADROOM);
+        List<Main.Payload> batch = new ArrayList<>(batchSize);
+        ByteBuffer[] stamps = new ByteBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            byte[] payload = new byte[payloadSize];
+            stamps[i] = ByteBuffer.wrap(payload);
+            batch.add(new Main.Payload(identifierKey, (byte) 0x02, payload));
+        }
+        // A batch is sent once its last payload is due
+        long batchNanos = (batchSize - 1) * intervalNanos;
+        long[] next = {System.nanoTime()};
+
+        Main.LoopCallback sendCallback = connection -> {
+            long now = System.nanoTime();
+            // After a stall the producer skips ahead instead of bursting the backlog out
+            if (now - next[0] > MAX_BACKLOG_NANOS) {
+                next[0] = now;
+            }
+            while (now - next[0] - batchNanos >= 0) {
+                for (ByteBuffer stamp : stamps) {
+                    next[0] += intervalNanos;
+                    stamp.putLong(0, System.nanoTime());
+                }
+                int accepted;
+                if (batchSize == 1) {
+                    accepted = governor.writePayloadWithIdentifier(connection, identifierKey, (byte) 0x02,
+                        batch.get(0).data(), threadName) ? 1 : 0;
+                } else {
+                    accepted = governor.publish(connection, batch, threadName);
+                }
+                sent.add(accepted);
+                rejected.add(batchSize - accepted);
+            }
+            long keepAliveNanos = governor.maintainKeepAlive(connection, threadName);
+            return Math.min(keepAliveNanos, next[0] + batchNanos - System.nanoTime());
+        };
+
+        Main.runStreamingClient(session.host, session.port, session.token, false,
+            (Main.PayloadViewCallback) view -> { }, sendCallback, threadName);
+    }
+
+    // ======== CONSUMER ========
+
+    private void runConsumer(String threadName) throws Exception {
+        Main.SessionInfo session = Main.createSession(LocalStreamingService.TYPE_BROKER, "load-broker", baseUrl,
+            "NONE", identifiers, threadName);
+        PayloadGovernor governor = new PayloadGovernor(session, PayloadGovernor.Backpressure.REJECT, 0,
+            PayloadGovernor.DEFAULT_HEADROOM);
+
+        Main.PayloadViewCallback receiveCallback = view -> {
+            long now = System.nanoTime();
+            received.increment();
+            receivedBytes.add(view.payloadLength());
+            if (view.payloadLength() >= TIMESTAMP_SIZE) {
+                latency.record(now - view.buffer().getLong(view.payloadOffset()));
+            }
+        };
+
+        Main.runStreamingClient(session.host, session.port, session.token, false, receiveCallback,
+            connection -> governor.maintainKeepAlive(connection, threadName), threadName);
+    }
+
+    // ======== STARTUP AND RUN LOOP ========
+
+    private void report(String label, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        logger.warning(String.format("%s: sent=%d (%.0f/s), rejected=%d, received=%d (%.0f/s, %.2f MB/s)",
+            label, sent.sum(), sent.sum() / seconds, rejected.sum(), received.sum(), received.sum() / seconds,
+            receivedBytes.sum() / seconds / 1e6));
+        logger.warning(label + " end-to-end latency: " + latency);
+    }
+
+    private static void dumpConfig() {
+        logger.warning("STREAMING_API_LOAD_PRODUCERS: '" + STREAMING_API_LOAD_PRODUCERS + "'");
+        logger.warning("STREAMING_API_LOAD_CONSUMERS: '" + STREAMING_API_LOAD_CONSUMERS + "'");
+        logger.warning("STREAMING_API_LOAD_RATE: '" + STREAMING_API_LOAD_RATE + "'");
+        logger.warning("STREAMING_API_LOAD_PAYLOAD_SIZE: '" + STREAMING_API_LOAD_PAYLOAD_SIZE + "'");
+        logger.warning("STREAMING_API_LOAD_PROTOCOL: '" + STREAMING_API_LOAD_PROTOCOL + "'");
+        logger.warning("STREAMING_API_LOAD_BATCH: '" + STREAMING_API_LOAD_BATCH + "'");
+        logger.warning("STREAMING_API_LOAD_DURATION: '" + STREAMING_API_LOAD_DURATION + "'");
+        logger.warning("STREAMING_API_LOAD_LOG_LEVEL: '" + STREAMING_API_LOAD_LOG_LEVEL + "'");
+    }
+
+    /**
+     * Runs the producers and consumers against a running stand-in for the given time and returns
+     * the generator with its counts.
+     */
+    static LoadGenerator run(LocalStreamingService service, int producers, int consumers, double rate,
+            int payloadSize, String protocol, int batchSize, long durationMillis) throws Exception {
+        List<String> identifiers = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            identifiers.add(String.format("load%04d", i));
+        }
+
+        LoadGenerator generator = new LoadGenerator(service.baseUrl(), identifiers, rate, payloadSize, protocol,
+            batchSize);
+        try (SessionManager sessions = new SessionManager()) {
+            // Consumers connect first, so no payload is sent before it can be delivered
+            for (int i = 0; i < consumers; i++) {
+                sessions.add("consumer-" + i, generator::runConsumer);
+            }
+            while (service.connections() < consumers && sessions.size() == consumers) {
+                Thread.sleep(10);
+            }
+            for (String identifier : identifiers) {
+                sessions.add("producer-" + identifier, threadName -> generator.runProducer(identifier, threadName));
+            }
+
+            long start = System.nanoTime();
+            long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            while (true) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+                if (remaining <= 0) {
+                    break;
+                }
+                Thread.sleep(Math.min(REPORT_INTERVAL_MILLIS, remaining));
+                if (System.nanoTime() < end) {
+                    generator.report("Progress", System.nanoTime() - start);
+                }
+            }
+
+            logger.warning("Session memory: " + sessions.memoryReport());
+            sessions.close();
+            generator.report("Total", System.nanoTime() - start);
+        }
+        return generator;
+    }
+
+    long sent() {
+        return sent.sum();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    long received() {
+        return received.sum();
+    }
+
+    LatencyHistogram latency() {
+        return latency;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Report lines are logged as warnings, so they remain at the default level
+        Main.configureLogging(Level.parse(STREAMING_API_LOAD_LOG_LEVEL));
+        dumpConfig();
+
+        int producers = Integer.parseInt(STREAMING_API_LOAD_PRODUCERS);
+        int consumers = Integer.parseInt(STREAMING_API_LOAD_CONSUMERS);
+        double rate = Double.parseDouble(STREAMING_API_LOAD_RATE);
+        int payloadSize = Integer.parseInt(STREAMING_API_LOAD_PAYLOAD_SIZE);
+        int batchSize = Integer.parseInt(STREAMING_API_LOAD_BATCH);
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(STREAMING_API_LOAD_DURATION));
+
+        // The stand-in limits leave room for twice the offered load, so only a stalled producer trips them
+        LocalStreamingService.Enforcement enforcement = new LocalStreamingService.Enforcement();
+        enforcement.payloadRateLimit = Math.max(enforcement.payloadRateLimit, (int) Math.ceil(2 * rate));
+        enforcement.payloadThroughputLimit = Math.max(enforcement.payloadThroughputLimit,
+            (int) Math.ceil(2 * rate * payloadSize));
+
+        try (LocalStreamingService service = new LocalStreamingService("127.0.0.1", 0, 0, enforcement)) {
+            logger.warning("Local streaming service at " + service.baseUrl() + ", node port " + service.streamingPort());
+            run(service, producers, consumers, rate, payloadSize, STREAMING_API_LOAD_PROTOCOL, batchSize,
+                durationMillis);
+            logger.warning("Local streaming service: " + service);
+        } finally {
+            Main.closeLogging();
+        }
+    }
+}
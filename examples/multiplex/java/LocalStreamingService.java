@@ -0,0 +1,671 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * In-process stand-in for the Subject Interface: the session REST endpoint and a streaming node.
+ *
+ * {@code POST <base>/v1/sessions} creates a TLC, Broker or Monitor session for a set of TLC
+ * identifiers and returns the listener, a session token and the enforcement parameters, like the
+ * real API; {@code DELETE <base>/v1/sessions/<token>} deletes a session that was not connected.
+ * A session token is accepted once, until the expiration of its listener. The streaming node
+ * accepts plain TCP connections, runs the version handshake, validates the token and then relays
+ * payloads between the TLC and Broker sessions of the same identifier: 0x05 on multiplex sessions,
+ * 0x04 on singleplex sessions of a single identifier, each receiver getting the datagram of its
+ * own protocol. Monitor sessions receive a copy of every relayed payload as a monitor payload
+ * (0xF0), with the token of the publishing session and the publish and sent timestamps. It
+ * sends a timestamp request (0x06) at a fixed interval and enforces PayloadRateLimit,
+ * PayloadThroughputLimit, KeepAliveTimeout and ClockDiffLimit with the sliding windows described
+ * in the protocol documentation: a violating connection is closed without warning.
+ *
+ * Every connection is served by a virtual thread for reading and one for its timers. The
+ * stand-in is meant for local testing and load generation, it does not implement TLS.
+ */
+final class LocalStreamingService implements Closeable {
+    static final String TYPE_TLC = "TLC";
+    static final String TYPE_BROKER = "Broker";
+    static final String TYPE_MONITOR = "Monitor";
+
+    private static final byte PROTOCOL_VERSION = 0x01;
+    private static final int TOKEN_BYTES = 24;
+    private static final long TIMER_TICK_MILLIS = 250;
+
+    /** Enforcement parameters handed out with every session. */
+    static final class Enforcement {
+        Duration keepAliveTimeout = Duration.ofSeconds(10);
+        int payloadRateLimit = 100;
+        Duration payloadRateLimitDuration = Duration.ofSeconds(5);
+        int payloadThroughputLimit = 100_000;
+        Duration payloadThroughputLimitDuration = Duration.ofSeconds(5);
+        Duration clockDiffLimit = Duration.ofSeconds(3);
+        Duration clockDiffLimitDuration = Duration.ofMinutes(1);
+        Duration timestampRequestInterval = Duration.ofSeconds(5);
+        // Not an enforcement parameter: how long the listener accepts the token of a created session
+        Duration sessionExpiration = Duration.ofMinutes(5);
+    }
+
+    private final Enforcement enforcement;
+    private final String host;
+    private final HttpServer rest;
+    private final ExecutorService restExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ServerSocket listener;
+    private final Thread acceptor;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Grant> grants = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<NodeConnection, Boolean> connections = new ConcurrentHashMap<>();
+    private final Routes tlcRoutes = new Routes();
+    private final Routes brokerRoutes = new Routes();
+    private final Routes monitorRoutes = new Routes();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final LongAdder sessionsCreated = new LongAdder();
+    private final LongAdder payloadsReceived = new LongAdder();
+    private final LongAdder payloadsForwarded = new LongAdder();
+    private final LongAdder payloadsMonitored = new LongAdder();
+    private final LongAdder payloadsOutOfScope = new LongAdder();
+    private final LongAdder timestampRequests = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> terminations = new ConcurrentHashMap<>();
+
+    /**
+     * Starts the REST endpoint and the streaming node on the given host; port 0 picks a free port.
+     */
+    LocalStreamingService(String host, int restPort, int streamingPort, Enforcement enforcement) throws IOException {
+        this.host = host;
+        this.enforcement = enforcement;
+        InetAddress address = InetAddress.getByName(host);
+
+        this.listener = new ServerSocket(streamingPort, 1024, address);
+        this.acceptor = Thread.ofPlatform().daemon().name("node-acceptor").start(this::accept);
+
+        this.rest = HttpServer.create(new InetSocketAddress(address, restPort), 1024);
+        this.rest.createContext("/api/v1/sessions", this::handleSessions);
+        this.rest.setExecutor(restExecutor);
+        this.rest.start();
+    }
+
+    /**
+     * Returns the base URL to use as STREAMING_API_BASEURL.
+     */
+    String baseUrl() {
+        return "http://" + host + ":" + rest.getAddress().getPort() + "/api";
+    }
+
+    int streamingPort() {
+        return listener.getLocalPort();
+    }
+
+    int connections() {
+        return connections.size();
+    }
+
+    /**
+     * Sends a Reconnect to every connection, as a node does before maintenance, and returns the
+     * number of connections asked to move; they end when the clients close them.
+     */
+    int requestReconnect() {
+        int requested = 0;
+        for (NodeConnection connection : connections.keySet()) {
+            ByteBuffer frame = DatagramCodec.frameBuffer();
+            DatagramCodec.encodeReconnect(frame);
+            frame.flip();
+            try {
+                connection.send(frame);
+                requested++;
+            } catch (IOException e) {
+                connection.terminate("disconnected");
+            }
+        }
+        return requested;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        rest.stop(0);
+        restExecutor.shutdownNow();
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (NodeConnection connection : connections.keySet()) {
+            connection.terminate(null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("sessions=%d, connections=%d, payloads_received=%d, payloads_forwarded=%d, "
+            + "payloads_monitored=%d, payloads_out_of_scope=%d, timestamp_requests=%d", sessionsCreated.sum(),
+            connections.size(), payloadsReceived.sum(), payloadsForwarded.sum(), payloadsMonitored.sum(),
+            payloadsOutOfScope.sum(), timestampRequests.sum()));
+        terminations.forEach((reason, count) -> sb.append(", terminated[").append(reason).append("]=").append(count.sum()));
+        return sb.toString();
+    }
+
+    // ======== REST API ========
+
+    private void handleSessions(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String authorization = exchange.getRequestHeaders().getFirst("X-Authorization");
+            if (authorization == null || authorization.isEmpty()) {
+                respond(exchange, 401, new JSONObject().put("message", "Missing X-Authorization header"));
+                return;
+            }
+            // The context also receives the paths below it, which name a session token
+            String path = exchange.getRequestURI().getPath();
+            String token = path.startsWith("/api/v1/sessions/") ? path.substring("/api/v1/sessions/".length()) : "";
+            if ("POST".equals(exchange.getRequestMethod()) && path.equals("/api/v1/sessions")) {
+                handleCreateSession(exchange);
+            } else if ("DELETE".equals(exchange.getRequestMethod()) && !token.isEmpty() && token.indexOf('/') < 0) {
+                handleDeleteSession(exchange, token);
+            } else {
+                respond(exchange, 405, new JSONObject().put("message", "Method not allowed"));
+            }
+        }
+    }
+
+    private void handleDeleteSession(HttpExchange exchange, String token) throws IOException {
+        if (grants.remove(token) == null) {
+            respond(exchange, 404, new JSONObject().put("message", "Unknown session " + token));
+            return;
+        }
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void handleCreateSession(HttpExchange exchange) throws IOException {
+        try {
+            JSONObject request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            String type = request.optString("type");
+            JSONObject details = request.optJSONObject("details");
+            if (!TYPE_TLC.equals(type) && !TYPE_BROKER.equals(type) && !TYPE_MONITOR.equals(type)) {
+                respond(exchange, 400, new JSONObject().put("message", "Unsupported session type " + type));
+                return;
+            }
+            String protocol = request.optString("protocol", Main.PROTOCOL_MULTIPLEX);
+            if (!Main.PROTOCOL_MULTIPLEX.equals(protocol) && !Main.PROTOCOL_SINGLEPLEX.equals(protocol)) {
+                respond(exchange, 400, new JSONObject().put("message", "Unsupported protocol " + protocol));
+                return;
+            }
+            // Singleplex sessions name their identifier in tlcIdentifier, multiplex sessions list them in tlcIdentifiers
+            boolean singleplex = Main.PROTOCOL_SINGLEPLEX.equals(protocol);
+            String identifier = details != null ? details.optString("tlcIdentifier", null) : null;
+            JSONArray identifiers = details != null ? details.optJSONArray("tlcIdentifiers") : null;
+            if (singleplex && (identifier == null || identifier.isEmpty() || identifiers != null)) {
+                respond(exchange, 400, new JSONObject().put("message", "Singleplex sessions take one tlcIdentifier"));
+                return;
+            }
+            if (!singleplex && (identifiers == null || identifiers.isEmpty() || details.has("tlcIdentifier"))) {
+                respond(exchange, 400, new JSONObject().put("message", "Multiplex sessions take a list of tlcIdentifiers"));
+                return;
+            }
+            if (singleplex) {
+                identifiers = new JSONArray().put(identifier);
+            }
+            if (!"NONE".equals(details.optString("securityMode"))) {
+                respond(exchange, 400, new JSONObject().put("message", "Only securityMode NONE is supported"));
+                return;
+            }
+
+            long[] identifierKeys = new long[identifiers.length()];
+            for (int i = 0; i < identifierKeys.length; i++) {
+                identifierKeys[i] = DatagramCodec.packIdentifier(identifiers.getString(i));
+            }
+            byte[] tokenBytes = new byte[TOKEN_BYTES];
+            random.nextBytes(tokenBytes);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+            Instant expiration = Instant.now().plus(enforcement.sessionExpiration).truncatedTo(ChronoUnit.SECONDS);
+            grants.put(token, new Grant(type, singleplex, identifierKeys, expiration.toEpochMilli()));
+            sessionsCreated.increment();
+
+            JSONObject listenerDetails = new JSONObject()
+                .put("host", host)
+                .put("port", listener.getLocalPort())
+                .put("expiration", expiration.toString());
+            JSONObject responseDetails = new JSONObject()
+                .put("securityMode", "NONE")
+                .put("keepAliveTimeout", enforcement.keepAliveTimeout.toString())
+                .put("payloadRateLimit", enforcement.payloadRateLimit)
+                .put("payloadRateLimitDuration", enforcement.payloadRateLimitDuration.toString())
+                .put("payloadThroughputLimit", enforcement.payloadThroughputLimit)
+                .put("payloadThroughputLimitDuration", enforcement.payloadThroughputLimitDuration.toString())
+                .put("clockDiffLimit", enforcement.clockDiffLimit.toString())
+                .put("clockDiffLimitDuration", enforcement.clockDiffLimitDuration.toString())
+                .put("listener", listenerDetails);
+            if (singleplex) {
+                responseDetails.put("tlcIdentifier", identifier);
+            } else {
+                responseDetails.put("tlcIdentifiers", identifiers);
+            }
+            respond(exchange, 200, new JSONObject()
+                .put("token", token)
+                .put("domain", request.optString("domain"))
+                .put("type", type)
+                .put("protocol", protocol)
+                .put("details", responseDetails));
+        } catch (RuntimeException e) {
+            respond(exchange, 400, new JSONObject().put("message", "Invalid request: " + e.getMessage()));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // ======== STREAMING NODE ========
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                NodeConnection connection = new NodeConnection(socket, "node-" + connectionIds.incrementAndGet());
+                connections.put(connection, Boolean.TRUE);
+                Thread.ofVirtual().name(connection.name).start(connection::run);
+            } catch (IOException e) {
+                if (!closed) {
+                    Main.log("node-acceptor", "Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void terminated(String reason) {
+        terminations.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    /** A created session, waiting for its connection. */
+    private static final class Grant {
+        final String type;
+        // Singleplex sessions send and receive 0x04 for their only identifier, multiplex sessions 0x05
+        final boolean singleplex;
+        final long[] identifierKeys;
+        final long expirationMillis;
+
+        Grant(String type, boolean singleplex, long[] identifierKeys, long expirationMillis) {
+            this.type = type;
+            this.singleplex = singleplex;
+            this.identifierKeys = identifierKeys;
+            this.expirationMillis = expirationMillis;
+        }
+
+        boolean inScope(long identifierKey) {
+            for (long key : identifierKeys) {
+                if (key == identifierKey) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Connections by identifier for one session type. Lookups use an optimistic read like
+     * {@link PayloadRouter}; the connection arrays are replaced, never modified.
+     */
+    private static final class Routes {
+        private static final NodeConnection[] NONE = new NodeConnection[0];
+
+        private final IdentifierMap<NodeConnection[]> connections = new IdentifierMap<>(64);
+        private final StampedLock lock = new StampedLock();
+
+        NodeConnection[] lookup(long identifierKey) {
+            long stamp = lock.tryOptimisticRead();
+            NodeConnection[] found = connections.get(identifierKey);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    found = connections.get(identifierKey);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return found != null ? found : NONE;
+        }
+
+        void add(long[] identifierKeys, NodeConnection connection) {
+            long stamp = lock.writeLock();
+            try {
+                for (long key : identifierKeys) {
+                    NodeConnection[] current = connections.get(key);
+                    NodeConnection[] updated = current == null ? new NodeConnection[1] : Arrays.copyOf(current, current.length + 1);
+                    updated[updated.length - 1] = connection;
+                    connections.put(key, updated);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void remove(long[] identifierKeys, NodeConnection connection) {
+            long stamp = lock.writeLock();
+            try {
+                for (long key : identifierKeys) {
+                    NodeConnection[] current = connections.get(key);
+                    if (current == null) {
+                        continue;
+                    }
+                    NodeConnection[] updated = Arrays.stream(current).filter(c -> c != connection).toArray(NodeConnection[]::new);
+                    if (updated.length == 0) {
+                        connections.remove(key);
+                    } else {
+                        connections.put(key, updated);
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    // ======== NODE CONNECTION ========
+
+    private final class NodeConnection {
+        private final Socket socket;
+        private final String name;
+        private final Main.SocketConnection out;
+        private final PayloadGovernor.SlidingWindow rateWindow;
+        private final PayloadGovernor.SlidingWindow throughputWindow;
+        private final PayloadGovernor.SlidingWindow clockSamples;
+        private final PayloadGovernor.SlidingWindow clockDiffs;
+        private volatile long lastReceivedNanos = System.nanoTime();
+        private final AtomicReference<String> terminationReason = new AtomicReference<>();
+        private Grant grant;
+        private byte[] publisherToken;
+
+        NodeConnection(Socket socket, String name) throws IOException {
+            this.socket = socket;
+            this.name = name;
+            this.out = new Main.SocketConnection(socket);
+
+            // The windows record every event and only their totals are compared with the limits
+            this.rateWindow = new PayloadGovernor.SlidingWindow(enforcement.payloadRateLimitDuration.toNanos(),
+                Long.MAX_VALUE, 64);
+            this.throughputWindow = new PayloadGovernor.SlidingWindow(
+                enforcement.payloadThroughputLimitDuration.toNanos(), Long.MAX_VALUE, 64);
+            this.clockSamples = new PayloadGovernor.SlidingWindow(enforcement.clockDiffLimitDuration.toNanos(),
+                Long.MAX_VALUE, 16);
+            this.clockDiffs = new PayloadGovernor.SlidingWindow(enforcement.clockDiffLimitDuration.toNanos(),
+                Long.MAX_VALUE, 16);
+        }
+
+        void run() {
+            Thread timer = null;
+            ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+            PayloadView view = new PayloadView();
+            try {
+                InputStream in = socket.getInputStream();
+                if (in.read() != PROTOCOL_VERSION) {
+                    terminate("unsupported protocol version");
+                    return;
+                }
+                OutputStream rawOut = socket.getOutputStream();
+                rawOut.write(PROTOCOL_VERSION);
+                rawOut.flush();
+
+                PayloadView first = Main.readDatagram(in, readBuffer, view, name);
+                readBuffer = first.buffer();
+                grant = first.type() == DatagramCodec.TOKEN ? grants.remove(first.text()) : null;
+                if (grant == null) {
+                    terminate("invalid token");
+                    return;
+                }
+                if (System.currentTimeMillis() >= grant.expirationMillis) {
+                    grant = null;
+                    terminate("expired token");
+                    return;
+                }
+                publisherToken = first.text().getBytes(StandardCharsets.US_ASCII);
+                lastReceivedNanos = System.nanoTime();
+                routesOf(grant.type).add(grant.identifierKeys, this);
+                timer = Thread.ofVirtual().name(name + "-timer").start(this::runTimer);
+
+                while (terminationReason.get() == null) {
+                    PayloadView datagram = Main.readDatagram(in, readBuffer, view, name);
+                    readBuffer = datagram.buffer();
+                    lastReceivedNanos = System.nanoTime();
+                    handle(datagram);
+                }
+            } catch (Exception e) {
+                terminate("disconnected");
+            } finally {
+                if (timer != null) {
+                    timer.interrupt();
+                }
+                if (grant != null) {
+                    routesOf(grant.type).remove(grant.identifierKeys, this);
+                }
+                connections.remove(this);
+            }
+        }
+
+        private void handle(PayloadView datagram) throws IOException {
+            if (!datagram.isValid()) {
+                Main.log(name, String.format("Discarding datagram 0x%02x of %d bytes, too short for its type",
+                    datagram.type(), datagram.length()));
+                return;
+            }
+            switch (datagram.type()) {
+                case DatagramCodec.KEEPALIVE:
+                    break;
+                case DatagramCodec.BYE:
+                    terminate("bye");
+                    break;
+                case DatagramCodec.PAYLOAD:
+                case DatagramCodec.PAYLOAD_WITH_IDENTIFIER:
+                    // Each protocol allows only its own payload datagram
+                    if ((datagram.type() == DatagramCodec.PAYLOAD) != grant.singleplex) {
+                        terminate(String.format("datagram 0x%02x not allowed in %s session", datagram.type(),
+                            grant.singleplex ? "singleplex" : "multiplex"));
+                        return;
+                    }
+                    handlePayload(datagram);
+                    break;
+                case DatagramCodec.TIMESTAMP_RESPONSE:
+                    handleTimestampResponse(datagram);
+                    break;
+                default:
+                    terminate(String.format("unexpected datagram 0x%02x", datagram.type()));
+            }
+        }
+
+        private void handlePayload(PayloadView datagram) throws IOException {
+            if (TYPE_MONITOR.equals(grant.type)) {
+                terminate("payload from monitor session");
+                return;
+            }
+            payloadsReceived.increment();
+            long publishTimestamp = System.currentTimeMillis();
+            long now = System.nanoTime();
+            rateWindow.record(now, 1);
+            throughputWindow.record(now, datagram.payloadLength());
+            if (exceeds(rateWindow, now, enforcement.payloadRateLimit, enforcement.payloadRateLimitDuration)) {
+                terminate("payload rate limit");
+                return;
+            }
+            // The throughput limit is in bytes per second
+            if (exceeds(throughputWindow, now, enforcement.payloadThroughputLimit,
+                    enforcement.payloadThroughputLimitDuration)) {
+                terminate("payload throughput limit");
+                return;
+            }
+
+            long identifierKey = grant.singleplex ? grant.identifierKeys[0] : datagram.identifierKey();
+            if (!grant.inScope(identifierKey)) {
+                payloadsOutOfScope.increment();
+                return;
+            }
+
+            // Payloads of a TLC go to the Brokers of the identifier and vice versa
+            NodeConnection[] targets = routesOf(TYPE_TLC.equals(grant.type) ? TYPE_BROKER : TYPE_TLC).lookup(identifierKey);
+            if (targets.length > 0) {
+                forwardPayload(datagram, identifierKey, targets, false);
+                forwardPayload(datagram, identifierKey, targets, true);
+            }
+
+            NodeConnection[] monitors = monitorRoutes.lookup(identifierKey);
+            if (monitors.length > 0) {
+                ByteBuffer frame = DatagramCodec.frameBuffer();
+                DatagramCodec.encodeMonitorPayload(frame, publisherToken, publishTimestamp, System.currentTimeMillis(),
+                    datagram.buffer(), datagram.offset(), datagram.length());
+                frame.flip();
+                forward(frame, monitors, payloadsMonitored);
+            }
+        }
+
+        // Receivers get the payload as their own protocol carries it: 0x04 when singleplex, 0x05 otherwise
+        private void forwardPayload(PayloadView datagram, long identifierKey, NodeConnection[] targets,
+                boolean singleplex) {
+            ByteBuffer frame = null;
+            for (NodeConnection target : targets) {
+                if (target.grant.singleplex != singleplex) {
+                    continue;
+                }
+                if (frame == null) {
+                    frame = DatagramCodec.frameBuffer();
+                    byte[] array = datagram.buffer().array();
+                    if (grant.singleplex == singleplex) {
+                        DatagramCodec.encodeDatagram(frame, array, datagram.offset(), datagram.length());
+                    } else if (singleplex) {
+                        DatagramCodec.encodePayload(frame, datagram.payloadType(), datagram.originTimestamp(),
+                            array, datagram.payloadOffset(), datagram.payloadLength());
+                    } else {
+                        DatagramCodec.encodePayloadWithIdentifier(frame, identifierKey, datagram.payloadType(),
+                            datagram.originTimestamp(), array, datagram.payloadOffset(), datagram.payloadLength());
+                    }
+                    frame.flip();
+                }
+                deliver(target, frame, payloadsForwarded);
+            }
+        }
+
+        private void forward(ByteBuffer frame, NodeConnection[] targets, LongAdder counter) {
+            for (NodeConnection target : targets) {
+                deliver(target, frame, counter);
+            }
+        }
+
+        private void deliver(NodeConnection target, ByteBuffer frame, LongAdder counter) {
+            try {
+                target.send(frame);
+                counter.increment();
+            } catch (IOException e) {
+                // A failing receiver ends its own connection, not the sender's
+                target.terminate("disconnected");
+            }
+            frame.rewind();
+        }
+
+        private void handleTimestampResponse(PayloadView datagram) {
+            // Offset of the client clock: the mean of (t1 - t0) and (t2 - t3) cancels the network delay
+            long timestampT3 = System.currentTimeMillis();
+            long offset = ((datagram.timestampT1() - datagram.timestampT0())
+                + (datagram.timestampT2() - timestampT3)) / 2;
+            long now = System.nanoTime();
+            clockSamples.record(now, 1);
+            clockDiffs.record(now, (int) Math.min(Integer.MAX_VALUE, Math.abs(offset)));
+
+            long samples = clockSamples.fits(now, 0) ? clockSamples.total() : 0;
+            clockDiffs.fits(now, 0);
+            if (samples > 0 && clockDiffs.total() / samples > enforcement.clockDiffLimit.toMillis()) {
+                terminate("clock difference limit");
+            }
+        }
+
+        private boolean exceeds(PayloadGovernor.SlidingWindow window, long now, long limitPerSecond, Duration duration) {
+            // fits expires the events that left the window, so the total covers the window only
+            window.fits(now, 0);
+            return limitPerSecond > 0 && window.total() * 1e9 / duration.toNanos() > limitPerSecond;
+        }
+
+        private void runTimer() {
+            long keepAliveNanos = enforcement.keepAliveTimeout.toNanos();
+            long requestIntervalNanos = enforcement.timestampRequestInterval.toNanos();
+            long nextRequest = System.nanoTime();
+            try {
+                while (terminationReason.get() == null) {
+                    long now = System.nanoTime();
+                    if (now - lastReceivedNanos > keepAliveNanos) {
+                        terminate("keep alive timeout");
+                        return;
+                    }
+                    if (now - nextRequest >= 0) {
+                        nextRequest = now + requestIntervalNanos;
+                        ByteBuffer frame = DatagramCodec.frameBuffer();
+                        DatagramCodec.encodeTimestampRequest(frame, System.currentTimeMillis());
+                        frame.flip();
+                        send(frame);
+                        timestampRequests.increment();
+                    }
+                    Thread.sleep(TIMER_TICK_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                // Connection ended
+            } catch (IOException e) {
+                terminate("disconnected");
+            }
+        }
+
+        private void send(ByteBuffer frame) throws IOException {
+            out.write(frame);
+            out.flush();
+        }
+
+        /**
+         * Closes the connection without a bye, as the service does on violations; null when the
+         * service shuts down. Only the first reason counts.
+         */
+        void terminate(String reason) {
+            if (!terminationReason.compareAndSet(null, reason != null ? reason : "service closed")) {
+                return;
+            }
+            if (reason != null && !"disconnected".equals(reason) && !"bye".equals(reason)) {
+                Main.log(name, "Terminating connection: " + reason);
+            }
+            terminated(terminationReason.get());
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        private Routes routesOf(String type) {
+            return TYPE_TLC.equals(type) ? tlcRoutes : TYPE_BROKER.equals(type) ? brokerRoutes : monitorRoutes;
+        }
+    }
+}
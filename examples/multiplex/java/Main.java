@@ -1,10 +1,25 @@
 import java.io.*;
 import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.*;
 import javax.net.ssl.*;
 import org.json.JSONArray;
@@ -12,9 +27,11 @@ import org.json.JSONObject;
 
 public class Main {
     // ======== CONSTANTS ========
-    private static final byte[] HEADER_PREFIX = {(byte) 0xAA, (byte) 0xBB};
+    static final byte[] HEADER_PREFIX = {(byte) 0xAA, (byte) 0xBB};
     private static final String SECURITY_MODE_NONE = "NONE";
     private static final String SECURITY_MODE_TLS = "TLSv1.2";
+    static final String PROTOCOL_MULTIPLEX = "TCPStreaming_Multiplex";
+    static final String PROTOCOL_SINGLEPLEX = "TCPStreaming_Singleplex";
     
     // ======== CONFIGURATION ========
     private static final String STREAMING_API_BASEURL = System.getenv("STREAMING_API_BASEURL") != null 
@@ -29,36 +46,104 @@ public class Main {
         ? System.getenv("STREAMING_API_SECURITY_MODE") : "TLSv1.2";
     private static final String STREAMING_API_IDENTIFIER = System.getenv("STREAMING_API_IDENTIFIER") != null 
         ? System.getenv("STREAMING_API_IDENTIFIER") : "sub00001";
+    private static final String STREAMING_API_PROTOCOL = System.getenv("STREAMING_API_PROTOCOL") != null 
+        ? System.getenv("STREAMING_API_PROTOCOL") : PROTOCOL_MULTIPLEX;
+    private static final String STREAMING_API_LOG_LEVEL = System.getenv("STREAMING_API_LOG_LEVEL") != null 
+        ? System.getenv("STREAMING_API_LOG_LEVEL") : "FINE";
+    private static final int STREAMING_API_IO_THREADS = System.getenv("STREAMING_API_IO_THREADS") != null 
+        ? Integer.parseInt(System.getenv("STREAMING_API_IO_THREADS")) : 1;
+    private static final boolean STREAMING_API_CLOCK_SYNC = System.getenv("STREAMING_API_CLOCK_SYNC") != null 
+        ? Boolean.parseBoolean(System.getenv("STREAMING_API_CLOCK_SYNC")) : true;
+    private static final int STREAMING_API_DISPATCH_THREADS = System.getenv("STREAMING_API_DISPATCH_THREADS") != null 
+        ? Integer.parseInt(System.getenv("STREAMING_API_DISPATCH_THREADS")) : 2;
+    private static final boolean STREAMING_API_CONFLATION = System.getenv("STREAMING_API_CONFLATION") != null 
+        ? Boolean.parseBoolean(System.getenv("STREAMING_API_CONFLATION")) : false;
+    private static final String STREAMING_API_JOURNAL_DIR = System.getenv("STREAMING_API_JOURNAL_DIR") != null 
+        ? System.getenv("STREAMING_API_JOURNAL_DIR") : "";
+    private static final boolean STREAMING_API_STANDBY_SESSION = System.getenv("STREAMING_API_STANDBY_SESSION") != null 
+        ? Boolean.parseBoolean(System.getenv("STREAMING_API_STANDBY_SESSION")) : false;
+    private static final String STREAMING_API_MONITOR_TOKEN = System.getenv("STREAMING_API_MONITOR_TOKEN") != null 
+        ? System.getenv("STREAMING_API_MONITOR_TOKEN") : "";
+    private static final int STREAMING_API_METRICS_PORT = System.getenv("STREAMING_API_METRICS_PORT") != null 
+        ? Integer.parseInt(System.getenv("STREAMING_API_METRICS_PORT")) : 0;
+    private static final String STREAMING_API_RECORD_DIR = System.getenv("STREAMING_API_RECORD_DIR") != null 
+        ? System.getenv("STREAMING_API_RECORD_DIR") : "";
     
     // ======== UTILITY FUNCTIONS ========
     private static final Logger logger = Logger.getLogger(Main.class.getName());
+    private static final AsyncLog asyncLog = new AsyncLog(logger, 4096);
     private static final SecureRandom random = new SecureRandom();
+    private static final ClockSync clock = new ClockSync(STREAMING_API_CLOCK_SYNC);
 
-    private static void log(String threadName, String message) {
-        logger.info(threadName + ": " + message);
+    static void log(String threadName, String message) {
+        asyncLog.log(Level.INFO, threadName, message);
     }
     
-    private static void logJSON(String threadName, String message, JSONObject json) {
-        log(threadName, message + ": " + json.toString(2));
+    // Wire tracing: values are copied into a preallocated record and formatted by the log writer thread
+    static AsyncLog.Record trace(String threadName, String template) {
+        return asyncLog.begin(Level.FINE, threadName, template);
     }
     
-    private static String asHexStream(byte[] data) {
-        StringBuilder sb = new StringBuilder("0x");
-        for (byte b : data) {
-            sb.append(String.format("%02X", b));
-        }
+    static AsyncLog.Record info(String threadName, String template) {
+        return asyncLog.begin(Level.INFO, threadName, template);
+    }
+    
+    static String asHexStream(byte[] data) {
+        return asHexStream(ByteBuffer.wrap(data), 0, data.length);
+    }
+    
+    static String asHexStream(ByteBuffer data, int offset, int length) {
+        StringBuilder sb = new StringBuilder(2 + 2 * length);
+        AsyncLog.appendHex(sb, data, offset, length);
         return sb.toString();
     }
     
-    private static long currentTimestamp() {
-        return System.currentTimeMillis();
+    // Monotonic clock, corrected towards the Streaming Service clock by the timestamp requests
+    static long currentTimestamp() {
+        return clock.currentTimeMillis();
+    }
+    
+    // Protocol timestamp of a datagram's arrival, the current time if the arrival is unknown
+    static long receiveTimestamp(PayloadView view) {
+        return view.receiveNanoTime() != 0 ? clock.toMillis(view.receiveNanoTime()) : clock.currentTimeMillis();
+    }
+    
+    // Metrics of all sessions, kept by session name across reconnects and exposed over JMX
+    private static final class Metrics {
+        static final MetricsRegistry REGISTRY = createRegistry();
+        
+        private static MetricsRegistry createRegistry() {
+            MetricsRegistry registry = new MetricsRegistry();
+            registry.gauge("streaming_clock_offset_seconds", 
+                "Offset of the local clock from the Streaming Service clock.", () -> clock.offsetMillis() / 1e3);
+            registry.gauge("streaming_clock_drift_ppm", 
+                "Drift of the local clock against the Streaming Service clock.", clock::driftPpm);
+            return registry;
+        }
+    }
+    
+    static SessionMetrics metrics(String threadName) {
+        return Metrics.REGISTRY.session(threadName);
     }
     
     // ======== REST API FUNCTIONS ========
-    private static class SessionInfo {
+    static class SessionInfo {
         String host;
         int port;
         String token;
+        // Singleplex sessions carry payloads (0x04) of their only identifier, without the identifier
+        boolean singleplex;
+        // The listener accepts the session until then; null when not present in the session response
+        Instant expiration;
+        
+        // Enforcement parameters, null or 0 when not present in the session response
+        Duration keepAliveTimeout;
+        int payloadRateLimit;
+        Duration payloadRateLimitDuration;
+        int payloadThroughputLimit;
+        Duration payloadThroughputLimitDuration;
+        Duration clockDiffLimit;
+        Duration clockDiffLimitDuration;
         
         SessionInfo(String host, int port, String token) {
             this.host = host;
@@ -67,85 +152,279 @@ public class Main {
         }
     }
     
-    private static SessionInfo createSession(String type, String token, String apiUrl, 
-            String securityMode, String identifier, String threadName) throws Exception {
+    private static final Duration HTTP_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    static final Set<String> SESSION_FIELDS = Set.of("token", "details.listener.host", 
+        "details.listener.port", "details.listener.expiration", "details.keepAliveTimeout", "details.payloadRateLimit", 
+        "details.payloadRateLimitDuration", "details.payloadThroughputLimit", 
+        "details.payloadThroughputLimitDuration", "details.clockDiffLimit", "details.clockDiffLimitDuration");
+    
+    // One client for all REST calls: it keeps its connections alive, so later sessions skip the TCP and TLS setup
+    private static final class Http {
+        static final HttpClient CLIENT = HttpClient.newBuilder().connectTimeout(HTTP_CONNECT_TIMEOUT).build();
+    }
+    
+    // Trusts all certificates and skips the hostname check, for localhost only (development only)
+    private static final class InsecureHttp {
+        static final HttpClient CLIENT;
+        static {
+            // Read once by the HTTP client implementation, so it must be set before the first client is built
+            System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+            CLIENT = HttpClient.newBuilder().connectTimeout(HTTP_CONNECT_TIMEOUT)
+                .sslContext(TlsTransport.trustAllContext()).build();
+        }
+    }
+    
+    static SessionInfo createSession(String type, String token, String apiUrl, 
+            String securityMode, List<String> identifiers, String threadName) throws Exception {
+        return createSession(type, token, apiUrl, securityMode, PROTOCOL_MULTIPLEX, identifiers, threadName);
+    }
+    
+    static SessionInfo createSession(String type, String token, String apiUrl, String securityMode, 
+            String protocol, List<String> identifiers, String threadName) throws Exception {
+        return awaitSession(createSessionAsync(type, token, apiUrl, securityMode, protocol, identifiers, threadName));
+    }
+    
+    static CompletableFuture<SessionInfo> createSessionAsync(String type, String token, String apiUrl, 
+            String securityMode, List<String> identifiers, String threadName) {
+        return createSessionAsync(type, token, apiUrl, securityMode, PROTOCOL_MULTIPLEX, identifiers, threadName);
+    }
+    
+    // Sends the request without blocking the caller; the future completes with the parsed session
+    static CompletableFuture<SessionInfo> createSessionAsync(String type, String token, String apiUrl, 
+            String securityMode, String protocol, List<String> identifiers, String threadName) {
+        boolean singleplex = PROTOCOL_SINGLEPLEX.equals(protocol);
+        if (!singleplex && !PROTOCOL_MULTIPLEX.equals(protocol)) {
+            throw new IllegalArgumentException("Unknown protocol " + protocol);
+        }
+        if (singleplex && identifiers.size() != 1) {
+            throw new IllegalArgumentException("A singleplex session takes exactly one identifier, not " 
+                + identifiers.size());
+        }
         String url = apiUrl + "/v1/sessions";
         
         JSONObject requestData = new JSONObject();
         requestData.put("domain", STREAMING_API_DOMAIN);
         requestData.put("type", type);
-        requestData.put("protocol", "TCPStreaming_Multiplex");
+        requestData.put("protocol", protocol);
         
         JSONObject details = new JSONObject();
         details.put("securityMode", securityMode);
-        details.put("tlcIdentifiers", new JSONArray().put(identifier));
+        // A singleplex session names its identifier as a string, a multiplex session lists them
+        if (singleplex) {
+            details.put("tlcIdentifier", identifiers.get(0));
+        } else {
+            details.put("tlcIdentifiers", new JSONArray(identifiers));
+        }
         requestData.put("details", details);
         
-        // Disable SSL verification for localhost (development only)
-        if (apiUrl.contains("localhost")) {
-            disableSSLVerification();
-        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+            .header("X-Authorization", token)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(requestData.toString()))
+            .build();
+        HttpClient client = apiUrl.contains("localhost") ? InsecureHttp.CLIENT : Http.CLIENT;
         
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("X-Authorization", token);
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setDoOutput(true);
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new Exception("Request failed with status code " + response.statusCode()));
+            }
+            SessionInfo session = parseSession(response.body(), threadName);
+            session.singleplex = singleplex;
+            return session;
+        });
+    }
+    
+    // Deletes a session that will not be connected, such as a discarded standby; failures are only logged
+    static CompletableFuture<Void> deleteSessionAsync(SessionInfo session, String token, String apiUrl, 
+            String threadName) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl + "/v1/sessions/" + session.token))
+            .header("X-Authorization", token)
+            .DELETE()
+            .build();
+        HttpClient client = apiUrl.contains("localhost") ? InsecureHttp.CLIENT : Http.CLIENT;
         
-        try (OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream())) {
-            writer.write(requestData.toString());
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, failure) -> {
+            if (failure != null) {
+                log(threadName, "Deleting session " + session.token + " failed: " + failure.getMessage());
+            } else if (response.statusCode() != 204) {
+                log(threadName, "Deleting session " + session.token + " failed with status code " 
+                    + response.statusCode());
+            } else {
+                log(threadName, "Session " + session.token + " deleted");
+            }
+            return null;
+        });
+    }
+    
+    // Waits for a session from createSessionAsync, rethrowing the failure of the request
+    static SessionInfo awaitSession(CompletableFuture<SessionInfo> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
         }
+    }
+    
+    private static SessionInfo parseSession(byte[] body, String threadName) {
+        log(threadName, "Session created successfully: " + new String(body, StandardCharsets.UTF_8));
         
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            throw new Exception("Request failed with status code " + responseCode);
-        }
+        // Only the fields used by the client are extracted, in one pass over the response
+        Map<String, String> fields = JsonFields.extract(body, SESSION_FIELDS);
+        String sessionToken = requiredField(fields, "token");
+        String host = requiredField(fields, "details.listener.host");
+        int port = Integer.parseInt(requiredField(fields, "details.listener.port"));
+        
+        log(threadName, "Token: " + sessionToken);
+        log(threadName, "Host: " + host);
+        log(threadName, "Port: " + port);
+        
+        SessionInfo session = new SessionInfo(host, port, sessionToken);
+        String expiration = fields.get("details.listener.expiration");
+        session.expiration = expiration == null || expiration.isEmpty() ? null : Instant.parse(expiration);
+        session.keepAliveTimeout = optDuration(fields, "details.keepAliveTimeout");
+        session.payloadRateLimit = optInt(fields, "details.payloadRateLimit");
+        session.payloadRateLimitDuration = optDuration(fields, "details.payloadRateLimitDuration");
+        session.payloadThroughputLimit = optInt(fields, "details.payloadThroughputLimit");
+        session.payloadThroughputLimitDuration = optDuration(fields, "details.payloadThroughputLimitDuration");
+        session.clockDiffLimit = optDuration(fields, "details.clockDiffLimit");
+        session.clockDiffLimitDuration = optDuration(fields, "details.clockDiffLimitDuration");
+        
+        log(threadName, String.format("Enforcement: keepAliveTimeout=%s, payloadRateLimit=%d/s over %s, "
+            + "payloadThroughputLimit=%d bytes/s over %s, clockDiffLimit=%s over %s", session.keepAliveTimeout, 
+            session.payloadRateLimit, session.payloadRateLimitDuration, session.payloadThroughputLimit, 
+            session.payloadThroughputLimitDuration, session.clockDiffLimit, session.clockDiffLimitDuration));
         
-        StringBuilder response = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
+        return session;
+    }
+    
+    private static String requiredField(Map<String, String> fields, String path) {
+        String value = fields.get(path);
+        if (value == null) {
+            throw new IllegalArgumentException("Session response without " + path);
+        }
+        return value;
+    }
+    
+    private static int optInt(Map<String, String> fields, String path) {
+        String value = fields.get(path);
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+    
+    private static Duration optDuration(Map<String, String> fields, String path) {
+        String value = fields.get(path);
+        return value == null || value.isEmpty() ? null : Duration.parse(value);
+    }
+    
+    // ======== TCP STREAMING FUNCTIONS ========
+    private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+    private static final long TIMER_TICK_MILLIS = 10;
+    private static StreamingEngine engine;
+    private static PayloadDispatcher dispatcher;
+    
+    // One timer wheel for the loop callbacks (keepalives, producer work) of all sessions
+    private static final class Timers {
+        static final TimerWheel WHEEL = new TimerWheel("timer-wheel", TIMER_TICK_MILLIS, 512);
+    }
+    
+    // Inbound frames of every session are recorded with STREAMING_API_RECORD_DIR, one recording per session name
+    private static final ConcurrentHashMap<String, WireRecorder> recorders = new ConcurrentHashMap<>();
+    
+    static WireRecorder recorder(String threadName) {
+        if (STREAMING_API_RECORD_DIR.isEmpty()) {
+            return null;
+        }
+        return recorders.computeIfAbsent(threadName, name -> {
+            try {
+                WireRecorder recorder = new WireRecorder(Path.of(STREAMING_API_RECORD_DIR), name, 
+                    WireRecorder.DEFAULT_SEGMENT_SIZE, WireRecorder.DEFAULT_MAX_SEGMENTS);
+                log(name, "Recording inbound frames to " + STREAMING_API_RECORD_DIR);
+                return recorder;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        });
+    }
+    
+    // One TLS context for all sessions, so reconnecting sessions resume their TLS sessions
+    private static final class Tls {
+        static final TlsTransport TRANSPORT = TlsTransport.withDefaultContext(SECURITY_MODE_TLS);
+    }
+    
+    interface StreamConnection extends Closeable {
+        OutboundPipeline outbound();
+        
+        default SessionMetrics metrics() {
+            return outbound().metrics();
         }
         
-        JSONObject responseData = new JSONObject(response.toString());
-        logJSON(threadName, "Session created successfully", responseData);
+        boolean isClosed();
         
-        String sessionToken = responseData.getString("token");
-        String host = responseData.getJSONObject("details").getJSONObject("listener").getString("host");
-        int port = responseData.getJSONObject("details").getJSONObject("listener").getInt("port");
+        /**
+         * Queues a complete frame for the next batch; the frame is copied and can be reused.
+         */
+        default void write(ByteBuffer frame) throws IOException {
+            write(frame, 1);
+        }
         
-        log(threadName, "Token: " + sessionToken);
-        log(threadName, "Host: " + host);
-        log(threadName, "Port: " + port);
+        /**
+         * Queues a run of complete frames, copied like a single frame.
+         */
+        default void write(ByteBuffer frames, int frameCount) throws IOException {
+            outbound().enqueue(frames, frameCount);
+        }
         
-        return new SessionInfo(host, port, sessionToken);
+        default void flush() throws IOException {
+            outbound().flush();
+        }
     }
     
-    private static void disableSSLVerification() throws Exception {
-        TrustManager[] trustAllCerts = new TrustManager[] {
-            new X509TrustManager() {
-                public java.security.cert.X509Certificate[] getAcceptedIssuers() { return null; }
-                public void checkClientTrusted(java.security.cert.X509Certificate[] certs, String authType) {}
-                public void checkServerTrusted(java.security.cert.X509Certificate[] certs, String authType) {}
+    static class SocketConnection implements StreamConnection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final OutboundPipeline outbound;
+        
+        SocketConnection(Socket socket) throws IOException {
+            this(socket, SessionMetrics.DETACHED);
+        }
+        
+        SocketConnection(Socket socket, SessionMetrics metrics) throws IOException {
+            this.socket = socket;
+            // Large enough for a regular batch, so each flush becomes one write (and one TLS record)
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 2 * OutboundPipeline.DEFAULT_MAX_BATCH_BYTES);
+            this.outbound = new OutboundPipeline(this::writeBatch, OutboundPipeline.DEFAULT_MAX_BATCH_BYTES, 
+                OutboundPipeline.DEFAULT_MAX_DELAY_NANOS, false, metrics);
+        }
+        
+        private boolean writeBatch(ByteBuffer[] buffers) throws IOException {
+            for (ByteBuffer buffer : buffers) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
             }
-        };
+            out.flush();
+            return true;
+        }
         
-        SSLContext sc = SSLContext.getInstance("SSL");
-        sc.init(null, trustAllCerts, new java.security.SecureRandom());
-        HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-        HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> true);
+        @Override
+        public OutboundPipeline outbound() {
+            return outbound;
+        }
+        
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
     }
     
-    // ======== TCP STREAMING FUNCTIONS ========
     private static Socket connect(String host, int port, boolean tls, String threadName) throws Exception {
         Socket socket;
         
         if (tls) {
-            SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(host, port);
-            sslSocket.startHandshake();
+            SSLSocket sslSocket = Tls.TRANSPORT.connect(host, port);
             
             log(threadName, String.format("Connected to %s:%d (TLS: %b)", host, port, tls));
             
@@ -180,169 +459,311 @@ public class Main {
         }
     }
     
-    private static void writeDatagram(Socket socket, byte[] datagram, String threadName) throws Exception {
-        ByteBuffer buffer = ByteBuffer.allocate(4 + datagram.length);
-        buffer.put(HEADER_PREFIX);
-        buffer.putShort((short) datagram.length);
-        buffer.put(datagram);
-        
-        byte[] frame = buffer.array();
-        log(threadName, "Writing frame " + asHexStream(frame));
-        
-        socket.getOutputStream().write(frame);
-        socket.getOutputStream().flush();
+    static void writeFrame(StreamConnection connection, ByteBuffer frame, String threadName) throws Exception {
+        frame.flip();
+        trace(threadName, "Writing frame {x}").data(frame, frame.position(), frame.remaining()).publish();
+        connection.write(frame);
+    }
+    
+    static void writeDatagram(StreamConnection connection, byte[] datagram, String threadName) throws Exception {
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodeDatagram(frame, datagram, 0, datagram.length);
+        writeFrame(connection, frame, threadName);
     }
     
-    private static void writeToken(Socket socket, String token, String threadName) throws Exception {
+    static void writeToken(StreamConnection connection, String token, String threadName) throws Exception {
         log(threadName, "Writing token " + token);
-        ByteBuffer datagram = ByteBuffer.allocate(1 + token.length());
-        datagram.put((byte) 0x01);
-        datagram.put(token.getBytes(StandardCharsets.US_ASCII));
-        writeDatagram(socket, datagram.array(), threadName);
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodeToken(frame, token);
+        writeFrame(connection, frame, threadName);
     }
     
-    private static void writeKeepalive(Socket socket, String threadName) throws Exception {
+    static void writeKeepalive(StreamConnection connection, String threadName) throws Exception {
         log(threadName, "Writing keep alive");
-        byte[] datagram = {0x00};
-        writeDatagram(socket, datagram, threadName);
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodeKeepalive(frame);
+        writeFrame(connection, frame, threadName);
     }
     
-    private static void writeTimestampResponse(Socket socket, long timestampT0, long timestampT1, String threadName) throws Exception {
-        long timestampT2 = currentTimestamp();
-        log(threadName, String.format("Writing timestamp response (t0: %d, t1: %d, t2: %d)", timestampT0, timestampT1, timestampT2));
-        
-        ByteBuffer datagram = ByteBuffer.allocate(25);
-        datagram.put((byte) 0x07);
-        datagram.putLong(timestampT0);
-        datagram.putLong(timestampT1);
-        datagram.putLong(timestampT2);
-        writeDatagram(socket, datagram.array(), threadName);
+    private static void writeTimestampResponse(StreamConnection connection, long timestampT0, long timestampT1, String threadName) throws Exception {
+        // Sent ahead of queued frames; t2 is stamped by the outbound pipeline right before the write
+        long timestampT2 = connection.outbound().enqueueTimestampResponse(timestampT0, timestampT1);
+        if (timestampT2 < 0) {
+            trace(threadName, "Timestamp response queued until writable (t0: {}, t1: {})")
+                .arg(timestampT0).arg(timestampT1).publish();
+        } else {
+            trace(threadName, "Wrote timestamp response (t0: {}, t1: {}, t2: {})")
+                .arg(timestampT0).arg(timestampT1).arg(timestampT2).publish();
+        }
     }
     
-    private static void writePayloadWithIdentifier(Socket socket, String identifier, byte payloadType, 
+    static void writePayloadWithIdentifier(StreamConnection connection, String identifier, byte payloadType, 
             byte[] payload, String threadName) throws Exception {
-        log(threadName, String.format("Writing payload with identifier (identifier: %s, payload_type: %s): %s",
-            identifier, asHexStream(new byte[]{payloadType}), asHexStream(payload)));
-        
-        ByteBuffer datagram = ByteBuffer.allocate(1 + 8 + 1 + 8 + payload.length);
-        datagram.put((byte) 0x05);
-        
-        // Pad identifier to 8 bytes
-        byte[] identifierBytes = identifier.getBytes(StandardCharsets.US_ASCII);
-        byte[] paddedIdentifier = new byte[8];
-        System.arraycopy(identifierBytes, 0, paddedIdentifier, 0, Math.min(identifierBytes.length, 8));
-        datagram.put(paddedIdentifier);
-        
-        datagram.put(payloadType);
-        datagram.putLong(currentTimestamp());
-        datagram.put(payload);
-        
-        writeDatagram(socket, datagram.array(), threadName);
+        writePayloadWithIdentifier(connection, identifier, payloadType, currentTimestamp(), 
+            payload, 0, payload.length, threadName);
     }
     
-    private static byte[] readDatagram(Socket socket, String threadName) throws Exception {
-        InputStream is = socket.getInputStream();
+    static void writePayloadWithIdentifier(StreamConnection connection, String identifier, byte payloadType, 
+            long originTimestamp, byte[] payload, int offset, int length, String threadName) throws Exception {
+        // Identifier is padded to 8 bytes while packing
+        writePayloadWithIdentifier(connection, DatagramCodec.packIdentifier(identifier), payloadType, 
+            originTimestamp, payload, offset, length, threadName);
+    }
+    
+    static void writePayloadWithIdentifier(StreamConnection connection, long identifierKey, byte payloadType, 
+            long originTimestamp, byte[] payload, int offset, int length, String threadName) throws Exception {
+        trace(threadName, "Writing payload with identifier (identifier: {i}, payload_type: {h}): {x}")
+            .arg(identifierKey).arg(payloadType).data(payload, offset, length).publish();
         
-        // Try non-blocking read
-        socket.setSoTimeout(10);
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodePayloadWithIdentifier(frame, identifierKey, payloadType, originTimestamp, 
+            payload, offset, length);
+        writeFrame(connection, frame, threadName);
+    }
+    
+    // Singleplex sessions only: the identifier is given by the session, so the datagram is 8 bytes shorter
+    static void writePayload(StreamConnection connection, byte payloadType, long originTimestamp, 
+            byte[] payload, int offset, int length, String threadName) throws Exception {
+        trace(threadName, "Writing payload (payload_type: {h}): {x}")
+            .arg(payloadType).data(payload, offset, length).publish();
         
-        byte[] header = new byte[4];
-        try {
-            int bytesRead = 0;
-            while (bytesRead < 4) {
-                int n = is.read(header, bytesRead, 4 - bytesRead);
-                if (n == -1) {
-                    throw new Exception("Socket disconnected");
-                }
-                bytesRead += n;
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodePayload(frame, payloadType, originTimestamp, payload, offset, length);
+        writeFrame(connection, frame, threadName);
+    }
+    
+    /**
+     * A payload of a batch for {@link #publish}; the identifier is left out on singleplex sessions.
+     */
+    record Payload(long identifierKey, byte payloadType, byte[] data) {
+        Payload(String identifier, byte payloadType, byte[] data) {
+            this(DatagramCodec.packIdentifier(identifier), payloadType, data);
+        }
+    }
+    
+    // Frames of a batch are handed to the pipeline in runs of about one regular batch
+    static final int PUBLISH_RUN_BYTES = OutboundPipeline.DEFAULT_MAX_BATCH_BYTES;
+    
+    /**
+     * Encodes a batch of payloads back to back into the frame buffer, as 0x04 on a singleplex
+     * session and 0x05 otherwise, and queues each run of frames with a single copy instead of one
+     * per payload. All payloads of the batch carry the same origin timestamp.
+     */
+    static void publish(StreamConnection connection, List<Payload> payloads, boolean singleplex, 
+            long originTimestamp, String threadName) throws Exception {
+        int overhead = singleplex ? DatagramCodec.PAYLOAD_FRAME_OVERHEAD 
+            : DatagramCodec.PAYLOAD_WITH_IDENTIFIER_FRAME_OVERHEAD;
+        ByteBuffer frames = DatagramCodec.frameBuffer();
+        int frameCount = 0;
+        for (Payload payload : payloads) {
+            byte[] data = payload.data();
+            if (frameCount > 0 && frames.position() + overhead + data.length > PUBLISH_RUN_BYTES) {
+                writeFrames(connection, frames, frameCount, threadName);
+                frames.clear();
+                frameCount = 0;
             }
-        } catch (SocketTimeoutException e) {
-            return null; // No data available
+            if (singleplex) {
+                DatagramCodec.encodePayload(frames, payload.payloadType(), originTimestamp, data, 0, data.length);
+            } else {
+                DatagramCodec.encodePayloadWithIdentifier(frames, payload.identifierKey(), payload.payloadType(), 
+                    originTimestamp, data, 0, data.length);
+            }
+            frameCount++;
         }
-        
-        log(threadName, "Received header " + asHexStream(header));
-        
-        if (header[0] != HEADER_PREFIX[0] || header[1] != HEADER_PREFIX[1]) {
-            throw new Exception(String.format("Framing error: header prefix %s != %s", 
-                asHexStream(new byte[]{header[0], header[1]}), asHexStream(HEADER_PREFIX)));
+        if (frameCount > 0) {
+            writeFrames(connection, frames, frameCount, threadName);
         }
+    }
+    
+    private static void writeFrames(StreamConnection connection, ByteBuffer frames, int frameCount, 
+            String threadName) throws Exception {
+        frames.flip();
+        trace(threadName, "Writing {} frames of {} bytes").arg(frameCount).arg(frames.remaining()).publish();
+        connection.write(frames, frameCount);
+    }
+    
+    static PayloadView readDatagram(InputStream is, ByteBuffer buffer, PayloadView view, String threadName) throws Exception {
+        return readDatagram(is, buffer, view, null, threadName);
+    }
+    
+    // Blocking reads park a virtual thread without occupying its carrier thread, so no polling is needed
+    static PayloadView readDatagram(InputStream is, ByteBuffer buffer, PayloadView view, WireRecorder recorder, 
+            String threadName) throws Exception {
+        readFully(is, buffer.array(), 0, DatagramCodec.HEADER_SIZE);
+        long receiveNanoTime = System.nanoTime();
+        trace(threadName, "Received header {x}").data(buffer, 0, DatagramCodec.HEADER_SIZE).publish();
         
-        int size = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
-        log(threadName, String.format("Trying to read %d bytes datagram", size));
+        int size = DatagramCodec.datagramSize(buffer, 0);
+        trace(threadName, "Trying to read {} bytes datagram").arg(size).publish();
         
-        // Set blocking for reading the full datagram
-        socket.setSoTimeout(0);
+        // The read buffer starts small and grows to the largest datagram seen
+        if (DatagramCodec.HEADER_SIZE + size > buffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(DatagramCodec.MAX_FRAME_SIZE, 
+                Math.max(2 * buffer.capacity(), DatagramCodec.HEADER_SIZE + size)));
+            System.arraycopy(buffer.array(), 0, grown.array(), 0, DatagramCodec.HEADER_SIZE);
+            buffer = grown;
+        }
         
-        byte[] datagram = new byte[size];
+        readFully(is, buffer.array(), DatagramCodec.HEADER_SIZE, size);
+        trace(threadName, "Received datagram {x}").data(buffer, DatagramCodec.HEADER_SIZE, size).publish();
+        if (recorder != null) {
+            recorder.record(buffer, 0, DatagramCodec.HEADER_SIZE + size, receiveNanoTime);
+        }
+        return view.wrap(buffer, DatagramCodec.HEADER_SIZE, size).receivedAt(receiveNanoTime);
+    }
+    
+    private static void readFully(InputStream is, byte[] dst, int offset, int length) throws Exception {
         int bytesRead = 0;
-        while (bytesRead < size) {
-            int n = is.read(datagram, bytesRead, size - bytesRead);
+        while (bytesRead < length) {
+            int n = is.read(dst, offset + bytesRead, length - bytesRead);
             if (n == -1) {
                 throw new Exception("Socket disconnected");
             }
             bytesRead += n;
         }
-        
-        log(threadName, "Received datagram " + asHexStream(datagram));
-        return datagram;
     }
     
-    private static void handleKeepalive(Socket socket, String threadName) {
-        log(threadName, "Keep alive received");
+    private static void handleKeepalive(StreamConnection connection, String threadName) {
+        trace(threadName, "Keep alive received").publish();
     }
     
-    private static void handleBye(Socket socket, byte[] datagram, String threadName) {
+    private static void handleBye(StreamConnection connection, PayloadView datagram, String threadName) {
         log(threadName, "Bye received");
-        if (datagram.length > 1) {
-            String reason = new String(datagram, 1, datagram.length - 1, StandardCharsets.UTF_8);
-            log(threadName, "Bye reason: " + reason);
+        if (datagram.length() > 1) {
+            log(threadName, "Bye reason: " + datagram.text());
         }
     }
     
     @FunctionalInterface
     interface PayloadCallback {
         void onPayload(String identifier, byte payloadType, long originTimestamp, byte[] payload);
+        
+        /**
+         * Receives the payload as a flyweight view that is only valid during the call. The default
+         * implementation decodes it for the callback above; implement {@link PayloadViewCallback}
+         * instead to consume payloads without allocations.
+         */
+        default void onPayload(PayloadView view) {
+            onPayload(view.identifier(), view.payloadType(), view.originTimestamp(), view.payloadBytes());
+        }
+    }
+    
+    @FunctionalInterface
+    interface PayloadViewCallback extends PayloadCallback {
+        @Override
+        void onPayload(PayloadView view);
+        
+        /**
+         * Encodes a decoded payload back into its datagram, 0x05 or 0x04 without an identifier,
+         * and passes a view of it on; allocates and is meant for callers of the decoded form only.
+         */
+        @Override
+        default void onPayload(String identifier, byte payloadType, long originTimestamp, byte[] payload) {
+            boolean hasIdentifier = identifier != null && !identifier.isEmpty();
+            ByteBuffer frame = ByteBuffer.allocate(DatagramCodec.HEADER_SIZE + 1 
+                + (hasIdentifier ? DatagramCodec.IDENTIFIER_SIZE : 0) + 1 + 8 + payload.length);
+            if (hasIdentifier) {
+                DatagramCodec.encodePayloadWithIdentifier(frame, identifier, payloadType, originTimestamp, 
+                    payload, 0, payload.length);
+            } else {
+                DatagramCodec.encodePayload(frame, payloadType, originTimestamp, payload, 0, payload.length);
+            }
+            onPayload(new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE, 
+                frame.position() - DatagramCodec.HEADER_SIZE));
+        }
     }
     
-    private static void handlePayloadWithIdentifier(Socket socket, byte[] datagram, 
+    private static void handlePayloadWithIdentifier(StreamConnection connection, PayloadView datagram, 
             PayloadCallback callback, String threadName) {
-        log(threadName, "Payload with identifier received");
+        trace(threadName, "Payload with identifier received").publish();
+        connection.metrics().payloadLatency(receiveTimestamp(datagram) - datagram.originTimestamp());
         
-        String identifier = new String(datagram, 1, 8, StandardCharsets.US_ASCII).trim();
-        byte payloadType = datagram[9];
-        long originTimestamp = ByteBuffer.wrap(datagram, 10, 8).getLong();
-        byte[] payload = new byte[datagram.length - 18];
-        System.arraycopy(datagram, 18, payload, 0, payload.length);
+        trace(threadName, "Payload received (identifier: {i}, payload_type: {h}, origin_timestamp: {}): {x}")
+            .arg(datagram.identifierKey()).arg(datagram.payloadType()).arg(datagram.originTimestamp())
+            .data(datagram.buffer(), datagram.payloadOffset(), datagram.payloadLength()).publish();
         
-        log(threadName, String.format("Payload received (identifier: %s, payload_type: %s, origin_timestamp: %d): %s",
-            identifier, asHexStream(new byte[]{payloadType}), originTimestamp, asHexStream(payload)));
+        callback.onPayload(datagram);
+    }
+    
+    private static void handlePayload(StreamConnection connection, PayloadView datagram, 
+            PayloadCallback callback, String threadName) {
+        trace(threadName, "Payload received (payload_type: {h}, origin_timestamp: {}): {x}")
+            .arg(datagram.payloadType()).arg(datagram.originTimestamp())
+            .data(datagram.buffer(), datagram.payloadOffset(), datagram.payloadLength()).publish();
+        connection.metrics().payloadLatency(receiveTimestamp(datagram) - datagram.originTimestamp());
         
-        callback.onPayload(identifier, payloadType, originTimestamp, payload);
+        callback.onPayload(datagram);
     }
     
-    private static void handleTimestampRequest(Socket socket, byte[] datagram, String threadName) throws Exception {
-        log(threadName, "Timestamp request received");
-        long timestampT0 = ByteBuffer.wrap(datagram, 1, 8).getLong();
-        long timestampT1 = currentTimestamp();
-        log(threadName, String.format("Timestamp request delta: %dms", timestampT1 - timestampT0));
-        writeTimestampResponse(socket, timestampT0, timestampT1, threadName);
+    private static void handleMonitorPayload(StreamConnection connection, PayloadView datagram, 
+            PayloadCallback callback, String threadName) {
+        trace(threadName, "Monitor payload received (original_type: {h}, publish: {}, sent: {})")
+            .arg(datagram.originalType()).arg(datagram.publishTimestamp()).arg(datagram.sentTimestamp()).publish();
+        callback.onPayload(datagram);
     }
     
-    private static void handleDatagram(Socket socket, byte[] datagram, PayloadCallback callback, String threadName) throws Exception {
-        byte datagramType = datagram[0];
+    private static void handleTimestampRequest(StreamConnection connection, PayloadView datagram, String threadName) throws Exception {
+        // t1 is the arrival of the frame header, not the time the datagram got handled
+        long receiveNanoTime = datagram.receiveNanoTime() != 0 ? datagram.receiveNanoTime() : System.nanoTime();
+        long timestampT0 = datagram.timestampT0();
+        long timestampT1 = clock.toMillis(receiveNanoTime);
+        trace(threadName, "Timestamp request received (delta: {}ms)").arg(timestampT1 - timestampT0).publish();
+        writeTimestampResponse(connection, timestampT0, timestampT1, threadName);
+        
+        // The sample is added after the response, so t1 and t2 are taken with the same correction
+        clock.onTimestampRequest(timestampT0, receiveNanoTime);
+        trace(threadName, "Clock synchronisation: {s}").text(clock).publish();
+    }
+    
+    private static void handleReconnect(StreamConnection connection, String threadName) throws Exception {
+        log(threadName, "Reconnect received, moving to a new session");
+        // Frames already staged still go out on this connection before it is closed
+        connection.flush();
+        throw new ReconnectingSession.ReconnectRequested();
+    }
+    
+    static void handleDatagram(StreamConnection connection, PayloadView datagram, PayloadCallback callback, String threadName) throws Exception {
+        byte datagramType = datagram.type();
+        
+        SessionMetrics metrics = connection.metrics();
+        metrics.received(datagramType, DatagramCodec.HEADER_SIZE + datagram.length());
+        if (datagram.receiveNanoTime() != 0) {
+            metrics.readStall(System.nanoTime() - datagram.receiveNanoTime());
+        }
+        if (!datagram.isValid()) {
+            // Invalid frames are discarded; the connection stays up
+            log(threadName, String.format("Discarding datagram of type %s, %d bytes are too short for it", 
+                asHexStream(new byte[]{datagramType}), datagram.length()));
+            return;
+        }
         
         switch (datagramType) {
-            case 0x00:
-                handleKeepalive(socket, threadName);
+            case DatagramCodec.KEEPALIVE:
+                handleKeepalive(connection, threadName);
+                break;
+            case DatagramCodec.BYE:
+                handleBye(connection, datagram, threadName);
                 break;
-            case 0x02:
-                handleBye(socket, datagram, threadName);
+            case DatagramCodec.PAYLOAD:
+                handlePayload(connection, datagram, callback, threadName);
                 break;
-            case 0x05:
-                handlePayloadWithIdentifier(socket, datagram, callback, threadName);
+            case DatagramCodec.PAYLOAD_WITH_IDENTIFIER:
+                handlePayloadWithIdentifier(connection, datagram, callback, threadName);
                 break;
-            case 0x06:
-                handleTimestampRequest(socket, datagram, threadName);
+            case DatagramCodec.TIMESTAMP_REQUEST:
+                handleTimestampRequest(connection, datagram, threadName);
+                break;
+            case DatagramCodec.MONITOR_PAYLOAD:
+                handleMonitorPayload(connection, datagram, callback, threadName);
+                break;
+            case DatagramCodec.RECONNECT:
+                handleReconnect(connection, threadName);
+                break;
+            case DatagramCodec.TOKEN:
+            case DatagramCodec.TIMESTAMP_RESPONSE:
+                // Client-to-service datagrams or not handled by this example
+                log(threadName, String.format("Unexpected datagram type %s received", 
+                    asHexStream(new byte[]{datagramType})));
                 break;
             default:
                 log(threadName, String.format("Unknown/unimplemented datagram type %s received", 
@@ -350,65 +771,138 @@ public class Main {
         }
     }
     
+    /**
+     * Periodic work of a session, such as keepalives and producing payloads. Returns the
+     * nanoseconds until it wants to run again; it is run by a timer on the shared wheel, so 0
+     * means the next tick.
+     */
     @FunctionalInterface
     interface LoopCallback {
-        void onLoop(Socket socket) throws Exception;
+        long onLoop(StreamConnection connection) throws Exception;
     }
     
-    private static void runStreamingClient(String host, int port, String sessionToken, boolean tls,
+    static void runStreamingClient(String host, int port, String sessionToken, boolean tls,
             PayloadCallback payloadCallback, LoopCallback loopCallback, String threadName) throws Exception {
+        if (dispatcher != null) {
+            // Payload callbacks run on the dispatcher workers, the reader only copies the datagram
+            payloadCallback = dispatcher.wrap(payloadCallback);
+        }
+        
+        if (engine != null) {
+            // Sessions run on the shared selector engine instead of a dedicated thread
+            StreamingEngine.Session session = engine.open(host, port, sessionToken, tls ? Tls.TRANSPORT : null, 
+                payloadCallback, loopCallback, metrics(threadName), threadName);
+            metrics(threadName).connected();
+            try {
+                session.awaitClose();
+            } finally {
+                session.close();
+            }
+            return;
+        }
+        
         Socket socket = connect(host, port, tls, threadName);
+        StreamConnection connection = new SocketConnection(socket, metrics(threadName));
+        connection.metrics().connected();
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        PayloadView view = new PayloadView();
+        WireRecorder recorder = recorder(threadName);
+        Thread loopThread = null;
         
         try {
             handshake(socket, threadName);
-            writeToken(socket, sessionToken, threadName);
+            writeToken(connection, sessionToken, threadName);
+            connection.flush();
+            
+            // The loop callback gets its own virtual thread, so the reader can block until data arrives
+            loopThread = Thread.ofVirtual().name(threadName + "-loop")
+                .start(() -> runLoop(socket, connection, loopCallback, threadName));
             
+            InputStream is = socket.getInputStream();
             while (!socket.isClosed()) {
-                byte[] datagram = readDatagram(socket, threadName);
-                if (datagram != null) {
-                    handleDatagram(socket, datagram, payloadCallback, threadName);
-                } else {
-                    Thread.sleep(10);
-                }
-                
-                loopCallback.onLoop(socket);
+                PayloadView datagram = readDatagram(is, readBuffer, view, recorder, threadName);
+                readBuffer = datagram.buffer();
+                handleDatagram(connection, datagram, payloadCallback, threadName);
+                connection.flush();
             }
         } finally {
+            if (loopThread != null) {
+                loopThread.interrupt();
+            }
+            log(threadName, "Outbound statistics: " + connection.outbound());
             socket.close();
         }
     }
     
+    private static void runLoop(Socket socket, StreamConnection connection, LoopCallback loopCallback, String threadName) {
+        // The thread stays parked until its timer fires; the timer only unparks it, as writes may block
+        Thread loopThread = Thread.currentThread();
+        AtomicBoolean due = new AtomicBoolean(true);
+        TimerWheel.Timeout timer = Timers.WHEEL.newTimeout(() -> {
+            due.set(true);
+            LockSupport.unpark(loopThread);
+        });
+        try {
+            while (!socket.isClosed() && !loopThread.isInterrupted()) {
+                if (!due.getAndSet(false)) {
+                    LockSupport.park(timer);
+                    continue;
+                }
+                long delayNanos = loopCallback.onLoop(connection);
+                connection.flush();
+                timer.schedule(delayNanos);
+            }
+        } catch (InterruptedException e) {
+            // Session ended
+        } catch (Exception e) {
+            log(threadName, "Loop failed: " + e.getMessage());
+            try {
+                // Closing the socket ends the blocked reader as well
+                socket.close();
+            } catch (IOException closeError) {
+                // Already closed
+            }
+        } finally {
+            timer.cancel();
+        }
+    }
+    
     // ======== PRODUCER ========
-    private static void runProducer() {
-        String threadName = "producer";
-        
+    private static void runProducer(String threadName) {
         try {
-            // Step 1: Create a session using the REST API
-            SessionInfo session = createSession("TLC", STREAMING_API_TLC_TOKEN, STREAMING_API_BASEURL, 
-                STREAMING_API_SECURITY_MODE, STREAMING_API_IDENTIFIER, threadName);
+            // Step 1: Create a session using the REST API (and a standby session, if enabled)
+            ReconnectingSession sessions = new ReconnectingSession(() -> createSessionAsync("TLC", 
+                STREAMING_API_TLC_TOKEN, STREAMING_API_BASEURL, STREAMING_API_SECURITY_MODE, STREAMING_API_PROTOCOL, 
+                List.of(STREAMING_API_IDENTIFIER), threadName), 
+                session -> deleteSessionAsync(session, STREAMING_API_TLC_TOKEN, STREAMING_API_BASEURL, threadName), 
+                STREAMING_API_STANDBY_SESSION, threadName);
             
-            // Step 2: Connect to the TCP Streaming Node
+            // Step 2: Connect to the TCP Streaming Node, and to the node of a new session after a Reconnect
             final long[] lastWrite = {currentTimestamp()};
-            
-            LoopCallback writeCallback = (socket) -> {
-                long now = currentTimestamp();
-                // Write a random payload every second
-                if (now - lastWrite[0] > 1000) {
-                    lastWrite[0] = now;
-                    byte[] payload = new byte[100];
-                    random.nextBytes(payload);
-                    writePayloadWithIdentifier(socket, STREAMING_API_IDENTIFIER, (byte) 0x02, payload, threadName);
+            final long identifierKey = DatagramCodec.packIdentifier(STREAMING_API_IDENTIFIER);
+            // Payloads still queued by the governor (or journal) are sent on the session after a reconnect
+            final PayloadGovernor[] governor = {null};
+            final OutboundJournal journal = STREAMING_API_JOURNAL_DIR.isEmpty() ? null 
+                : new OutboundJournal(Path.of(STREAMING_API_JOURNAL_DIR), threadName, 
+                    OutboundJournal.DEFAULT_SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS, 
+                    PROTOCOL_SINGLEPLEX.equals(STREAMING_API_PROTOCOL));
+            try {
+                sessions.run(session -> {
+                    // Each session has limits of its own, so the governor is built for it
+                    governor[0] = governor[0] == null 
+                        ? new PayloadGovernor(session, PayloadGovernor.Backpressure.DROP_OLDEST, 
+                            64, PayloadGovernor.DEFAULT_HEADROOM)
+                        : governor[0].forSession(session);
+                    metrics(threadName).track(governor[0]);
+                    streamProducer(session, governor[0], journal, lastWrite, identifierKey, threadName);
+                });
+            } finally {
+                log(threadName, "Session statistics: " + sessions);
+                if (journal != null) {
+                    log(threadName, "Journal statistics: " + journal);
+                    journal.close();
                 }
-            };
-            
-            PayloadCallback readPayloadCallback = (identifier, payloadType, originTimestamp, payload) -> {
-                log(threadName, String.format("Producer received payload from %s: type=0x%02x, timestamp=%d, size=%d",
-                    identifier, payloadType, originTimestamp, payload.length));
-            };
-            
-            boolean useTls = STREAMING_API_SECURITY_MODE.equals(SECURITY_MODE_TLS);
-            runStreamingClient(session.host, session.port, session.token, useTls, 
-                readPayloadCallback, writeCallback, threadName);
+            }
                 
         } catch (Exception e) {
             log(threadName, "Error: " + e.getMessage());
@@ -416,37 +910,173 @@ public class Main {
         }
     }
     
-    // ======== CONSUMER ========
-    private static void runConsumer() {
-        String threadName = "consumer";
+    private static void streamProducer(SessionInfo session, PayloadGovernor governor, OutboundJournal journal, 
+            long[] lastWrite, long identifierKey, String threadName) throws Exception {
+        LoopCallback writeCallback = (connection) -> {
+            long now = currentTimestamp();
+            // Write a random payload every second, within the rate and throughput limits of the session
+            if (now - lastWrite[0] >= 1000) {
+                lastWrite[0] = now;
+                byte[] payload = new byte[100];
+                random.nextBytes(payload);
+                if (journal != null) {
+                    journal.append(identifierKey, (byte) 0x02, now, payload, 0, payload.length);
+                } else {
+                    governor.writePayloadWithIdentifier(connection, identifierKey, (byte) 0x02, payload, threadName);
+                }
+            }
+            // Journaled payloads are sent (or replayed after a reconnect) as the session limits allow
+            if (journal != null) {
+                journal.send(connection, governor, threadName);
+            } else {
+                governor.drain(connection, threadName);
+            }
+            long keepAliveNanos = governor.maintainKeepAlive(connection, threadName);
+            // Payloads held back by the session limits are retried on the next tick
+            boolean backlog = journal != null ? journal.hasUnsent() : governor.queued() > 0;
+            return backlog ? 0 : Math.min(keepAliveNanos, TimeUnit.MILLISECONDS.toNanos(lastWrite[0] + 1000 - now));
+        };
+        
+        PayloadCallback readPayloadCallback = (identifier, payloadType, originTimestamp, payload) -> {
+            log(threadName, String.format("Producer received payload from %s: type=0x%02x, timestamp=%d, size=%d",
+                identifier, payloadType, originTimestamp, payload.length));
+        };
         
+        boolean useTls = STREAMING_API_SECURITY_MODE.equals(SECURITY_MODE_TLS);
+        runStreamingClient(session.host, session.port, session.token, useTls, 
+            readPayloadCallback, writeCallback, threadName);
+    }
+    
+    // ======== CONSUMER ========
+    private static final int CONFLATION_SLOTS = 1024;
+    private static final int CONFLATION_SLOT_SIZE = 256;
+    private static final long CONFLATION_IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    
+    private static void runConsumer(String threadName) {
         try {
-            // Step 1: Create a session using the REST API
-            SessionInfo session = createSession("Broker", STREAMING_API_BROKER_TOKEN, STREAMING_API_BASEURL, 
-                STREAMING_API_SECURITY_MODE, STREAMING_API_IDENTIFIER, threadName);
+            // Payloads are routed by packed identifier, without decoding the identifier or copying the payload
+            PayloadRouter router = new PayloadRouter(1);
+            final long subscribedKey = DatagramCodec.packIdentifier(STREAMING_API_IDENTIFIER);
+            PayloadViewCallback handler = view -> {
+                long latency = currentTimestamp() - view.originTimestamp();
+                info(threadName, "Consumer received payload from {i}: type={h}, timestamp={}, latency={}ms, size={}")
+                    .arg(view.hasIdentifier() ? view.identifierKey() : subscribedKey).arg(view.payloadType())
+                    .arg(view.originTimestamp()).arg(latency).arg(view.payloadLength()).publish();
+            };
+            router.subscribe(subscribedKey, handler);
+            if (PROTOCOL_SINGLEPLEX.equals(STREAMING_API_PROTOCOL)) {
+                // Singleplex payloads (0x04) carry no identifier (key 0); they all belong to the session's one
+                router.subscribe(0L, handler);
+            }
+            router.setFallback((PayloadViewCallback) view -> {
+                info(threadName, "Consumer received payload for unsubscribed identifier {i}")
+                    .arg(view.identifierKey()).publish();
+            });
             
-            // Step 2: Connect to the TCP Streaming Node
-            final long[] lastWrite = {currentTimestamp()};
+            // With conflation, the router only sees the latest payload per identifier and type when it falls behind
+            final ConflatingCache cache = STREAMING_API_CONFLATION 
+                ? new ConflatingCache(CONFLATION_SLOTS, CONFLATION_SLOT_SIZE) : null;
+            final PayloadCallback payloadCallback = cache != null ? cache : router;
+            Thread conflationThread = cache == null ? null : Thread.ofVirtual().name(threadName + "-conflation")
+                .start(() -> runConflation(cache, router, threadName));
+            
+            // Step 1: Create a session using the REST API (and a standby session, if enabled)
+            ReconnectingSession sessions = new ReconnectingSession(() -> createSessionAsync("Broker", 
+                STREAMING_API_BROKER_TOKEN, STREAMING_API_BASEURL, STREAMING_API_SECURITY_MODE, STREAMING_API_PROTOCOL, 
+                List.of(STREAMING_API_IDENTIFIER), threadName), 
+                session -> deleteSessionAsync(session, STREAMING_API_BROKER_TOKEN, STREAMING_API_BASEURL, threadName), 
+                STREAMING_API_STANDBY_SESSION, threadName);
             
-            LoopCallback writeCallback = (socket) -> {
-                long now = currentTimestamp();
-                // Write a keepalive every 5 seconds
-                if (now - lastWrite[0] > 5000) {
-                    lastWrite[0] = now;
-                    writeKeepalive(socket, threadName);
+            // Step 2: Connect to the TCP Streaming Node, and to the node of a new session after a Reconnect
+            sessions.run(session -> {
+                PayloadGovernor governor = new PayloadGovernor(session, PayloadGovernor.Backpressure.REJECT, 
+                    0, PayloadGovernor.DEFAULT_HEADROOM);
+                metrics(threadName).track(governor);
+                
+                LoopCallback writeCallback = (connection) -> {
+                    // Write a keepalive when idle for half the keep alive timeout (every 5 seconds if unknown)
+                    return governor.maintainKeepAlive(connection, threadName);
+                };
+                
+                boolean useTls = STREAMING_API_SECURITY_MODE.equals(SECURITY_MODE_TLS);
+                runStreamingClient(session.host, session.port, session.token, useTls, 
+                    payloadCallback, writeCallback, threadName);
+            });
+            
+            if (conflationThread != null) {
+                conflationThread.interrupt();
+                conflationThread.join();
+                log(threadName, "Conflation statistics: " + cache);
+            }
+            log(threadName, "Session statistics: " + sessions);
+            log(threadName, "Routing statistics: " + router);
+            router.forEach((identifierKey, route) -> log(threadName, "Route " + route));
+                
+        } catch (Exception e) {
+            log(threadName, "Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    // Hands the changed keys of the cache to the consumer, and frees the slots of idle identifiers
+    private static void runConflation(ConflatingCache cache, PayloadViewCallback consumer, String threadName) {
+        long nextEviction = System.nanoTime() + CONFLATION_IDLE_NANOS;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (cache.awaitChanges(1, TimeUnit.SECONDS)) {
+                    cache.drain(consumer, CONFLATION_SLOTS);
                 }
-            };
+                if (System.nanoTime() - nextEviction >= 0) {
+                    nextEviction = System.nanoTime() + CONFLATION_IDLE_NANOS;
+                    int evicted = cache.evictIdle(CONFLATION_IDLE_NANOS, TimeUnit.NANOSECONDS);
+                    if (evicted > 0) {
+                        log(threadName, "Evicted " + evicted + " idle identifiers from the conflation cache");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Consumer ended
+        }
+    }
+    
+    private static final int MONITOR_PUBLISHERS = 4096;
+    private static final int MONITOR_IDENTIFIERS = 16384;
+    private static final long MONITOR_REPORT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    
+    // Monitor session: copies of the payloads of the domain (0xF0), accounted per publisher and identifier
+    private static void runMonitor(String threadName) {
+        try {
+            MonitorAnalytics analytics = new MonitorAnalytics(MONITOR_PUBLISHERS, MONITOR_IDENTIFIERS);
+            long[] nextReport = {System.nanoTime() + MONITOR_REPORT_NANOS};
             
-            PayloadCallback readPayloadCallback = (identifier, payloadType, originTimestamp, payload) -> {
-                long latency = currentTimestamp() - originTimestamp;
-                log(threadName, String.format("Consumer received payload from %s: type=0x%02x, timestamp=%d, latency=%dms, size=%d",
-                    identifier, payloadType, originTimestamp, latency, payload.length));
-            };
+            ReconnectingSession sessions = new ReconnectingSession(() -> createSessionAsync("Monitor", 
+                STREAMING_API_MONITOR_TOKEN, STREAMING_API_BASEURL, STREAMING_API_SECURITY_MODE, 
+                List.of(STREAMING_API_IDENTIFIER), threadName), 
+                session -> deleteSessionAsync(session, STREAMING_API_MONITOR_TOKEN, STREAMING_API_BASEURL, threadName), 
+                STREAMING_API_STANDBY_SESSION, threadName);
             
-            boolean useTls = STREAMING_API_SECURITY_MODE.equals(SECURITY_MODE_TLS);
-            runStreamingClient(session.host, session.port, session.token, useTls, 
-                readPayloadCallback, writeCallback, threadName);
+            sessions.run(session -> {
+                PayloadGovernor governor = new PayloadGovernor(session, PayloadGovernor.Backpressure.REJECT, 
+                    0, PayloadGovernor.DEFAULT_HEADROOM);
+                metrics(threadName).track(governor);
+                
+                LoopCallback writeCallback = (connection) -> {
+                    long keepAliveNanos = governor.maintainKeepAlive(connection, threadName);
+                    if (System.nanoTime() - nextReport[0] >= 0) {
+                        nextReport[0] = System.nanoTime() + MONITOR_REPORT_NANOS;
+                        log(threadName, analytics.report(10));
+                    }
+                    return Math.min(keepAliveNanos, nextReport[0] - System.nanoTime());
+                };
                 
+                boolean useTls = STREAMING_API_SECURITY_MODE.equals(SECURITY_MODE_TLS);
+                runStreamingClient(session.host, session.port, session.token, useTls, 
+                    analytics, writeCallback, threadName);
+            });
+            
+            log(threadName, analytics.report(10));
+            log(threadName, "Session statistics: " + sessions);
+            
         } catch (Exception e) {
             log(threadName, "Error: " + e.getMessage());
             e.printStackTrace();
@@ -460,9 +1090,20 @@ public class Main {
         logger.info("STREAMING_API_BROKER_TOKEN: '" + STREAMING_API_BROKER_TOKEN + "'");
         logger.info("STREAMING_API_DOMAIN: '" + STREAMING_API_DOMAIN + "'");
         logger.info("STREAMING_API_SECURITY_MODE: '" + STREAMING_API_SECURITY_MODE + "'");
+        logger.info("STREAMING_API_PROTOCOL: '" + STREAMING_API_PROTOCOL + "'");
+        logger.info("STREAMING_API_IO_THREADS: '" + STREAMING_API_IO_THREADS + "'");
+        logger.info("STREAMING_API_LOG_LEVEL: '" + STREAMING_API_LOG_LEVEL + "'");
+        logger.info("STREAMING_API_DISPATCH_THREADS: '" + STREAMING_API_DISPATCH_THREADS + "'");
+        logger.info("STREAMING_API_CLOCK_SYNC: '" + STREAMING_API_CLOCK_SYNC + "'");
+        logger.info("STREAMING_API_STANDBY_SESSION: '" + STREAMING_API_STANDBY_SESSION + "'");
+        logger.info("STREAMING_API_JOURNAL_DIR: '" + STREAMING_API_JOURNAL_DIR + "'");
+        logger.info("STREAMING_API_CONFLATION: '" + STREAMING_API_CONFLATION + "'");
+        logger.info("STREAMING_API_MONITOR_TOKEN: '" + STREAMING_API_MONITOR_TOKEN + "'");
+        logger.info("STREAMING_API_METRICS_PORT: '" + STREAMING_API_METRICS_PORT + "'");
+        logger.info("STREAMING_API_RECORD_DIR: '" + STREAMING_API_RECORD_DIR + "'");
     }
     
-    private static void configureLogging() {
+    static void configureLogging(Level level) {
         Logger rootLogger = Logger.getLogger("");
         // Remove default handlers
         Handler[] handlers = rootLogger.getHandlers();
@@ -480,25 +1121,83 @@ public class Main {
             }
         });
         rootLogger.addHandler(consoleHandler);
-        rootLogger.setLevel(Level.INFO);
-        consoleHandler.setLevel(Level.INFO);
+        
+        // FINE includes the wire trace of every frame, INFO keeps only session events
+        rootLogger.setLevel(level);
+        consoleHandler.setLevel(level);
+        asyncLog.setLevel(level);
+    }
+    
+    // Writes out the queued log records; call before the JVM exits
+    static void closeLogging() {
+        asyncLog.close();
     }
     
     public static void main(String[] args) {
-        configureLogging();
+        configureLogging(Level.parse(STREAMING_API_LOG_LEVEL));
         dumpConfig();
         
-        Thread producerThread = new Thread(Main::runProducer, "producer");
-        Thread consumerThread = new Thread(Main::runConsumer, "consumer");
+        if (STREAMING_API_IO_THREADS > 0) {
+            try {
+                engine = new StreamingEngine(STREAMING_API_IO_THREADS, Timers.WHEEL);
+            } catch (IOException e) {
+                logger.severe("Failed to start streaming engine: " + e.getMessage());
+                asyncLog.close();
+                return;
+            }
+        }
+        if (STREAMING_API_METRICS_PORT > 0) {
+            try {
+                Metrics.REGISTRY.serve(STREAMING_API_METRICS_PORT);
+                logger.info("Serving metrics on http://127.0.0.1:" + STREAMING_API_METRICS_PORT + "/metrics");
+            } catch (IOException e) {
+                logger.warning("Failed to start metrics endpoint: " + e.getMessage());
+            }
+        }
+        if (STREAMING_API_DISPATCH_THREADS > 0) {
+            dispatcher = new PayloadDispatcher(STREAMING_API_DISPATCH_THREADS, 1024, 
+                PayloadDispatcher.Overflow.DROP_OLDEST);
+        }
         
-        producerThread.start();
-        consumerThread.start();
+        // Every session runs on its own virtual thread; more sessions can be added at runtime
+        SessionManager sessions = new SessionManager();
+        sessions.add("producer", Main::runProducer);
+        sessions.add("consumer", Main::runConsumer);
+        if (!STREAMING_API_MONITOR_TOKEN.isEmpty()) {
+            sessions.add("monitor", Main::runMonitor);
+        }
         
         try {
-            producerThread.join();
-            consumerThread.join();
+            while (!sessions.awaitAll(60_000)) {
+                logger.info("Session memory: " + sessions.memoryReport());
+            }
         } catch (InterruptedException e) {
             logger.severe("Thread interrupted: " + e.getMessage());
+        } finally {
+            sessions.close();
+            if (engine != null) {
+                engine.close();
+            }
+            if (dispatcher != null) {
+                dispatcher.close();
+                logger.info("Dispatcher statistics: " + dispatcher);
+            }
+            if (STREAMING_API_SECURITY_MODE.equals(SECURITY_MODE_TLS)) {
+                logger.info("TLS statistics: " + Tls.TRANSPORT);
+            }
+            logger.info("Timer statistics: " + Timers.WHEEL);
+            Timers.WHEEL.close();
+            logger.info("Session metrics: " + Metrics.REGISTRY);
+            Metrics.REGISTRY.close();
+            recorders.forEach((name, recorder) -> {
+                try {
+                    recorder.close();
+                    logger.info("Wire recording of " + name + ": " + recorder);
+                } catch (IOException e) {
+                    logger.warning("Failed to close the wire recording of " + name + ": " + e.getMessage());
+                }
+            });
+            asyncLog.close();
         }
     }
 }
\ No newline at end of file
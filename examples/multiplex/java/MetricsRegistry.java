@@ -0,0 +1,335 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Registry of the {@link SessionMetrics} of all sessions, and their exposition.
+ *
+ * Every session is registered as a JMX MBean ({@code multiplex:type=Session,name=<session>}),
+ * next to {@code multiplex:type=Session,name=total} with the counters summed over all sessions
+ * and the process-wide gauges. The same metrics can be served as Prometheus text on a local HTTP
+ * endpoint ({@code /metrics}), one series per session and datagram type.
+ *
+ * Values are only read when JMX or the endpoint asks for them, so the cost on the streaming
+ * threads is that of the counters themselves.
+ */
+final class MetricsRegistry implements Closeable {
+    private static final String DOMAIN = "multiplex";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentHashMap<String, SessionMetrics> sessions = new ConcurrentHashMap<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+    private final List<ObjectName> registered = new CopyOnWriteArrayList<>();
+    private final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+    private volatile HttpServer http;
+
+    private record Gauge(String name, String help, DoubleSupplier value) {
+    }
+
+    MetricsRegistry() {
+        register("total", this::totals);
+    }
+
+    /**
+     * Returns the metrics of the named session, created and registered on first use.
+     */
+    SessionMetrics session(String name) {
+        return sessions.computeIfAbsent(name, key -> {
+            SessionMetrics metrics = new SessionMetrics(key);
+            register(key, metrics::attributes);
+            return metrics;
+        });
+    }
+
+    /**
+     * Adds a process-wide gauge, such as the clock offset.
+     */
+    void gauge(String name, String help, DoubleSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    /**
+     * Serves the metrics as Prometheus text on {@code http://127.0.0.1:<port>/metrics}.
+     */
+    void serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        server.createContext("/metrics", this::handleScrape);
+        server.start();
+        http = server;
+    }
+
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // ======== PROMETHEUS ========
+
+    /**
+     * Returns all metrics in the Prometheus text exposition format.
+     */
+    String scrape() {
+        List<SessionMetrics> all = new ArrayList<>(sessions.values());
+        StringBuilder sb = new StringBuilder(4096);
+
+        perType(sb, all, "streaming_datagrams_received_total", "Datagrams received.", SessionMetrics::datagramsReceived);
+        perType(sb, all, "streaming_bytes_received_total", "Bytes of received frames.", SessionMetrics::bytesReceived);
+        perType(sb, all, "streaming_datagrams_sent_total", "Datagrams written to the socket.", SessionMetrics::datagramsSent);
+        perType(sb, all, "streaming_bytes_sent_total", "Bytes of frames written to the socket.", SessionMetrics::bytesSent);
+
+        perSession(sb, all, "streaming_read_stall_seconds_total", "counter",
+            "Time received frames waited between their first bytes arriving and being handled.",
+            m -> m.readStallNanos() / 1e9);
+        perSession(sb, all, "streaming_write_stall_seconds_total", "counter",
+            "Time outbound batches took to be taken by the socket.", m -> m.writeStallNanos() / 1e9);
+        perSession(sb, all, "streaming_connections_total", "counter", "Streaming connections opened.",
+            m -> m.connections());
+        perSession(sb, all, "streaming_reconnects_total", "counter", "Reconnects requested by a Streaming Node.",
+            m -> m.reconnects());
+        perSession(sb, all, "streaming_rate_limit_headroom_ratio", "gauge",
+            "Unused fraction of the PayloadRateLimit in the current window.", SessionMetrics::rateHeadroom);
+        perSession(sb, all, "streaming_throughput_limit_headroom_ratio", "gauge",
+            "Unused fraction of the PayloadThroughputLimit in the current window.", SessionMetrics::throughputHeadroom);
+
+        header(sb, "streaming_payload_latency_seconds", "summary",
+            "End-to-end payload latency from the origin timestamp to the arrival.");
+        for (SessionMetrics metrics : all) {
+            LatencyHistogram latency = metrics.payloadLatency();
+            if (latency.count() == 0) {
+                continue;
+            }
+            for (double quantile : QUANTILES) {
+                sample(sb, "streaming_payload_latency_seconds", metrics.name, "quantile", Double.toString(quantile),
+                    latency.percentile(quantile) / 1e9);
+            }
+            sample(sb, "streaming_payload_latency_seconds_sum", metrics.name, null, null,
+                latency.mean() * latency.count() / 1e9);
+            sample(sb, "streaming_payload_latency_seconds_count", metrics.name, null, null, latency.count());
+        }
+
+        for (Gauge gauge : gauges) {
+            header(sb, gauge.name(), "gauge", gauge.help());
+            sb.append(gauge.name()).append(' ').append(gauge.value().getAsDouble()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private interface PerType {
+        long value(SessionMetrics metrics, int typeIndex);
+    }
+
+    private static void perType(StringBuilder sb, List<SessionMetrics> all, String name, String help, PerType value) {
+        header(sb, name, "counter", help);
+        for (SessionMetrics metrics : all) {
+            for (int i = 0; i < SessionMetrics.TYPE_NAMES.length; i++) {
+                long count = value.value(metrics, i);
+                // Types a session never saw are left out rather than reported as 0
+                if (count > 0) {
+                    sample(sb, name, metrics.name, "type", SessionMetrics.TYPE_NAMES[i], count);
+                }
+            }
+        }
+    }
+
+    private static void perSession(StringBuilder sb, List<SessionMetrics> all, String name, String type,
+            String help, ToDoubleFunction<SessionMetrics> value) {
+        header(sb, name, type, help);
+        for (SessionMetrics metrics : all) {
+            sample(sb, name, metrics.name, null, null, value.applyAsDouble(metrics));
+        }
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String session, String label, String labelValue,
+            double value) {
+        sb.append(name).append("{session=\"");
+        escape(sb, session);
+        sb.append('"');
+        if (label != null) {
+            sb.append(',').append(label).append("=\"");
+            escape(sb, labelValue);
+            sb.append('"');
+        }
+        sb.append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    // ======== JMX ========
+
+    private void register(String name, Supplier<Map<String, Object>> attributes) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=Session,name=" + ObjectName.quote(name));
+            mbeans.registerMBean(new SnapshotMBean(attributes), objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            Main.log("metrics", "Failed to register MBean for " + name + ": " + e.getMessage());
+        }
+    }
+
+    private Map<String, Object> totals() {
+        Map<String, Object> totals = new LinkedHashMap<>();
+        totals.put("Sessions", sessions.size());
+        sum(totals, "DatagramsReceived", m -> sumTypes(m, SessionMetrics::datagramsReceived));
+        sum(totals, "BytesReceived", m -> sumTypes(m, SessionMetrics::bytesReceived));
+        sum(totals, "DatagramsSent", m -> sumTypes(m, SessionMetrics::datagramsSent));
+        sum(totals, "BytesSent", m -> sumTypes(m, SessionMetrics::bytesSent));
+        sum(totals, "ReadStallMillis", m -> m.readStallNanos() / 1_000_000);
+        sum(totals, "WriteStallMillis", m -> m.writeStallNanos() / 1_000_000);
+        sum(totals, "Connections", SessionMetrics::connections);
+        sum(totals, "Reconnects", SessionMetrics::reconnects);
+        for (Gauge gauge : gauges) {
+            totals.put(gauge.name(), gauge.value().getAsDouble());
+        }
+        return totals;
+    }
+
+    private void sum(Map<String, Object> totals, String name, ToLongFunction<SessionMetrics> value) {
+        long total = 0;
+        for (SessionMetrics metrics : sessions.values()) {
+            total += value.applyAsLong(metrics);
+        }
+        totals.put(name, total);
+    }
+
+    private static long sumTypes(SessionMetrics metrics, PerType value) {
+        long total = 0;
+        for (int i = 0; i < SessionMetrics.TYPE_NAMES.length; i++) {
+            total += value.value(metrics, i);
+        }
+        return total;
+    }
+
+    /**
+     * Read-only MBean whose attributes are a snapshot taken on every request.
+     */
+    private static final class SnapshotMBean implements DynamicMBean {
+        private final Supplier<Map<String, Object>> attributes;
+
+        SnapshotMBean(Supplier<Map<String, Object>> attributes) {
+            this.attributes = attributes;
+        }
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Object value = attributes.get().get(name);
+            if (value == null) {
+                throw new AttributeNotFoundException(name);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> snapshot = attributes.get();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (snapshot.containsKey(name)) {
+                    list.add(new Attribute(name, snapshot.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : attributes.get().entrySet()) {
+                infos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(SessionMetrics.class.getName(), "Streaming session metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sessions.forEach((name, metrics) -> sb.append("\n  ").append(name).append(": ").append(metrics));
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        HttpServer server = http;
+        if (server != null) {
+            server.stop(0);
+        }
+        for (ObjectName name : registered) {
+            try {
+                mbeans.unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+    }
+}
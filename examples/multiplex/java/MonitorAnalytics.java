@@ -0,0 +1,322 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Latency and rate analytics over the monitor payloads (0xF0) of a Monitor session.
+ *
+ * Every monitor payload is accounted to its publisher (the publisher token) and to its TLC
+ * identifier: message and byte counts, and latency histograms from publish to sent (inside the
+ * Streaming Service) and from sent to received (service to client, by the synchronised clock).
+ * Payloads are read in place through the {@link PayloadView}; publishers are looked up by a hash of
+ * the token bytes and identifiers by their packed key, so recording allocates nothing once a
+ * publisher or identifier was seen. Both tables have a fixed capacity, and payloads of publishers
+ * or identifiers beyond it only count towards the totals. Originals without an identifier (0x04
+ * of singleplex publishers) are counted apart instead of under an empty identifier.
+ *
+ * {@link #report} summarises the interval since the previous report, rates and latency
+ * percentiles, for all payloads and the busiest publishers and identifiers, and starts a new one.
+ */
+final class MonitorAnalytics implements Main.PayloadViewCallback {
+    private static final int TOKEN_LABEL_LENGTH = 12;
+
+    // A lock rather than synchronized: payloads arrive from the reader or several dispatcher workers
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Stats total = new Stats("total");
+    private final Stats[] publishers;
+    private final long[] publisherHashes;
+    private final int maxPublishers;
+    private int publisherCount;
+    private final IdentifierMap<Stats> identifiers;
+    private final int maxIdentifiers;
+
+    private long untrackedPublishers;
+    private long untrackedIdentifiers;
+    private long withoutIdentifier;
+    private long ignored;
+    private long intervalStartNanos = System.nanoTime();
+
+    MonitorAnalytics(int maxPublishers, int maxIdentifiers) {
+        // Open addressing at a load factor of at most 0.5
+        int capacity = Integer.highestOneBit(Math.max(2, maxPublishers) * 2 - 1) << 1;
+        this.publishers = new Stats[capacity];
+        this.publisherHashes = new long[capacity];
+        this.maxPublishers = maxPublishers;
+        this.identifiers = new IdentifierMap<>(maxIdentifiers);
+        this.maxIdentifiers = maxIdentifiers;
+    }
+
+    @Override
+    public void onPayload(PayloadView view) {
+        if (view.type() != DatagramCodec.MONITOR_PAYLOAD) {
+            lock.lock();
+            try {
+                ignored++;
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+
+        long receivedTimestamp = Main.receiveTimestamp(view);
+        long publishToSent = view.sentTimestamp() - view.publishTimestamp();
+        long sentToReceived = receivedTimestamp - view.sentTimestamp();
+        int bytes = view.payloadLength();
+        boolean hasIdentifier = view.hasIdentifier();
+        long identifierKey = view.identifierKey();
+
+        lock.lock();
+        try {
+            total.record(publishToSent, sentToReceived, bytes);
+
+            Stats publisher = publisher(view.buffer(), view.publisherTokenOffset(), view.publisherTokenLength());
+            if (publisher != null) {
+                publisher.record(publishToSent, sentToReceived, bytes);
+            } else {
+                untrackedPublishers++;
+            }
+
+            if (!hasIdentifier) {
+                withoutIdentifier++;
+                return;
+            }
+            Stats identifier = identifiers.get(identifierKey);
+            if (identifier == null && identifiers.size() < maxIdentifiers) {
+                identifier = new Stats(DatagramCodec.unpackIdentifier(identifierKey));
+                identifiers.put(identifierKey, identifier);
+            }
+            if (identifier != null) {
+                identifier.record(publishToSent, sentToReceived, bytes);
+            } else {
+                untrackedIdentifiers++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // FNV-1a over the token bytes
+    static long hash(ByteBuffer buffer, int offset, int length) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (buffer.get(offset + i) & 0xFF)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    // The slot where probing for a token starts, in a table of the given power of two capacity
+    static int slot(long hash, int capacity) {
+        return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+    }
+
+    private Stats publisher(ByteBuffer buffer, int offset, int length) {
+        long hash = hash(buffer, offset, length);
+        int mask = publishers.length - 1;
+        for (int index = slot(hash, publishers.length); ; index = (index + 1) & mask) {
+            Stats stats = publishers[index];
+            if (stats == null) {
+                if (publisherCount == maxPublishers) {
+                    return null;
+                }
+                byte[] token = new byte[length];
+                buffer.get(offset, token);
+                stats = new Stats(label(token));
+                stats.token = token;
+                publishers[index] = stats;
+                publisherHashes[index] = hash;
+                publisherCount++;
+                return stats;
+            }
+            if (publisherHashes[index] == hash && stats.hasToken(buffer, offset, length)) {
+                return stats;
+            }
+        }
+    }
+
+    private static String label(byte[] token) {
+        // Only the start of the token is shown, enough to tell publishers apart
+        int length = Math.min(token.length, TOKEN_LABEL_LENGTH);
+        String start = new String(token, 0, length, StandardCharsets.US_ASCII);
+        return token.length > length ? start + "..." : start;
+    }
+
+    /**
+     * Returns a summary of the interval since the previous report, with the {@code top}
+     * publishers and identifiers by messages, and starts a new interval.
+     */
+    String report(int top) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            double seconds = Math.max(1e-9, (now - intervalStartNanos) / 1e9);
+            intervalStartNanos = now;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Monitor analytics over %.1fs: publishers=%d, identifiers=%d, "
+                + "untracked_publisher_payloads=%d, untracked_identifier_payloads=%d, "
+                + "payloads_without_identifier=%d, ignored=%d", seconds, publisherCount, identifiers.size(),
+                untrackedPublishers, untrackedIdentifiers, withoutIdentifier, ignored));
+            total.appendTo(sb.append("\n  "), seconds);
+
+            List<Stats> busiest = new ArrayList<>();
+            for (Stats publisher : publishers) {
+                if (publisher != null) {
+                    busiest.add(publisher);
+                }
+            }
+            appendTop(sb, "publisher", busiest, top, seconds);
+
+            busiest.clear();
+            identifiers.forEach((key, identifier) -> busiest.add(identifier));
+            appendTop(sb, "identifier", busiest, top, seconds);
+
+            total.resetInterval();
+            return sb.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void appendTop(StringBuilder sb, String kind, List<Stats> stats, int top, double seconds) {
+        stats.sort(Comparator.comparingLong((Stats s) -> s.intervalMessages).reversed());
+        for (int i = 0; i < stats.size(); i++) {
+            if (i < top && stats.get(i).intervalMessages > 0) {
+                stats.get(i).appendTo(sb.append("\n  ").append(kind).append(' '), seconds);
+            }
+            stats.get(i).resetInterval();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("messages=%d, bytes=%d, publishers=%d, identifiers=%d",
+                total.messages, total.bytes, publisherCount, identifiers.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ======== STATISTICS ========
+
+    private static final class Stats {
+        final String label;
+        byte[] token;
+        long messages;
+        long bytes;
+        long intervalMessages;
+        long intervalBytes;
+        final Histogram publishToSent = new Histogram();
+        final Histogram sentToReceived = new Histogram();
+
+        Stats(String label) {
+            this.label = label;
+        }
+
+        void record(long publishToSentMillis, long sentToReceivedMillis, int payloadBytes) {
+            messages++;
+            bytes += payloadBytes;
+            intervalMessages++;
+            intervalBytes += payloadBytes;
+            publishToSent.record(publishToSentMillis);
+            sentToReceived.record(sentToReceivedMillis);
+        }
+
+        boolean hasToken(ByteBuffer buffer, int offset, int length) {
+            if (token.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (token[i] != buffer.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void resetInterval() {
+            if (intervalMessages > 0) {
+                intervalMessages = 0;
+                intervalBytes = 0;
+                publishToSent.reset();
+                sentToReceived.reset();
+            }
+        }
+
+        void appendTo(StringBuilder sb, double seconds) {
+            sb.append(String.format("%s: %.1f msg/s, %.1f KB/s, messages=%d, publish->sent %s, sent->received %s",
+                label, intervalMessages / seconds, intervalBytes / seconds / 1e3, messages, publishToSent, sentToReceived));
+        }
+    }
+
+    /**
+     * Log-linear histogram of millisecond latencies in fixed memory: 8 linear buckets per power of
+     * two (values within 12.5%) up to {@link Integer#MAX_VALUE}, 232 counters in all. Unlike the
+     * concurrent {@link LatencyHistogram} (15 KiB of atomics), it is guarded by the analytics lock
+     * and small enough to keep two for each of thousands of publishers and identifiers.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (Integer.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final int[] counts = new int[BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long value) {
+            // Negative latencies come from clock differences and are counted as 0
+            value = Math.min(Math.max(0, value), Integer.MAX_VALUE);
+            counts[bucketOf(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        void reset() {
+            Arrays.fill(counts, 0);
+            count = 0;
+            max = 0;
+        }
+
+        long percentile(double fraction) {
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + ((int) (value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift) + (1L << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "-";
+            }
+            return String.format("p50=%dms p99=%dms max=%dms", percentile(0.5), percentile(0.99), max);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only journal of outgoing payload frames, in memory-mapped segment files.
+ *
+ * Producers append payloads, which are encoded straight into the mapped segment, and
+ * {@link #send} hands journaled frames to the connection as far as the session limits allow. The
+ * journal keeps three offsets into the stream of frames: written (appended), sent (handed to the
+ * connection) and acknowledged (written to the socket by the connection's
+ * {@link OutboundPipeline}). When the connection changes, for example after a Bye, a disconnect
+ * or a Reconnect, sending restarts from the acknowledged offset, so frames that never left the
+ * client are replayed on the new connection, again within the limits of the session.
+ *
+ * Segments that are completely acknowledged are recycled for new appends. If the unacknowledged
+ * frames fill all segments, the oldest segment is dropped, like the oldest queued payload of a
+ * {@link PayloadGovernor.Backpressure#DROP_OLDEST} governor. The segment files only live as long
+ * as the journal; they are not recovered after a restart.
+ */
+final class OutboundJournal implements Closeable {
+    static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+    static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    private static final int MAX_PENDING_ACKS = 64;
+
+    // A lock rather than synchronized: frames are handed to the connection while holding it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Path directory;
+    private final String name;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final boolean singleplex;
+    private final int payloadHeaderSize;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ArrayDeque<Segment> free = new ArrayDeque<>();
+    private final List<Path> files = new ArrayList<>();
+
+    private long writeOffset;
+    private long sentOffset;
+    private long ackedOffset;
+
+    // Pipeline position after each send, and the journal offset that is acknowledged once the pipeline wrote it
+    private OutboundPipeline pipeline;
+    private final long[] ackPipelineMarks = new long[MAX_PENDING_ACKS];
+    private final long[] ackJournalMarks = new long[MAX_PENDING_ACKS];
+    private int ackHead;
+    private int ackSize;
+
+    private long appended;
+    private long sent;
+    private long replayed;
+    private long dropped;
+    private long recycled;
+
+    OutboundJournal(Path directory, String name, int segmentSize, int maxSegments) throws IOException {
+        this(directory, name, segmentSize, maxSegments, false);
+    }
+
+    /**
+     * Creates a journal for the sessions of one protocol: its frames are 0x04 payloads for
+     * singleplex sessions, 0x05 payloads otherwise.
+     */
+    OutboundJournal(Path directory, String name, int segmentSize, int maxSegments, boolean singleplex)
+            throws IOException {
+        if (segmentSize < DatagramCodec.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is below the maximum frame size");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxSegments);
+        this.singleplex = singleplex;
+        this.payloadHeaderSize = singleplex ? DatagramCodec.PAYLOAD_FRAME_OVERHEAD
+            : DatagramCodec.PAYLOAD_WITH_IDENTIFIER_FRAME_OVERHEAD;
+        segments.add(newSegment(0));
+    }
+
+    /**
+     * Appends a 0x05 payload, or a 0x04 payload without the identifier to a singleplex journal;
+     * it is sent by the next {@link #send}.
+     */
+    void append(long identifierKey, byte payloadType, long originTimestamp, byte[] payload, int offset, int length)
+            throws IOException {
+        int frameSize = payloadHeaderSize + length;
+        if (frameSize > DatagramCodec.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes exceeds the maximum datagram size");
+        }
+        lock.lock();
+        try {
+            Segment tail = segments.peekLast();
+            if (segmentSize - tail.limit < frameSize) {
+                tail = nextSegment();
+            }
+            tail.buffer.position(tail.limit);
+            if (singleplex) {
+                DatagramCodec.encodePayload(tail.buffer, payloadType, originTimestamp, payload, offset, length);
+            } else {
+                DatagramCodec.encodePayloadWithIdentifier(tail.buffer, identifierKey, payloadType, originTimestamp,
+                    payload, offset, length);
+            }
+            tail.limit += frameSize;
+            writeOffset += frameSize;
+            appended++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands unsent frames to the connection while the governor admits them (all of them without a
+     * governor). On a connection other than the last one, the frames that were not acknowledged
+     * are sent again first.
+     */
+    void send(Main.StreamConnection connection, PayloadGovernor governor, String threadName) throws Exception {
+        lock.lock();
+        try {
+            OutboundPipeline outbound = connection.outbound();
+            if (outbound != pipeline) {
+                acknowledge();
+                if (sentOffset > ackedOffset) {
+                    long frames = countFrames(ackedOffset, sentOffset);
+                    replayed += frames;
+                    Main.log(threadName, "Replaying " + frames + " journaled frames that were not written before the disconnect");
+                }
+                sentOffset = ackedOffset;
+                pipeline = outbound;
+                ackSize = 0;
+            } else {
+                acknowledge();
+            }
+
+            if (sentOffset == writeOffset) {
+                return;
+            }
+
+            // Consecutive frames are handed over in runs of up to one batch, each copied in one step
+            long start = sentOffset;
+            long runStart = sentOffset;
+            int runFrames = 0;
+            Segment segment = segmentAt(sentOffset);
+            while (sentOffset < writeOffset) {
+                if (sentOffset == segment.end()) {
+                    writeRun(connection, segment, runStart, runFrames);
+                    segment = segmentAt(sentOffset);
+                    runStart = sentOffset;
+                    runFrames = 0;
+                }
+                int position = (int) (sentOffset - segment.base);
+                int frameSize = DatagramCodec.HEADER_SIZE + DatagramCodec.datagramSize(segment.buffer, position);
+                if (governor != null && !governor.tryAdmit(frameSize - payloadHeaderSize)) {
+                    break;
+                }
+                if (sentOffset + frameSize - runStart > OutboundPipeline.DEFAULT_MAX_BATCH_BYTES) {
+                    writeRun(connection, segment, runStart, runFrames);
+                    runStart = sentOffset;
+                    runFrames = 0;
+                }
+
+                Main.trace(threadName, "Writing journaled frame {x}").data(segment.buffer, position, frameSize).publish();
+                sentOffset += frameSize;
+                runFrames++;
+                sent++;
+            }
+            writeRun(connection, segment, runStart, runFrames);
+            // One mark per call: the frames are acknowledged once the pipeline wrote the last of them
+            if (sentOffset > start) {
+                addAck(outbound.enqueuedBytes(), sentOffset);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeRun(Main.StreamConnection connection, Segment segment, long runStart, int runFrames)
+            throws IOException {
+        if (runFrames > 0) {
+            int position = (int) (runStart - segment.base);
+            connection.write(segment.buffer.slice(position, (int) (sentOffset - runStart)), runFrames);
+        }
+    }
+
+    /**
+     * Returns the number of appended frames that were not written to a socket yet.
+     */
+    long backlog() {
+        lock.lock();
+        try {
+            acknowledge();
+            return countFrames(ackedOffset, writeOffset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if appended frames are waiting to be handed to the connection.
+     */
+    boolean hasUnsent() {
+        lock.lock();
+        try {
+            return sentOffset < writeOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addAck(long pipelineMark, long journalMark) {
+        if (ackSize == MAX_PENDING_ACKS) {
+            // Merge into the newest mark: frames are acknowledged a little later, never too early
+            int last = (ackHead + ackSize - 1) % MAX_PENDING_ACKS;
+            ackPipelineMarks[last] = pipelineMark;
+            ackJournalMarks[last] = journalMark;
+            return;
+        }
+        int index = (ackHead + ackSize) % MAX_PENDING_ACKS;
+        ackPipelineMarks[index] = pipelineMark;
+        ackJournalMarks[index] = journalMark;
+        ackSize++;
+    }
+
+    private void acknowledge() {
+        if (pipeline != null) {
+            long written = pipeline.writtenBytes();
+            while (ackSize > 0 && ackPipelineMarks[ackHead] <= written) {
+                ackedOffset = Math.max(ackedOffset, ackJournalMarks[ackHead]);
+                ackHead = (ackHead + 1) % MAX_PENDING_ACKS;
+                ackSize--;
+            }
+        }
+        // Completely acknowledged segments are reused; the tail always stays
+        while (segments.size() > 1 && segments.peekFirst().end() <= ackedOffset) {
+            free.add(segments.pollFirst());
+            recycled++;
+        }
+    }
+
+    private Segment nextSegment() throws IOException {
+        long base = segments.peekLast().end();
+        Segment segment;
+        if (!free.isEmpty()) {
+            segment = free.poll();
+        } else if (segments.size() < maxSegments) {
+            segment = newSegment(files.size());
+        } else {
+            // Out of segments: the oldest unacknowledged frames are dropped to make room
+            long end = segments.peekFirst().end();
+            if (sentOffset < end) {
+                dropped += countFrames(sentOffset, end);
+                sentOffset = end;
+            }
+            ackedOffset = Math.max(ackedOffset, end);
+            segment = segments.pollFirst();
+        }
+        segment.base = base;
+        segment.limit = 0;
+        segments.add(segment);
+        return segment;
+    }
+
+    private Segment newSegment(int index) throws IOException {
+        Path file = directory.resolve(String.format("%s-%03d.journal", name, index));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            // Faults the pages in now rather than on the append path
+            buffer.load();
+            files.add(file);
+            return new Segment(buffer);
+        }
+    }
+
+    private Segment segmentAt(long offset) {
+        for (Segment segment : segments) {
+            if (offset < segment.end()) {
+                return segment;
+            }
+        }
+        throw new IllegalStateException("Offset " + offset + " is not in the journal");
+    }
+
+    private long countFrames(long from, long to) {
+        long frames = 0;
+        for (Segment segment : segments) {
+            long offset = Math.max(from, segment.base);
+            while (offset < Math.min(to, segment.end())) {
+                int position = (int) (offset - segment.base);
+                offset += DatagramCodec.HEADER_SIZE + (segment.buffer.getShort(position + 2) & 0xFFFF);
+                frames++;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Deletes the segment files; the mappings are released when the buffers are collected.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            segments.clear();
+            free.clear();
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            files.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            acknowledge();
+            return String.format("appended=%d, sent=%d, replayed=%d, dropped=%d, unacknowledged=%d, segments=%d/%d, recycled=%d",
+                appended, sent, replayed, dropped, countFrames(ackedOffset, writeOffset),
+                segments.size() + free.size(), maxSegments, recycled);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Segment {
+        final MappedByteBuffer buffer;
+        // Journal offset of the first byte, and the number of bytes in use
+        long base;
+        int limit;
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        long end() {
+            return base + limit;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalescing outbound frame queue of a single connection.
+ *
+ * Frames are copied into a staging buffer and written together as one batch once the batch
+ * reaches {@code maxBatchBytes}, once the oldest frame has waited {@code maxDelayNanos}, or when
+ * the owner flushes. Timestamp responses (0x07) use a separate priority lane: they are always
+ * written ahead of staged frames and t2 is stamped immediately before the write.
+ *
+ * While a batch is only partially written (non-blocking sinks), new frames keep going into the
+ * staging buffer, which grows if needed, and are sent once the sink drained the batch.
+ */
+final class OutboundPipeline {
+    static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+    static final long DEFAULT_MAX_DELAY_NANOS = 0;
+
+    private static final int MAX_PENDING_TIMESTAMPS = 16;
+    private static final int TIMESTAMP_RESPONSE_FRAME_SIZE = DatagramCodec.HEADER_SIZE + 25;
+
+    interface Sink {
+        /**
+         * Writes the buffers in order and returns true once they are fully drained. A sink that
+         * returns false is flushed again when the connection becomes writable.
+         */
+        boolean write(ByteBuffer[] buffers) throws IOException;
+    }
+
+    // A lock rather than synchronized, so a virtual thread blocked in the sink does not pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Sink sink;
+    private final SessionMetrics metrics;
+    private final int maxBatchBytes;
+    private final long maxDelayNanos;
+    private final boolean direct;
+    private final ByteBuffer priority;
+    private final long[] pendingTimestamps = new long[2 * MAX_PENDING_TIMESTAMPS];
+    private final ByteBuffer[] batch = new ByteBuffer[2];
+    private ByteBuffer staging;
+    private ByteBuffer sending;
+    private int pendingTimestampCount;
+    private int stagedFrames;
+    private long stagedSinceNanos;
+    private boolean blocked;
+    private int inFlightFrames;
+    private long inFlightSinceNanos;
+    private long sendStartNanos;
+    private long lastTimestampT2;
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    private long batches;
+    private long frames;
+    private long bytes;
+    // Bytes of regular frames queued and written so far; timestamp responses are not counted
+    private long enqueuedBytes;
+    private long writtenBytes;
+    private long maxBatchFrames;
+    private long totalFlushLatencyNanos;
+    private long maxFlushLatencyNanos;
+
+    /**
+     * Creates a pipeline with direct buffers for channel sinks, or heap buffers with accessible
+     * arrays for stream sinks.
+     */
+    OutboundPipeline(Sink sink, int maxBatchBytes, long maxDelayNanos, boolean direct) {
+        this(sink, maxBatchBytes, maxDelayNanos, direct, SessionMetrics.DETACHED);
+    }
+
+    /**
+     * Creates a pipeline that counts the frames it writes, and the time batches take to be
+     * written, in the metrics of its session.
+     */
+    OutboundPipeline(Sink sink, int maxBatchBytes, long maxDelayNanos, boolean direct, SessionMetrics metrics) {
+        this.sink = sink;
+        this.metrics = metrics;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = maxDelayNanos;
+        this.direct = direct;
+        this.priority = allocate(MAX_PENDING_TIMESTAMPS * TIMESTAMP_RESPONSE_FRAME_SIZE);
+        this.staging = allocate(maxBatchBytes);
+        this.sending = allocate(maxBatchBytes);
+        this.sending.flip();
+    }
+
+    /**
+     * Copies a complete frame into the staging buffer and flushes if the batch is full.
+     * Returns true if the pipeline was empty before, so callers know a flush must be scheduled.
+     */
+    boolean enqueue(ByteBuffer frame) throws IOException {
+        return enqueue(frame, 1);
+    }
+
+    /**
+     * Copies a run of complete frames, such as consecutive journaled frames, in one step.
+     */
+    boolean enqueue(ByteBuffer frame, int frameCount) throws IOException {
+        lock.lock();
+        try {
+            boolean wasEmpty = isEmpty();
+            if (frame.remaining() > staging.remaining()) {
+                flush();
+            }
+            put(frame, frameCount);
+            if (staging.position() >= maxBatchBytes) {
+                flush();
+            }
+            return wasEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies a run of complete frames without touching the sink, growing the staging buffer
+     * instead of flushing a full batch. For owners whose sink may only be driven by one thread;
+     * they flush the staged frames on that thread.
+     */
+    void stage(ByteBuffer frame, int frameCount) {
+        lock.lock();
+        try {
+            put(frame, frameCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a timestamp response on the priority lane and flushes right away. Returns the t2
+     * that was sent, or -1 if the sink is still busy and the response goes out with the next flush.
+     */
+    long enqueueTimestampResponse(long timestampT0, long timestampT1) throws IOException {
+        lock.lock();
+        try {
+            if (pendingTimestampCount == MAX_PENDING_TIMESTAMPS) {
+                throw new IOException("Too many pending timestamp responses");
+            }
+            pendingTimestamps[2 * pendingTimestampCount] = timestampT0;
+            pendingTimestamps[2 * pendingTimestampCount + 1] = timestampT1;
+            pendingTimestampCount++;
+            lastActivityNanos = System.nanoTime();
+            return flush() ? lastTimestampT2 : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending batch, timestamp responses first. Returns false if the sink could not
+     * take everything yet.
+     */
+    boolean flush() throws IOException {
+        lock.lock();
+        try {
+            while (true) {
+                if (blocked) {
+                    if (!sink.write(batch)) {
+                        return false;
+                    }
+                    blocked = false;
+                    completeBatch();
+                }
+                if (pendingTimestampCount == 0 && stagedFrames == 0) {
+                    return true;
+                }
+
+                ByteBuffer next = staging;
+                staging = sending;
+                staging.clear();
+                sending = next;
+                sending.flip();
+                inFlightFrames = stagedFrames + pendingTimestampCount;
+                inFlightSinceNanos = stagedFrames > 0 ? stagedSinceNanos : System.nanoTime();
+                stagedFrames = 0;
+
+                // t2 is taken as late as possible, right before the bytes are handed to the sink
+                priority.clear();
+                lastTimestampT2 = Main.currentTimestamp();
+                for (int i = 0; i < pendingTimestampCount; i++) {
+                    DatagramCodec.encodeTimestampResponse(priority,
+                        pendingTimestamps[2 * i], pendingTimestamps[2 * i + 1], lastTimestampT2);
+                }
+                pendingTimestampCount = 0;
+                priority.flip();
+
+                batch[0] = priority;
+                batch[1] = sending;
+                blocked = true;
+                sendStartNanos = System.nanoTime();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes if the oldest staged frame has waited at least the configured delay.
+     */
+    void flushIfDue(long nowNanos) throws IOException {
+        lock.lock();
+        try {
+            if (blocked || (stagedFrames > 0 && nowNanos - stagedSinceNanos >= maxDelayNanos)) {
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long the owner may wait before {@link #flushIfDue} has work, or -1 if idle.
+     */
+    long nanosUntilDue(long nowNanos) {
+        lock.lock();
+        try {
+            if (stagedFrames == 0) {
+                return -1;
+            }
+            return Math.max(0, maxDelayNanos - (nowNanos - stagedSinceNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} of the last frame queued on this connection.
+     */
+    long lastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    SessionMetrics metrics() {
+        return metrics;
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return !blocked && stagedFrames == 0 && pendingTimestampCount == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void completeBatch() {
+        // Counted once the sink took the batch, so frames still queued are not reported as sent
+        metrics.sent(priority, 0, priority.limit());
+        metrics.sent(sending, 0, sending.limit());
+        long now = System.nanoTime();
+        long latency = now - inFlightSinceNanos;
+        metrics.writeStall(now - sendStartNanos);
+        batches++;
+        frames += inFlightFrames;
+        bytes += priority.limit() + sending.limit();
+        writtenBytes += sending.limit();
+        maxBatchFrames = Math.max(maxBatchFrames, inFlightFrames);
+        totalFlushLatencyNanos += latency;
+        maxFlushLatencyNanos = Math.max(maxFlushLatencyNanos, latency);
+    }
+
+    private void put(ByteBuffer frame, int frameCount) {
+        if (frame.remaining() > staging.remaining()) {
+            growStaging(frame.remaining());
+        }
+        long now = System.nanoTime();
+        if (stagedFrames == 0) {
+            stagedSinceNanos = now;
+        }
+        enqueuedBytes += frame.remaining();
+        staging.put(frame);
+        stagedFrames += frameCount;
+        lastActivityNanos = now;
+    }
+
+    private void growStaging(int required) {
+        int capacity = staging.capacity();
+        while (capacity - staging.position() < required) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = allocate(capacity);
+        staging.flip();
+        grown.put(staging);
+        staging = grown;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns the number of bytes queued with {@link #enqueue} so far. A frame is written to the
+     * sink once {@link #writtenBytes} reaches the value returned right after it was queued.
+     */
+    long enqueuedBytes() {
+        lock.lock();
+        try {
+            return enqueuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long writtenBytes() {
+        lock.lock();
+        try {
+            return writtenBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ======== STATISTICS ========
+
+    long batches() {
+        lock.lock();
+        try {
+            return batches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long frames() {
+        lock.lock();
+        try {
+            return frames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    double averageBatchFrames() {
+        lock.lock();
+        try {
+            return batches == 0 ? 0 : (double) frames / batches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long maxBatchFrames() {
+        lock.lock();
+        try {
+            return maxBatchFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long averageFlushLatencyNanos() {
+        lock.lock();
+        try {
+            return batches == 0 ? 0 : totalFlushLatencyNanos / batches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long maxFlushLatencyNanos() {
+        lock.lock();
+        try {
+            return maxFlushLatencyNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("batches=%d, frames=%d, bytes=%d, avg_batch=%.2f frames, max_batch=%d frames, "
+                + "avg_flush_latency=%dus, max_flush_latency=%dus", batches, frames, bytes, averageBatchFrames(),
+                maxBatchFrames, averageFlushLatencyNanos() / 1000, maxFlushLatencyNanos / 1000);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
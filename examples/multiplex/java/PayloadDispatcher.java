@@ -0,0 +1,265 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves payload callbacks off the socket reader onto a pool of worker threads.
+ *
+ * Payloads are sharded by TLC identifier, so all payloads of one identifier are handled by the
+ * same worker in the order they were received, while different identifiers are processed in
+ * parallel. Each shard has a bounded queue of preallocated slots; the received datagram is copied
+ * into a slot and handed to the callback as a {@link PayloadView} on the worker thread.
+ *
+ * Only payload datagrams (0x04, 0x05 and 0xF0) pass through the dispatcher. Keep alives and
+ * timestamp requests are still answered on the I/O thread and never wait behind application work.
+ */
+final class PayloadDispatcher implements Closeable {
+    enum Overflow {
+        /** Wait for room in the shard; stalls the reader (and on the engine, its event loop) meanwhile. */
+        BLOCK,
+        /** Drop the payload that does not fit. */
+        DROP_NEWEST,
+        /** Drop the oldest queued payload of the shard to make room. */
+        DROP_OLDEST
+    }
+
+    private static final int INITIAL_SLOT_SIZE = 256;
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private final Shard[] shards;
+    private final Overflow overflow;
+
+    PayloadDispatcher(int workers, int queueCapacity, Overflow overflow) {
+        if (workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("At least one worker and one queue slot are required");
+        }
+        this.overflow = overflow;
+        this.shards = new Shard[workers];
+        for (int i = 0; i < workers; i++) {
+            shards[i] = new Shard(queueCapacity, "payload-worker-" + i);
+        }
+    }
+
+    /**
+     * Returns a callback for the session reader that queues payloads for the given callback.
+     */
+    Main.PayloadViewCallback wrap(Main.PayloadCallback callback) {
+        return view -> dispatch(view, callback);
+    }
+
+    void dispatch(PayloadView view, Main.PayloadCallback callback) {
+        shards[shardOf(view)].offer(view, callback, overflow);
+    }
+
+    int shardOf(PayloadView view) {
+        // Identifiers are packed into a long and mixed (MurmurHash3 finalizer), so identifiers
+        // that only differ in one character still spread over all shards
+        long hash = view.identifierKey();
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return (int) Math.floorMod(hash, (long) shards.length);
+    }
+
+    int shards() {
+        return shards.length;
+    }
+
+    int queueDepth(int shard) {
+        return shards[shard].depth();
+    }
+
+    long dropped(int shard) {
+        return shards[shard].dropped();
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        for (Shard shard : shards) {
+            shard.join(CLOSE_TIMEOUT_MILLIS);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < shards.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("shard").append(i).append('=').append(shards[i]);
+        }
+        return sb.toString();
+    }
+
+    // ======== SHARD ========
+
+    private static final class Shard implements Runnable {
+        private final Slot[] slots;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final Thread worker;
+        private int head;
+        private int size;
+        private boolean closed;
+
+        private long dispatched;
+        private long dropped;
+        private int maxDepth;
+
+        Shard(int capacity, String name) {
+            this.slots = new Slot[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot();
+            }
+            this.worker = new Thread(this, name);
+            this.worker.setDaemon(true);
+            this.worker.start();
+        }
+
+        void offer(PayloadView view, Main.PayloadCallback callback, Overflow overflow) {
+            lock.lock();
+            try {
+                while (size == slots.length && !closed) {
+                    if (overflow == Overflow.DROP_NEWEST) {
+                        dropped++;
+                        return;
+                    }
+                    if (overflow == Overflow.DROP_OLDEST) {
+                        slots[head].callback = null;
+                        head = (head + 1) % slots.length;
+                        size--;
+                        dropped++;
+                        break;
+                    }
+                    try {
+                        notFull.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped++;
+                        return;
+                    }
+                }
+                if (closed) {
+                    dropped++;
+                    return;
+                }
+
+                Slot slot = slots[(head + size) % slots.length];
+                slot.store(view, callback);
+                size++;
+                maxDepth = Math.max(maxDepth, size);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            // The worker swaps its own slot with the queued one, so the queue slot can be reused
+            // while the callback is still running
+            Slot current = new Slot();
+            PayloadView view = new PayloadView();
+            while (true) {
+                lock.lock();
+                try {
+                    while (size == 0 && !closed) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if (size == 0) {
+                        return;
+                    }
+                    Slot queued = slots[head];
+                    slots[head] = current;
+                    current = queued;
+                    head = (head + 1) % slots.length;
+                    size--;
+                    dispatched++;
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    // The arrival time is kept, so latencies measured by the callback exclude the queueing
+                    current.callback.onPayload(view.wrap(current.data, 0, current.length).receivedAt(current.receiveNanoTime));
+                } catch (RuntimeException e) {
+                    Main.log(worker.getName(), "Payload callback failed: " + e);
+                } finally {
+                    current.callback = null;
+                }
+            }
+        }
+
+        int depth() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long dropped() {
+            lock.lock();
+            try {
+                return dropped;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void join(long timeoutMillis) {
+            try {
+                worker.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public String toString() {
+            lock.lock();
+            try {
+                return String.format("[depth=%d, max_depth=%d, dispatched=%d, dropped=%d]",
+                    size, maxDepth, dispatched, dropped);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class Slot {
+        Main.PayloadCallback callback;
+        ByteBuffer data = ByteBuffer.allocate(INITIAL_SLOT_SIZE);
+        int length;
+        long receiveNanoTime;
+
+        void store(PayloadView view, Main.PayloadCallback callback) {
+            if (data.capacity() < view.length()) {
+                data = ByteBuffer.allocate(Math.max(view.length(), 2 * data.capacity()));
+            }
+            view.copyDatagram(data.array(), 0);
+            this.length = view.length();
+            this.receiveNanoTime = view.receiveNanoTime();
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client-side enforcement governor of a streaming session.
+ *
+ * The Streaming Service terminates a connection without warning when PayloadRateLimit,
+ * PayloadThroughputLimit or KeepAliveTimeout is exceeded. The governor tracks outgoing payloads in
+ * the same continuous sliding windows the service uses, so producers can run right up to the
+ * limits (minus a small headroom) without tripping them, and sends a keep alive whenever the
+ * connection has been idle for half of the KeepAliveTimeout.
+ */
+final class PayloadGovernor {
+    enum Backpressure {
+        /** Wait until the payload fits; for producer threads only, never on an event loop. */
+        BLOCK,
+        /** Refuse payloads that do not fit and let the caller decide. */
+        REJECT,
+        /** Queue payloads that do not fit, dropping the oldest queued payload when the queue is full. */
+        DROP_OLDEST
+    }
+
+    static final double DEFAULT_HEADROOM = 0.95;
+
+    private static final long DEFAULT_KEEPALIVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // Counted against the throughput limit besides the payload; a 0x05 adds the identifier
+    private static final int PAYLOAD_OVERHEAD = 1 + 8;
+    private static final int PAYLOAD_WITH_IDENTIFIER_OVERHEAD = DatagramCodec.IDENTIFIER_SIZE + PAYLOAD_OVERHEAD;
+
+    // A lock rather than synchronized: queued payloads are written while holding it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Backpressure backpressure;
+    private final double headroom;
+    private final boolean singleplex;
+    private final int payloadOverhead;
+    private final SlidingWindow rateWindow;
+    private final SlidingWindow throughputWindow;
+    private final double rateLimitPerWindow;
+    private final double throughputLimitPerWindow;
+    private final long keepAliveIntervalNanos;
+    private final Pending[] queue;
+    private int queueHead;
+    private int queueSize;
+
+    private long admitted;
+    private long rejected;
+    private long dropped;
+
+    PayloadGovernor(Main.SessionInfo session, Backpressure backpressure, int queueCapacity, double headroom) {
+        if (backpressure == Backpressure.DROP_OLDEST && queueCapacity < 1) {
+            throw new IllegalArgumentException("DROP_OLDEST requires a queue capacity of at least 1, not " + queueCapacity);
+        }
+        this.backpressure = backpressure;
+        this.headroom = headroom;
+        this.singleplex = session.singleplex;
+        this.payloadOverhead = singleplex ? PAYLOAD_OVERHEAD : PAYLOAD_WITH_IDENTIFIER_OVERHEAD;
+
+        long rateWindowNanos = windowNanos(session.payloadRateLimitDuration);
+        long maxPayloads = (long) (session.payloadRateLimit * headroom * rateWindowNanos / 1e9);
+        this.rateWindow = session.payloadRateLimit > 0
+            ? new SlidingWindow(rateWindowNanos, Math.max(1, maxPayloads), (int) Math.min(maxPayloads + 1, 1 << 16))
+            : null;
+        this.rateLimitPerWindow = session.payloadRateLimit * rateWindowNanos / 1e9;
+
+        // The throughput limit is given in bytes per second, as in the protocol enforcement docs
+        long throughputWindowNanos = windowNanos(session.payloadThroughputLimitDuration);
+        long maxBytes = (long) (session.payloadThroughputLimit * headroom * throughputWindowNanos / 1e9);
+        this.throughputWindow = session.payloadThroughputLimit > 0
+            ? new SlidingWindow(throughputWindowNanos, Math.max(1, maxBytes), 1024)
+            : null;
+        this.throughputLimitPerWindow = (double) session.payloadThroughputLimit * throughputWindowNanos / 1e9;
+
+        this.keepAliveIntervalNanos = session.keepAliveTimeout != null
+            ? session.keepAliveTimeout.toNanos() / 2
+            : DEFAULT_KEEPALIVE_INTERVAL_NANOS;
+
+        this.queue = new Pending[backpressure == Backpressure.DROP_OLDEST ? queueCapacity : 0];
+        for (int i = 0; i < queue.length; i++) {
+            queue[i] = new Pending();
+        }
+    }
+
+    private static long windowNanos(Duration duration) {
+        return duration != null && !duration.isZero() ? duration.toNanos() : TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Writes a payload once it fits the session limits: 0x05, or 0x04 without the identifier on a
+     * singleplex session. Returns false if the payload was rejected ({@link Backpressure#REJECT});
+     * queued payloads count as accepted.
+     */
+    boolean writePayloadWithIdentifier(Main.StreamConnection connection, String identifier, byte payloadType,
+            byte[] payload, String threadName) throws Exception {
+        return writePayloadWithIdentifier(connection, DatagramCodec.packIdentifier(identifier), payloadType,
+            payload, threadName);
+    }
+
+    boolean writePayloadWithIdentifier(Main.StreamConnection connection, long identifierKey, byte payloadType,
+            byte[] payload, String threadName) throws Exception {
+        long originTimestamp = Main.currentTimestamp();
+        int bytes = payloadOverhead + payload.length;
+
+        if (backpressure == Backpressure.BLOCK) {
+            acquire(bytes);
+        } else {
+            lock.lock();
+            try {
+                drain(connection, threadName);
+                if ((queueSize > 0 && backpressure == Backpressure.DROP_OLDEST) || !tryAcquire(bytes)) {
+                    if (backpressure == Backpressure.REJECT) {
+                        rejected++;
+                        return false;
+                    }
+                    enqueue(identifierKey, payloadType, originTimestamp, payload, payload.length, bytes);
+                    return true;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        write(connection, identifierKey, payloadType, originTimestamp, payload, payload.length, threadName);
+        return true;
+    }
+
+    /**
+     * Publishes a batch of payloads, encoded back to back in one pass (see {@link Main#publish}),
+     * with the origin timestamp of the call. Payloads are admitted in order; with
+     * {@link Backpressure#REJECT} the first one that does not fit and all behind it are rejected,
+     * with {@link Backpressure#DROP_OLDEST} they are queued. Returns the number of payloads
+     * accepted, written or queued.
+     */
+    int publish(Main.StreamConnection connection, List<Main.Payload> payloads, String threadName) throws Exception {
+        long originTimestamp = Main.currentTimestamp();
+        int admittedPayloads = 0;
+
+        if (backpressure == Backpressure.BLOCK) {
+            for (Main.Payload payload : payloads) {
+                acquire(payloadOverhead + payload.data().length);
+            }
+            admittedPayloads = payloads.size();
+        } else {
+            lock.lock();
+            try {
+                drain(connection, threadName);
+                // Queued payloads go first, so nothing is admitted ahead of them
+                boolean blocked = queueSize > 0 && backpressure == Backpressure.DROP_OLDEST;
+                while (!blocked && admittedPayloads < payloads.size()
+                        && tryAcquire(payloadOverhead + payloads.get(admittedPayloads).data().length)) {
+                    admittedPayloads++;
+                }
+                for (int i = admittedPayloads; i < payloads.size(); i++) {
+                    Main.Payload payload = payloads.get(i);
+                    if (backpressure == Backpressure.REJECT) {
+                        rejected += payloads.size() - i;
+                        break;
+                    }
+                    enqueue(payload.identifierKey(), payload.payloadType(), originTimestamp, payload.data(),
+                        payload.data().length, payloadOverhead + payload.data().length);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (admittedPayloads > 0) {
+            Main.publish(connection, payloads.subList(0, admittedPayloads), singleplex, originTimestamp, threadName);
+        }
+        return backpressure == Backpressure.REJECT ? admittedPayloads : payloads.size();
+    }
+
+    /**
+     * Returns a governor for the limits of a new session, as after a Reconnect, that takes over
+     * the payloads still queued here in order. Its windows start empty, as nothing was sent on the
+     * new session yet; the counts carry over.
+     */
+    PayloadGovernor forSession(Main.SessionInfo session) {
+        PayloadGovernor next = new PayloadGovernor(session, backpressure, queue.length, headroom);
+        lock.lock();
+        try {
+            for (int i = 0; i < queueSize; i++) {
+                Pending pending = queue[(queueHead + i) % queue.length];
+                next.enqueue(pending.identifierKey, pending.payloadType, pending.originTimestamp, pending.payload,
+                    pending.length, next.payloadOverhead + pending.length);
+            }
+            next.admitted = admitted;
+            next.rejected = rejected;
+            next.dropped = dropped;
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes queued payloads as far as the limits allow; call regularly with DROP_OLDEST.
+     */
+    void drain(Main.StreamConnection connection, String threadName) throws Exception {
+        lock.lock();
+        try {
+            while (queueSize > 0) {
+                Pending pending = queue[queueHead];
+                if (!tryAcquire(pending.bytes)) {
+                    return;
+                }
+                write(connection, pending.identifierKey, pending.payloadType, pending.originTimestamp,
+                    pending.payload, pending.length, threadName);
+                queueHead = (queueHead + 1) % queue.length;
+                queueSize--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a payload if it fits the limits right now, for callers that queue payloads
+     * themselves, like {@link OutboundJournal}. The caller writes the payload if this returns true.
+     */
+    boolean tryAdmit(int payloadLength) {
+        lock.lock();
+        try {
+            return tryAcquire(payloadOverhead + payloadLength);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a keep alive if nothing was written for half of the KeepAliveTimeout, and returns the
+     * nanoseconds until the next one is due. Every frame written meanwhile moves the deadline, so
+     * a connection that is busy anyway never sends one.
+     */
+    long maintainKeepAlive(Main.StreamConnection connection, String threadName) throws Exception {
+        long idleNanos = System.nanoTime() - connection.outbound().lastActivityNanos();
+        if (idleNanos >= keepAliveIntervalNanos) {
+            Main.writeKeepalive(connection, threadName);
+            return keepAliveIntervalNanos;
+        }
+        return keepAliveIntervalNanos - idleNanos;
+    }
+
+    /**
+     * Returns the number of payloads queued until they fit the limits.
+     */
+    int queued() {
+        lock.lock();
+        try {
+            return queueSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long until a payload of the given size fits the limits, 0 if it fits now.
+     */
+    long nanosUntilAvailable(int payloadLength) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            int bytes = payloadOverhead + payloadLength;
+            long rateWait = rateWindow != null ? rateWindow.nanosUntilFits(now, 1) : 0;
+            long throughputWait = throughputWindow != null ? throughputWindow.nanosUntilFits(now, bytes) : 0;
+            return Math.max(rateWait, throughputWait);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(Main.StreamConnection connection, long identifierKey, byte payloadType, long originTimestamp,
+            byte[] payload, int length, String threadName) throws Exception {
+        if (singleplex) {
+            Main.writePayload(connection, payloadType, originTimestamp, payload, 0, length, threadName);
+        } else {
+            Main.writePayloadWithIdentifier(connection, identifierKey, payloadType, originTimestamp,
+                payload, 0, length, threadName);
+        }
+    }
+
+    private void acquire(int bytes) {
+        if (throughputWindow != null && bytes > throughputWindow.capacity) {
+            throw new IllegalArgumentException("Payload of " + bytes + " bytes can never fit the throughput limit");
+        }
+        while (true) {
+            long wait;
+            lock.lock();
+            try {
+                if (tryAcquire(bytes)) {
+                    return;
+                }
+                long now = System.nanoTime();
+                wait = Math.max(rateWindow != null ? rateWindow.nanosUntilFits(now, 1) : 0,
+                    throughputWindow != null ? throughputWindow.nanosUntilFits(now, bytes) : 0);
+            } finally {
+                lock.unlock();
+            }
+            LockSupport.parkNanos(Math.max(wait, 1));
+        }
+    }
+
+    private boolean tryAcquire(int bytes) {
+        long now = System.nanoTime();
+        if ((rateWindow != null && !rateWindow.fits(now, 1))
+                || (throughputWindow != null && !throughputWindow.fits(now, bytes))) {
+            return false;
+        }
+        if (rateWindow != null) {
+            rateWindow.record(now, 1);
+        }
+        if (throughputWindow != null) {
+            throughputWindow.record(now, bytes);
+        }
+        admitted++;
+        return true;
+    }
+
+    private void enqueue(long identifierKey, byte payloadType, long originTimestamp, byte[] payload, int length,
+            int bytes) {
+        if (queueSize == queue.length) {
+            queueHead = (queueHead + 1) % queue.length;
+            queueSize--;
+            dropped++;
+        }
+
+        Pending pending = queue[(queueHead + queueSize) % queue.length];
+        if (pending.payload.length < length) {
+            pending.payload = new byte[length];
+        }
+        System.arraycopy(payload, 0, pending.payload, 0, length);
+        pending.identifierKey = identifierKey;
+        pending.payloadType = payloadType;
+        pending.originTimestamp = originTimestamp;
+        pending.length = length;
+        pending.bytes = bytes;
+        queueSize++;
+    }
+
+    /**
+     * Unused fraction of the PayloadRateLimit over the current window, against the limit itself
+     * rather than the headroom this governor keeps below it; 1 without a limit.
+     */
+    double rateHeadroom() {
+        return headroom(rateWindow, rateLimitPerWindow);
+    }
+
+    /**
+     * Unused fraction of the PayloadThroughputLimit over the current window; 1 without a limit.
+     */
+    double throughputHeadroom() {
+        return headroom(throughputWindow, throughputLimitPerWindow);
+    }
+
+    private double headroom(SlidingWindow window, double limit) {
+        if (window == null || limit <= 0) {
+            return 1;
+        }
+        lock.lock();
+        try {
+            return 1 - window.used(System.nanoTime()) / limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("admitted=%d, rejected=%d, dropped=%d, queued=%d", admitted, rejected, dropped, queueSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ======== SLIDING WINDOW ========
+
+    /**
+     * Continuous sliding window over recorded amounts. Events live in a ring buffer ordered by
+     * time, so expiring old events and checking the running total are amortised O(1).
+     */
+    static final class SlidingWindow {
+        private final long windowNanos;
+        private final long capacity;
+        private long[] times;
+        private int[] amounts;
+        private int head;
+        private int size;
+        private long total;
+
+        SlidingWindow(long windowNanos, long capacity, int initialEvents) {
+            this.windowNanos = windowNanos;
+            this.capacity = capacity;
+            this.times = new long[Math.max(1, initialEvents)];
+            this.amounts = new int[times.length];
+        }
+
+        boolean fits(long now, int amount) {
+            expire(now);
+            return total + amount <= capacity;
+        }
+
+        void record(long now, int amount) {
+            if (size == times.length) {
+                grow();
+            }
+            int index = (head + size) % times.length;
+            times[index] = now;
+            amounts[index] = amount;
+            size++;
+            total += amount;
+        }
+
+        long nanosUntilFits(long now, int amount) {
+            expire(now);
+            long excess = total + amount - capacity;
+            for (int i = 0; i < size && excess > 0; i++) {
+                int index = (head + i) % times.length;
+                excess -= amounts[index];
+                if (excess <= 0) {
+                    return times[index] + windowNanos - now;
+                }
+            }
+            return 0;
+        }
+
+        long total() {
+            return total;
+        }
+
+        long used(long now) {
+            expire(now);
+            return total;
+        }
+
+        private void expire(long now) {
+            while (size > 0 && now - times[head] >= windowNanos) {
+                total -= amounts[head];
+                head = (head + 1) % times.length;
+                size--;
+            }
+        }
+
+        private void grow() {
+            long[] grownTimes = new long[times.length * 2];
+            int[] grownAmounts = new int[grownTimes.length];
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % times.length;
+                grownTimes[i] = times[index];
+                grownAmounts[i] = amounts[index];
+            }
+            times = grownTimes;
+            amounts = grownAmounts;
+            head = 0;
+        }
+    }
+
+    private static final class Pending {
+        long identifierKey;
+        byte payloadType;
+        long originTimestamp;
+        byte[] payload = new byte[0];
+        int length;
+        int bytes;
+    }
+}
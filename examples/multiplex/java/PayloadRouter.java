@@ -0,0 +1,159 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Routes received payloads to per-identifier handlers.
+ *
+ * Subscriptions are kept in an {@link IdentifierMap} keyed by the packed identifier, so routing a
+ * payload is a primitive hash lookup on {@link PayloadView#identifierKey()}: no identifier string
+ * is decoded and nothing is allocated. Each subscription keeps its own statistics. Lookups use an
+ * optimistic read of a {@link StampedLock} and only take the read lock when a subscription changed
+ * concurrently.
+ *
+ * Payloads for identifiers without a subscription, and singleplex payloads (0x04, key 0), go to
+ * the fallback handler if one is set.
+ */
+final class PayloadRouter implements Main.PayloadViewCallback {
+    private final IdentifierMap<Route> routes;
+    private final StampedLock lock = new StampedLock();
+    private final AtomicLong unrouted = new AtomicLong();
+    private volatile Main.PayloadCallback fallback;
+
+    PayloadRouter(int expectedIdentifiers) {
+        this.routes = new IdentifierMap<>(expectedIdentifiers);
+    }
+
+    void subscribe(String identifier, Main.PayloadCallback handler) {
+        subscribe(DatagramCodec.packIdentifier(identifier), handler);
+    }
+
+    /**
+     * Routes payloads of the identifier to the handler, replacing a previous subscription.
+     */
+    void subscribe(long identifierKey, Main.PayloadCallback handler) {
+        long stamp = lock.writeLock();
+        try {
+            routes.put(identifierKey, new Route(identifierKey, handler));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    boolean unsubscribe(long identifierKey) {
+        long stamp = lock.writeLock();
+        try {
+            return routes.remove(identifierKey) != null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void setFallback(Main.PayloadCallback fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void onPayload(PayloadView view) {
+        Route route = lookup(view.identifierKey());
+        if (route == null) {
+            unrouted.incrementAndGet();
+            Main.PayloadCallback fallback = this.fallback;
+            if (fallback != null) {
+                fallback.onPayload(view);
+            }
+            return;
+        }
+
+        route.record(view);
+        route.handler.onPayload(view);
+    }
+
+    /**
+     * Returns the subscription of the identifier, which also carries its statistics, or null.
+     */
+    Route lookup(long identifierKey) {
+        long stamp = lock.tryOptimisticRead();
+        Route route = routes.get(identifierKey);
+        if (lock.validate(stamp)) {
+            return route;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return routes.get(identifierKey);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return routes.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    void forEach(IdentifierMap.Visitor<? super Route> visitor) {
+        long stamp = lock.readLock();
+        try {
+            routes.forEach(visitor);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    long unrouted() {
+        return unrouted.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("routes=%d, unrouted=%d", size(), unrouted());
+    }
+
+    // ======== ROUTE ========
+
+    /**
+     * A subscription with its statistics. The statistics are updated by the thread delivering
+     * the identifier's payloads (one thread per identifier, see {@link PayloadDispatcher}) and may
+     * be slightly stale when read from another thread.
+     */
+    static final class Route {
+        final long identifierKey;
+        final Main.PayloadCallback handler;
+        private long payloads;
+        private long bytes;
+        private long lastOriginTimestamp;
+
+        Route(long identifierKey, Main.PayloadCallback handler) {
+            this.identifierKey = identifierKey;
+            this.handler = handler;
+        }
+
+        private void record(PayloadView view) {
+            payloads++;
+            bytes += view.payloadLength();
+            lastOriginTimestamp = view.originTimestamp();
+        }
+
+        long payloads() {
+            return payloads;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        long lastOriginTimestamp() {
+            return lastOriginTimestamp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: payloads=%d, bytes=%d, last_origin_timestamp=%d",
+                DatagramCodec.unpackIdentifier(identifierKey), payloads, bytes, lastOriginTimestamp);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable flyweight over a received datagram.
+ *
+ * A view is pointed at a datagram inside a receive buffer with {@link #wrap} and reads its fields
+ * in place, so no arrays or strings are created unless one of the explicitly copying accessors is
+ * used. The view is only valid until the underlying buffer is reused, which for the streaming
+ * clients means until the payload callback returns.
+ *
+ * Payload accessors work for all payload carrying types: 0x04, 0x05 and 0xF0. For a monitor
+ * payload (0xF0) they describe the encapsulated original datagram, whose content is laid out as
+ * the 0x04 or 0x05 datagram without its type byte.
+ *
+ * {@link #wrap} checks that the datagram is long enough for the fixed fields of its type, and for
+ * a monitor payload that the publisher token fits the datagram as well. Accessors must not be used
+ * on a view that is not {@link #isValid()}; such frames are discarded.
+ */
+final class PayloadView {
+    // Monitor payload header: type, token length, publish and sent timestamps, original type
+    private static final int MONITOR_HEADER_SIZE = 1 + 4 + 8 + 8 + 1;
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private boolean valid;
+    private byte type;
+    private byte payloadKind;
+    private int bodyOffset;
+    private long receiveNanoTime;
+
+    PayloadView wrap(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.receiveNanoTime = 0;
+
+        this.type = length > 0 ? buffer.get(offset) : -1;
+        if (type == DatagramCodec.MONITOR_PAYLOAD) {
+            // The token length comes from the wire, so it is checked before it locates the original datagram
+            int tokenLength = length >= MONITOR_HEADER_SIZE ? publisherTokenLength() : -1;
+            if (tokenLength < 0 || tokenLength > length - MONITOR_HEADER_SIZE) {
+                valid = false;
+                payloadKind = -1;
+                bodyOffset = offset + 1;
+                return this;
+            }
+            int original = offset + MONITOR_HEADER_SIZE - 1 + tokenLength;
+            payloadKind = buffer.get(original);
+            bodyOffset = original + 1;
+            valid = (payloadKind == DatagramCodec.PAYLOAD || payloadKind == DatagramCodec.PAYLOAD_WITH_IDENTIFIER)
+                && offset + length - original >= minimumSize(payloadKind);
+        } else {
+            payloadKind = type;
+            bodyOffset = offset + 1;
+            valid = length >= minimumSize(type);
+        }
+        return this;
+    }
+
+    /**
+     * Returns whether the datagram holds all fixed fields of its type. Unknown types count as
+     * valid, so their handler can report them.
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    // Smallest datagram of each type, type byte included
+    private static int minimumSize(byte type) {
+        switch (type) {
+            case DatagramCodec.PAYLOAD:
+                return 1 + 1 + 8;
+            case DatagramCodec.PAYLOAD_WITH_IDENTIFIER:
+                return 1 + DatagramCodec.IDENTIFIER_SIZE + 1 + 8;
+            case DatagramCodec.TIMESTAMP_REQUEST:
+                return 1 + 8;
+            case DatagramCodec.TIMESTAMP_RESPONSE:
+                return 1 + 3 * 8;
+            case DatagramCodec.MONITOR_PAYLOAD:
+                return MONITOR_HEADER_SIZE;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Records the {@link System#nanoTime()} at which the frame header arrived.
+     */
+    PayloadView receivedAt(long nanoTime) {
+        this.receiveNanoTime = nanoTime;
+        return this;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the frame header arrived, or 0 if unknown.
+     */
+    long receiveNanoTime() {
+        return receiveNanoTime;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Returns the datagram type, or -1 for an empty datagram.
+     */
+    byte type() {
+        return type;
+    }
+
+    // ======== TOKEN (0x01) AND BYE (0x02) ========
+
+    /**
+     * Decodes the text following the type byte; allocates and is meant for rare datagrams only.
+     */
+    String text() {
+        byte[] bytes = new byte[length - 1];
+        getBytes(offset + 1, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ======== TIMESTAMPS (0x06, 0x07) ========
+
+    long timestampT0() {
+        return buffer.getLong(offset + 1);
+    }
+
+    long timestampT1() {
+        return buffer.getLong(offset + 9);
+    }
+
+    long timestampT2() {
+        return buffer.getLong(offset + 17);
+    }
+
+    // ======== PAYLOADS (0x04, 0x05, 0xF0) ========
+
+    boolean hasIdentifier() {
+        return payloadKind == DatagramCodec.PAYLOAD_WITH_IDENTIFIER;
+    }
+
+    int identifierOffset() {
+        return bodyOffset;
+    }
+
+    /**
+     * Returns the identifier packed into a long key (see {@link DatagramCodec#packIdentifier}),
+     * or 0 for payloads without one. Comparing and routing by key needs no decoding.
+     */
+    long identifierKey() {
+        return hasIdentifier() ? buffer.getLong(bodyOffset) : 0;
+    }
+
+    /**
+     * Decodes the identifier into a trimmed string, or an empty string for payloads without one.
+     */
+    String identifier() {
+        return hasIdentifier() ? DatagramCodec.unpackIdentifier(identifierKey()) : "";
+    }
+
+    byte payloadType() {
+        return buffer.get(payloadTypeOffset());
+    }
+
+    long originTimestamp() {
+        return buffer.getLong(payloadTypeOffset() + 1);
+    }
+
+    int payloadOffset() {
+        return payloadTypeOffset() + 9;
+    }
+
+    int payloadLength() {
+        return offset + length - payloadOffset();
+    }
+
+    byte payloadByte(int index) {
+        return buffer.get(payloadOffset() + index);
+    }
+
+    void copyPayload(byte[] dst, int dstOffset) {
+        getBytes(payloadOffset(), dst, dstOffset, payloadLength());
+    }
+
+    /**
+     * Copies the complete datagram, type byte included, so it can be wrapped again elsewhere.
+     */
+    void copyDatagram(byte[] dst, int dstOffset) {
+        getBytes(offset, dst, dstOffset, length);
+    }
+
+    byte[] payloadBytes() {
+        byte[] payload = new byte[payloadLength()];
+        copyPayload(payload, 0);
+        return payload;
+    }
+
+    private int payloadTypeOffset() {
+        return hasIdentifier() ? bodyOffset + DatagramCodec.IDENTIFIER_SIZE : bodyOffset;
+    }
+
+    private void getBytes(int index, byte[] dst, int dstOffset, int count) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + index, dst, dstOffset, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = buffer.get(index + i);
+            }
+        }
+    }
+
+    // ======== MONITOR PAYLOAD (0xF0) ========
+
+    int publisherTokenLength() {
+        return buffer.getInt(offset + 1);
+    }
+
+    int publisherTokenOffset() {
+        return offset + 5;
+    }
+
+    long publishTimestamp() {
+        return buffer.getLong(publisherTokenOffset() + publisherTokenLength());
+    }
+
+    long sentTimestamp() {
+        return buffer.getLong(publisherTokenOffset() + publisherTokenLength() + 8);
+    }
+
+    byte originalType() {
+        return payloadKind;
+    }
+}
@@ -0,0 +1,195 @@
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the streaming connection of a session and moves it to a new session when the Streaming
+ * Node sends a Reconnect (0x03), for example before it is taken down for maintenance.
+ *
+ * The REST call for a new session is the slow part of a reconnect. With a standby session, the
+ * next session is created in the background while the current one streams, so a reconnect only
+ * takes the TCP (and TLS) connect to the new node. The standby is replaced by a fresh one shortly
+ * before its listener expires. A standby that was assigned to the node asking for the reconnect is
+ * discarded, as the service assigns sessions created afterwards elsewhere, and so is a standby
+ * whose node cannot be reached; discarded sessions are deleted through the REST API.
+ *
+ * {@link #run} is called by a single thread; only the standby is refreshed in the background.
+ */
+final class ReconnectingSession {
+    // A standby is replaced this long before its listener expires, or halfway through shorter lifetimes
+    private static final Duration STANDBY_REFRESH_MARGIN = Duration.ofSeconds(30);
+
+    /**
+     * Creates a session through the REST API.
+     */
+    @FunctionalInterface
+    interface SessionFactory {
+        CompletableFuture<Main.SessionInfo> create();
+    }
+
+    /**
+     * Deletes a session that will not be used through the REST API.
+     */
+    @FunctionalInterface
+    interface SessionDeleter {
+        CompletableFuture<Void> delete(Main.SessionInfo session);
+    }
+
+    /**
+     * Connects to the node of a session and streams until the connection ends.
+     */
+    @FunctionalInterface
+    interface Connector {
+        void connect(Main.SessionInfo session) throws Exception;
+    }
+
+    /**
+     * Ends the streaming connection after a Reconnect datagram.
+     */
+    static final class ReconnectRequested extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ReconnectRequested() {
+            // Control flow only, the stack trace is never looked at
+            super("Reconnect requested by the Streaming Node", null, false, false);
+        }
+    }
+
+    private final SessionFactory factory;
+    private final SessionDeleter deleter;
+    private final boolean standbyEnabled;
+    private final String threadName;
+    // Replaced by the refresh timer as well as taken by the running thread, hence atomic
+    private final AtomicReference<CompletableFuture<Main.SessionInfo>> standby = new AtomicReference<>();
+    private boolean onStandby;
+    private int reconnects;
+    private int standbyHits;
+
+    ReconnectingSession(SessionFactory factory, SessionDeleter deleter, boolean standbyEnabled, String threadName) {
+        this.factory = factory;
+        this.deleter = deleter;
+        this.standbyEnabled = standbyEnabled;
+        this.threadName = threadName;
+    }
+
+    /**
+     * Creates the first session and streams on it, then on a new session after every Reconnect,
+     * until a connection ends for another reason.
+     */
+    void run(Connector connector) throws Exception {
+        Main.SessionInfo session = Main.awaitSession(factory.create());
+        try {
+            while (true) {
+                if (standbyEnabled && standby.get() == null) {
+                    standby.set(createStandby());
+                }
+                try {
+                    connector.connect(session);
+                    return;
+                } catch (ReconnectRequested e) {
+                    long start = System.nanoTime();
+                    session = nextSession(session);
+                    reconnects++;
+                    Main.metrics(threadName).reconnected();
+                    Main.log(threadName, String.format("Reconnecting to %s:%d, new session ready after %d ms (%s)",
+                        session.host, session.port, (System.nanoTime() - start) / 1_000_000, this));
+                } catch (ConnectException | NoRouteToHostException | UnknownHostException e) {
+                    if (!onStandby) {
+                        throw e;
+                    }
+                    // The standby was created well before its node was needed, which may be gone by now
+                    Main.log(threadName, String.format("Connecting to the standby session at %s:%d failed (%s), "
+                        + "creating a new session", session.host, session.port, e.getMessage()));
+                    deleter.delete(session);
+                    onStandby = false;
+                    session = Main.awaitSession(factory.create());
+                }
+            }
+        } finally {
+            discard(standby.getAndSet(null));
+        }
+    }
+
+    private Main.SessionInfo nextSession(Main.SessionInfo current) throws Exception {
+        CompletableFuture<Main.SessionInfo> prepared = standby.getAndSet(null);
+        onStandby = false;
+        if (prepared != null) {
+            try {
+                Main.SessionInfo candidate = Main.awaitSession(prepared);
+                if (candidate.expiration != null && !candidate.expiration.isAfter(Instant.now())) {
+                    Main.log(threadName, "Standby session expired at " + candidate.expiration + ", creating a new session");
+                    deleter.delete(candidate);
+                } else if (!candidate.host.equals(current.host) || candidate.port != current.port) {
+                    standbyHits++;
+                    onStandby = true;
+                    return candidate;
+                } else {
+                    Main.log(threadName, "Standby session is on the reconnecting node, creating a new session");
+                    deleter.delete(candidate);
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                Main.log(threadName, "Standby session failed: " + e.getMessage());
+            }
+        }
+        return Main.awaitSession(factory.create());
+    }
+
+    // ======== STANDBY REFRESH ========
+
+    private CompletableFuture<Main.SessionInfo> createStandby() {
+        CompletableFuture<Main.SessionInfo> created = factory.create();
+        created.thenAccept(session -> {
+            long delayMillis = refreshDelayMillis(session.expiration, Instant.now());
+            if (delayMillis >= 0) {
+                CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(() -> refresh(created));
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Returns the milliseconds until a standby expiring at the given time is to be replaced, or
+     * -1 if it does not expire or has already expired.
+     */
+    static long refreshDelayMillis(Instant expiration, Instant now) {
+        if (expiration == null || !expiration.isAfter(now)) {
+            return -1;
+        }
+        Duration lifetime = Duration.between(now, expiration);
+        Duration beforeMargin = lifetime.minus(STANDBY_REFRESH_MARGIN);
+        Duration halfway = lifetime.dividedBy(2);
+        return (beforeMargin.compareTo(halfway) > 0 ? beforeMargin : halfway).toMillis();
+    }
+
+    private void refresh(CompletableFuture<Main.SessionInfo> expiring) {
+        if (standby.get() != expiring) {
+            // Taken by a reconnect, or the session has ended
+            return;
+        }
+        CompletableFuture<Main.SessionInfo> replacement = createStandby();
+        if (standby.compareAndSet(expiring, replacement)) {
+            Main.log(threadName, "Standby session about to expire, replaced by a new one");
+            discard(expiring);
+        } else {
+            discard(replacement);
+        }
+    }
+
+    private void discard(CompletableFuture<Main.SessionInfo> session) {
+        if (session != null) {
+            session.thenAccept(deleter::delete);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("reconnects=%d, standbyUsed=%d", reconnects, standbyHits);
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs streaming sessions on virtual threads.
+ *
+ * Every session gets its own virtual thread for its whole lifecycle (create session, connect,
+ * handshake, token, read loop), so sessions keep simple blocking code while thousands of them
+ * share a handful of carrier threads. Blocking socket reads and {@code java.util.concurrent} locks
+ * release the carrier while waiting; code on these threads must not block inside
+ * {@code synchronized}, which would pin the carrier.
+ *
+ * Sessions can be added and removed at runtime. Removing a session interrupts its thread, which
+ * for a virtual thread blocked in socket I/O closes the socket.
+ */
+final class SessionManager implements Closeable {
+    private static final Path PROC_STATUS = Path.of("/proc/self/status");
+
+    /** The lifecycle of one session, run on its virtual thread. */
+    @FunctionalInterface
+    interface SessionTask {
+        void run(String name) throws Exception;
+    }
+
+    private final ConcurrentHashMap<String, Handle> sessions = new ConcurrentHashMap<>();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final long baselineResidentBytes = residentBytes();
+    private final long baselineHeapBytes = memory.getHeapMemoryUsage().getUsed();
+
+    /**
+     * Starts a session under a unique name; its log lines are tagged with the name.
+     */
+    Handle add(String name, SessionTask task) {
+        Handle handle = new Handle(name);
+        handle.thread = Thread.ofVirtual().name(name).unstarted(() -> run(handle, task));
+        if (sessions.putIfAbsent(name, handle) != null) {
+            throw new IllegalArgumentException("Session " + name + " already exists");
+        }
+        handle.thread.start();
+        return handle;
+    }
+
+    /**
+     * Stops the session and waits for it to end. Returns false if no such session runs.
+     */
+    boolean remove(String name) throws InterruptedException {
+        Handle handle = sessions.get(name);
+        if (handle == null) {
+            return false;
+        }
+        handle.thread.interrupt();
+        handle.thread.join();
+        return true;
+    }
+
+    Handle get(String name) {
+        return sessions.get(name);
+    }
+
+    List<Handle> sessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Waits until all sessions have ended, or at most the given time. Returns true if none is left.
+     */
+    boolean awaitAll(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Handle handle : sessions()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !handle.thread.join(Duration.ofMillis(remaining))) {
+                return false;
+            }
+        }
+        return sessions.isEmpty();
+    }
+
+    /**
+     * Reports resident and heap memory growth since the manager was created, divided by the number
+     * of running sessions. Virtual thread stacks live on the heap, so both include them; the
+     * resident figure also covers direct buffers and native socket state.
+     */
+    String memoryReport() {
+        int count = Math.max(1, sessions.size());
+        long resident = residentBytes();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        StringBuilder sb = new StringBuilder();
+        sb.append("sessions=").append(sessions.size());
+        if (resident > 0) {
+            sb.append(String.format(", rss=%d MiB, rss_per_session=%d KiB",
+                resident >> 20, Math.max(0, resident - baselineResidentBytes) / count >> 10));
+        }
+        sb.append(String.format(", heap_used=%d MiB, heap_per_session=%d KiB",
+            heap >> 20, Math.max(0, heap - baselineHeapBytes) / count >> 10));
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        for (Handle handle : sessions()) {
+            handle.thread.interrupt();
+        }
+        try {
+            awaitAll(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(Handle handle, SessionTask task) {
+        try {
+            task.run(handle.name);
+        } catch (Exception e) {
+            handle.failure = e;
+            if (!Thread.currentThread().isInterrupted()) {
+                Main.log(handle.name, "Session failed: " + e.getMessage());
+            }
+        } finally {
+            sessions.remove(handle.name, handle);
+        }
+    }
+
+    private static long residentBytes() {
+        // VmRSS is only available on Linux; elsewhere the report falls back to heap figures
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS)) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] fields = line.trim().split("\\s+");
+                    return Long.parseLong(fields[1]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not available
+        }
+        return -1;
+    }
+
+    // ======== HANDLE ========
+
+    static final class Handle {
+        final String name;
+        final long startedAt = System.currentTimeMillis();
+        private Thread thread;
+        private volatile Exception failure;
+
+        private Handle(String name) {
+            this.name = name;
+        }
+
+        boolean isAlive() {
+            return thread.isAlive();
+        }
+
+        Exception failure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (alive: %b, running for %ds)", name, isAlive(),
+                (System.currentTimeMillis() - startedAt) / 1000);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of one streaming session, kept across its connections and reconnects.
+ *
+ * Datagrams and bytes are counted per direction and datagram type in {@link LongAdder}s, which
+ * stripe under contention, so the reader, the loop callback and producer threads of a session can
+ * all record without a lock; recording a datagram is one array lookup and two adds. Payload
+ * latencies (origin timestamp to arrival, by the synchronised clock) go into a
+ * {@link LatencyHistogram}. Headroom against the enforcement limits is read from the session's
+ * current {@link PayloadGovernor} when the metrics are collected.
+ *
+ * Sessions are registered by name with {@link MetricsRegistry}, which exposes them over JMX and
+ * as Prometheus text.
+ */
+final class SessionMetrics {
+    static final String[] TYPE_NAMES = {"keepalive", "token", "bye", "reconnect", "payload",
+        "payload_with_identifier", "timestamp_request", "timestamp_response", "monitor_payload", "other"};
+
+    private static final int OTHER = TYPE_NAMES.length - 1;
+    private static final byte[] TYPE_INDEX = new byte[256];
+
+    static {
+        Arrays.fill(TYPE_INDEX, (byte) OTHER);
+        for (int type = DatagramCodec.KEEPALIVE; type <= DatagramCodec.TIMESTAMP_RESPONSE; type++) {
+            TYPE_INDEX[type] = (byte) type;
+        }
+        TYPE_INDEX[DatagramCodec.MONITOR_PAYLOAD & 0xFF] = (byte) (OTHER - 1);
+    }
+
+    /** Metrics of connections that belong to no registered session, such as benchmark fixtures. */
+    static final SessionMetrics DETACHED = new SessionMetrics("detached");
+
+    final String name;
+    private final LongAdder[] datagramsReceived = adders();
+    private final LongAdder[] bytesReceived = adders();
+    private final LongAdder[] datagramsSent = adders();
+    private final LongAdder[] bytesSent = adders();
+    private final LongAdder readStallNanos = new LongAdder();
+    private final LongAdder writeStallNanos = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LatencyHistogram payloadLatency = new LatencyHistogram();
+    private volatile PayloadGovernor governor;
+
+    SessionMetrics(String name) {
+        this.name = name;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[TYPE_NAMES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // ======== RECORDING ========
+
+    void received(byte type, int frameBytes) {
+        int index = TYPE_INDEX[type & 0xFF];
+        datagramsReceived[index].increment();
+        bytesReceived[index].add(frameBytes);
+    }
+
+    void sent(byte type, int frameBytes) {
+        int index = TYPE_INDEX[type & 0xFF];
+        datagramsSent[index].increment();
+        bytesSent[index].add(frameBytes);
+    }
+
+    /**
+     * Counts the complete frames of a batch that was written, by the type of each frame.
+     */
+    void sent(ByteBuffer frames, int offset, int length) {
+        int end = offset + length;
+        while (offset + DatagramCodec.HEADER_SIZE < end) {
+            // Outbound frames were encoded here, so the header is not validated again
+            int frameBytes = DatagramCodec.HEADER_SIZE + (frames.getShort(offset + 2) & 0xFFFF);
+            sent(frames.get(offset + DatagramCodec.HEADER_SIZE), frameBytes);
+            offset += frameBytes;
+        }
+    }
+
+    /**
+     * Records the end-to-end latency of a payload, from its origin timestamp to its arrival.
+     */
+    void payloadLatency(long latencyMillis) {
+        payloadLatency.record(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+    }
+
+    /** Time a received frame waited between its first bytes arriving and being handled. */
+    void readStall(long nanos) {
+        readStallNanos.add(nanos);
+    }
+
+    /** Time a batch took to be taken by the socket, including waiting for it to become writable. */
+    void writeStall(long nanos) {
+        writeStallNanos.add(nanos);
+    }
+
+    void connected() {
+        connections.increment();
+    }
+
+    void reconnected() {
+        reconnects.increment();
+    }
+
+    /**
+     * Reports headroom against the limits of the given governor, the one of the current session.
+     */
+    void track(PayloadGovernor governor) {
+        this.governor = governor;
+    }
+
+    // ======== COLLECTING ========
+
+    long datagramsReceived(int typeIndex) {
+        return datagramsReceived[typeIndex].sum();
+    }
+
+    long bytesReceived(int typeIndex) {
+        return bytesReceived[typeIndex].sum();
+    }
+
+    long datagramsSent(int typeIndex) {
+        return datagramsSent[typeIndex].sum();
+    }
+
+    long bytesSent(int typeIndex) {
+        return bytesSent[typeIndex].sum();
+    }
+
+    long readStallNanos() {
+        return readStallNanos.sum();
+    }
+
+    long writeStallNanos() {
+        return writeStallNanos.sum();
+    }
+
+    long connections() {
+        return connections.sum();
+    }
+
+    long reconnects() {
+        return reconnects.sum();
+    }
+
+    LatencyHistogram payloadLatency() {
+        return payloadLatency;
+    }
+
+    /** Unused fraction of the PayloadRateLimit in the current window; 1 without a governor or limit. */
+    double rateHeadroom() {
+        PayloadGovernor current = governor;
+        return current != null ? current.rateHeadroom() : 1;
+    }
+
+    /** Unused fraction of the PayloadThroughputLimit in the current window; 1 without a governor or limit. */
+    double throughputHeadroom() {
+        PayloadGovernor current = governor;
+        return current != null ? current.throughputHeadroom() : 1;
+    }
+
+    /**
+     * Returns the current values by attribute name, for JMX.
+     */
+    Map<String, Object> attributes() {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        long[] totals = new long[4];
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            totals[0] += datagramsReceived(i);
+            totals[1] += bytesReceived(i);
+            totals[2] += datagramsSent(i);
+            totals[3] += bytesSent(i);
+        }
+        attributes.put("DatagramsReceived", totals[0]);
+        attributes.put("BytesReceived", totals[1]);
+        attributes.put("DatagramsSent", totals[2]);
+        attributes.put("BytesSent", totals[3]);
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            attributes.put("DatagramsReceived_" + TYPE_NAMES[i], datagramsReceived(i));
+            attributes.put("DatagramsSent_" + TYPE_NAMES[i], datagramsSent(i));
+        }
+        attributes.put("ReadStallMillis", TimeUnit.NANOSECONDS.toMillis(readStallNanos()));
+        attributes.put("WriteStallMillis", TimeUnit.NANOSECONDS.toMillis(writeStallNanos()));
+        attributes.put("Connections", connections());
+        attributes.put("Reconnects", reconnects());
+        attributes.put("PayloadLatencyCount", payloadLatency.count());
+        attributes.put("PayloadLatencyP50Millis", payloadLatency.percentile(0.5) / 1e6);
+        attributes.put("PayloadLatencyP99Millis", payloadLatency.percentile(0.99) / 1e6);
+        attributes.put("PayloadLatencyMaxMillis", payloadLatency.max() / 1e6);
+        attributes.put("RateHeadroom", rateHeadroom());
+        attributes.put("ThroughputHeadroom", throughputHeadroom());
+        return attributes;
+    }
+
+    @Override
+    public String toString() {
+        long received = 0;
+        long sent = 0;
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            received += datagramsReceived(i);
+            sent += datagramsSent(i);
+        }
+        return String.format("received=%d, sent=%d, connections=%d, reconnects=%d, read_stall=%dms, write_stall=%dms, "
+            + "payload_latency=[%s]", received, sent, connections(), reconnects(),
+            TimeUnit.NANOSECONDS.toMillis(readStallNanos()), TimeUnit.NANOSECONDS.toMillis(writeStallNanos()),
+            payloadLatency);
+    }
+}
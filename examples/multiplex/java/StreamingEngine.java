@@ -0,0 +1,453 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Non-blocking TCP streaming engine.
+ *
+ * Sessions are spread round-robin over a small number of event loops, each owning a single
+ * {@link Selector}. Inbound datagrams are handled as soon as the selector reports the channel
+ * readable. Loop callbacks run on the session's event loop when their timer on the shared
+ * {@link TimerWheel} fires, so an idle loop sleeps in the selector instead of waking up every
+ * tick. TLS sessions run an {@link javax.net.ssl.SSLEngine} on the same loop, see
+ * {@link TlsTransport}.
+ */
+final class StreamingEngine implements Closeable {
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final TimerWheel timers;
+
+    StreamingEngine(int threads, TimerWheel timers) throws IOException {
+        this.timers = timers;
+        loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("streaming-io-" + i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Connects a session; with a transport the connection is TLS, without it plain TCP.
+     */
+    Session open(String host, int port, String token, TlsTransport tls, Main.PayloadCallback payloadCallback,
+            Main.LoopCallback loopCallback, SessionMetrics metrics, String threadName) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        TlsTransport.Channel tlsChannel = tls != null ? tls.open(channel, host, port) : null;
+        Session session = new Session(channel, tlsChannel, host, port, token, payloadCallback, loopCallback,
+            timers, metrics, threadName);
+        loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(session);
+        return session;
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    // ======== EVENT LOOP ========
+    private static final class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Session> sessions = new ArrayList<>();
+        private volatile boolean running = true;
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(Session session) {
+            session.loop = this;
+            tasks.add(() -> {
+                try {
+                    boolean connected = session.channel.isConnected();
+                    session.key = session.channel.register(selector,
+                        connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, session);
+                    sessions.add(session);
+                    if (connected) {
+                        session.onConnected();
+                    }
+                } catch (Exception e) {
+                    session.fail(e);
+                }
+            });
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            // 0 waits until a channel is ready or the loop is woken up for a task
+            long timeout = 0;
+
+            while (running) {
+                try {
+                    selector.select(timeout);
+                } catch (IOException e) {
+                    Main.log(getName(), "Selector failed: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Session) key.attachment()).onReady(key);
+                }
+
+                // Send whatever this iteration queued as one batch per session
+                long nowNanos = System.nanoTime();
+                long nextDueNanos = -1;
+                for (int i = sessions.size() - 1; i >= 0; i--) {
+                    Session session = sessions.get(i);
+                    if (session.isClosed()) {
+                        sessions.remove(i);
+                        continue;
+                    }
+                    long dueNanos = session.flushIfDue(nowNanos);
+                    if (dueNanos >= 0 && (nextDueNanos < 0 || dueNanos < nextDueNanos)) {
+                        nextDueNanos = dueNanos;
+                    }
+                }
+
+                timeout = nextDueNanos >= 0 ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDueNanos)) : 0;
+            }
+
+            for (Session session : sessions) {
+                session.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Main.log(getName(), "Failed to close selector: " + e.getMessage());
+            }
+        }
+    }
+
+    // ======== SESSION ========
+    static final class Session implements Main.StreamConnection {
+        private final SocketChannel channel;
+        private final TlsTransport.Channel tls;
+        private final String host;
+        private final int port;
+        private final String token;
+        private final Main.PayloadCallback payloadCallback;
+        private final Main.LoopCallback loopCallback;
+        private final TimerWheel.Timeout loopTimer;
+        private final Runnable loopTask = this::onLoopTimer;
+        private final Runnable flushTask = this::onFlushTask;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final String threadName;
+        private final ByteBuffer readBuffer;
+        private final PayloadView view = new PayloadView();
+        private final WireRecorder recorder;
+        private final OutboundPipeline outbound;
+        private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private EventLoop loop;
+        private SelectionKey key;
+        private boolean streaming;
+        private long partialFrameNanoTime;
+        private boolean writeInterest;
+
+        private Session(SocketChannel channel, TlsTransport.Channel tls, String host, int port, String token,
+                Main.PayloadCallback payloadCallback, Main.LoopCallback loopCallback, TimerWheel timers,
+                SessionMetrics metrics, String threadName) {
+            this.channel = channel;
+            this.tls = tls;
+            // With TLS a whole record must fit behind a partially received frame
+            this.readBuffer = ByteBuffer.allocateDirect(DatagramCodec.MAX_FRAME_SIZE
+                + (tls != null ? tls.applicationBufferSize() : 0));
+            this.host = host;
+            this.port = port;
+            this.token = token;
+            this.payloadCallback = payloadCallback;
+            this.loopCallback = loopCallback;
+            this.outbound = new OutboundPipeline(this::writeToChannel, OutboundPipeline.DEFAULT_MAX_BATCH_BYTES,
+                OutboundPipeline.DEFAULT_MAX_DELAY_NANOS, true, metrics);
+            // The timer fires on the wheel thread; the callback itself runs on the event loop
+            this.loopTimer = timers.newTimeout(() -> {
+                loop.tasks.add(loopTask);
+                loop.selector.wakeup();
+            });
+            this.threadName = threadName;
+            this.recorder = Main.recorder(threadName);
+        }
+
+        /**
+         * Blocks until the session is closed, rethrowing the error that terminated it, if any.
+         */
+        void awaitClose() throws Exception {
+            try {
+                closeFuture.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        private void onReady(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+                    onConnected();
+                }
+                if (tls != null && !tls.isEstablished()) {
+                    if (key.isValid() && (key.isReadable() || key.isWritable())) {
+                        onHandshake();
+                    }
+                    return;
+                }
+                if (key.isValid() && key.isWritable()) {
+                    outbound.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    onReadable();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            Main.log(threadName, String.format("Connected to %s:%d (TLS: %b)", host, port, tls != null));
+            key.interestOps(SelectionKey.OP_READ);
+            if (tls != null) {
+                onHandshake();
+            } else {
+                write(ByteBuffer.wrap(new byte[]{0x01}));
+            }
+        }
+
+        private void onHandshake() throws IOException {
+            boolean established = tls.handshake(readBuffer);
+            setWriteInterest(tls.hasPendingOutput());
+            if (established) {
+                SSLSession session = tls.session();
+                Main.log(threadName, String.format("TLS handshake successful - Protocol: %s, Cipher: %s", 
+                    session.getProtocol(), session.getCipherSuite()));
+                write(ByteBuffer.wrap(new byte[]{0x01}));
+            }
+        }
+
+        private void onReadable() throws Exception {
+            int read;
+            do {
+                read = tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+                if (read == -1) {
+                    throw new IOException("Socket disconnected");
+                }
+                onReceived();
+                // Records that did not fit the read buffer are decrypted once frames were consumed
+            } while (tls != null && read > 0 && tls.hasBufferedInput() && !isClosed());
+        }
+
+        private void onReceived() throws Exception {
+            // A frame that was already partially received arrived with an earlier read
+            long readNanoTime = System.nanoTime();
+            long frameNanoTime = partialFrameNanoTime != 0 ? partialFrameNanoTime : readNanoTime;
+
+            readBuffer.flip();
+            try {
+                if (!streaming && readBuffer.hasRemaining()) {
+                    byte version = readBuffer.get();
+                    Main.log(threadName, "Received protocol version " + Main.asHexStream(new byte[]{version}));
+                    if (version != 1) {
+                        throw new Exception("Unsupported protocol version received");
+                    }
+                    streaming = true;
+                    Main.writeToken(this, token, threadName);
+                    loopTimer.schedule(0);
+                }
+
+                // Datagrams are decoded in place; the view is only used until the buffer is compacted
+                while (streaming && !isClosed() && readBuffer.remaining() >= DatagramCodec.HEADER_SIZE) {
+                    int start = readBuffer.position();
+                    int size = DatagramCodec.datagramSize(readBuffer, start);
+                    if (readBuffer.remaining() < DatagramCodec.HEADER_SIZE + size) {
+                        break;
+                    }
+
+                    int offset = start + DatagramCodec.HEADER_SIZE;
+                    readBuffer.position(offset + size);
+
+                    Main.trace(threadName, "Received datagram {x}").data(readBuffer, offset, size).publish();
+                    if (recorder != null) {
+                        recorder.record(readBuffer, start, DatagramCodec.HEADER_SIZE + size, frameNanoTime);
+                    }
+                    Main.handleDatagram(this, view.wrap(readBuffer, offset, size).receivedAt(frameNanoTime),
+                        payloadCallback, threadName);
+                    frameNanoTime = readNanoTime;
+                }
+            } finally {
+                partialFrameNanoTime = streaming && readBuffer.hasRemaining() ? frameNanoTime : 0;
+                readBuffer.compact();
+            }
+        }
+
+        private void onLoopTimer() {
+            if (isClosed()) {
+                return;
+            }
+            try {
+                loopTimer.schedule(loopCallback.onLoop(this));
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private long flushIfDue(long nowNanos) {
+            try {
+                outbound.flushIfDue(nowNanos);
+                return outbound.nanosUntilDue(nowNanos);
+            } catch (IOException e) {
+                fail(e);
+                return -1;
+            }
+        }
+
+        @Override
+        public OutboundPipeline outbound() {
+            return outbound;
+        }
+
+        @Override
+        public void write(ByteBuffer frames, int frameCount) throws IOException {
+            if (Thread.currentThread() == loop) {
+                outbound.enqueue(frames, frameCount);
+                return;
+            }
+            // The sink (and with it the SSLEngine) is only driven by the loop, so other threads
+            // just stage their frames and leave the flush to it
+            outbound.stage(frames, frameCount);
+            scheduleFlush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (Thread.currentThread() == loop) {
+                outbound.flush();
+            } else {
+                scheduleFlush();
+            }
+        }
+
+        private void scheduleFlush() {
+            // One task covers all frames staged until it runs
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.tasks.add(flushTask);
+                loop.selector.wakeup();
+            }
+        }
+
+        private void onFlushTask() {
+            flushScheduled.set(false);
+            if (isClosed()) {
+                return;
+            }
+            try {
+                outbound.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private boolean writeToChannel(ByteBuffer[] buffers) throws IOException {
+            boolean drained;
+            if (tls != null) {
+                drained = tls.write(buffers);
+            } else {
+                channel.write(buffers);
+                drained = true;
+                for (ByteBuffer buffer : buffers) {
+                    drained &= !buffer.hasRemaining();
+                }
+            }
+            setWriteInterest(!drained);
+            return drained;
+        }
+
+        private void setWriteInterest(boolean waiting) {
+            // Only wait for writability while the socket buffer is full
+            if (writeInterest != waiting) {
+                writeInterest = waiting;
+                key.interestOps(waiting ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        private void fail(Exception e) {
+            closeFuture.completeExceptionally(e);
+            close();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            Main.log(threadName, "Outbound statistics: " + outbound);
+            loopTimer.cancel();
+            if (key != null) {
+                key.cancel();
+            }
+            if (tls != null) {
+                // The TLS buffers go back to the pool, so only the event loop may release them
+                if (Thread.currentThread() == loop) {
+                    tls.close();
+                } else if (loop != null) {
+                    loop.tasks.add(tls::close);
+                    loop.selector.wakeup();
+                }
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Main.log(threadName, "Failed to close channel: " + e.getMessage());
+            }
+            closeFuture.complete(null);
+        }
+    }
+}
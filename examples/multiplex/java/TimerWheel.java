@@ -0,0 +1,222 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timer wheel shared by all sessions.
+ *
+ * Timeouts are kept in a ring of buckets, one per tick, and a single thread advances the wheel
+ * once per tick and fires the timeouts that became due. Scheduling, rescheduling and cancelling
+ * are O(1), so thousands of sessions can each keep a timer armed without waking up on every tick
+ * themselves; the wheel thread is the only one that polls, and only while any timeout is armed.
+ * Deadlines are rounded up to the next tick, so a timeout never fires early and normally within
+ * one tick of its deadline.
+ *
+ * A {@link Timeout} is created once and re-armed as often as needed, without allocating. Tasks
+ * run on the wheel thread and must return quickly without blocking; work that may block, like
+ * writing to a socket, is handed to the thread that owns the connection. A timeout cancelled
+ * while it is being fired may still run its task once.
+ */
+final class TimerWheel implements Closeable {
+    /**
+     * A reusable timer for one task; armed by {@link #schedule}, at most once at a time.
+     */
+    final class Timeout {
+        private final Runnable task;
+        private long deadlineTick;
+        private int bucket = -1;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Arms the timeout to fire after the delay, replacing the previous deadline if it is armed.
+         */
+        void schedule(long delay, TimeUnit unit) {
+            schedule(unit.toNanos(delay));
+        }
+
+        void schedule(long delayNanos) {
+            long deadline = System.nanoTime() + Math.max(0, delayNanos);
+            lock.lock();
+            try {
+                if (bucket >= 0) {
+                    unlink(this);
+                } else if (armed++ == 0) {
+                    wakeup.signal();
+                }
+                // Rounded up, and never into a tick the wheel already passed
+                deadlineTick = Math.max(processedTick + 1, Math.ceilDiv(deadline - startNanos, tickNanos));
+                link(this);
+                scheduledTotal++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void cancel() {
+            lock.lock();
+            try {
+                if (bucket >= 0) {
+                    unlink(this);
+                    armed--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isScheduled() {
+            lock.lock();
+            try {
+                return bucket >= 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // A lock rather than synchronized: sessions on virtual threads arm their timers under it
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeup = lock.newCondition();
+    private final Timeout[] buckets;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private final List<Timeout> expired = new ArrayList<>();
+    private long processedTick;
+    private int armed;
+    private boolean closed;
+
+    private long scheduledTotal;
+    private long fired;
+    private long ticks;
+
+    TimerWheel(String name, long tickMillis, int wheelSize) {
+        if (tickMillis < 1 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("The tick must be positive and the wheel size a power of two");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Timeout[wheelSize];
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Returns an unarmed timeout that runs the task on the wheel thread whenever it fires.
+     */
+    Timeout newTimeout(Runnable task) {
+        return new Timeout(task);
+    }
+
+    private void link(Timeout timeout) {
+        int index = (int) timeout.deadlineTick & (buckets.length - 1);
+        timeout.bucket = index;
+        timeout.previous = null;
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        buckets[index] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.bucket = -1;
+        timeout.previous = null;
+        timeout.next = null;
+    }
+
+    private void run() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+                if (armed == 0) {
+                    // Nothing to fire: sleep until a timeout is armed, and skip the ticks meanwhile
+                    processedTick = nowTick;
+                    wakeup.awaitUninterruptibly();
+                    continue;
+                }
+                if (nowTick == processedTick) {
+                    long untilNextTick = startNanos + (nowTick + 1) * tickNanos - System.nanoTime();
+                    wakeup.awaitNanos(Math.max(1, untilNextTick));
+                    continue;
+                }
+                advance(nowTick);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            // Tasks run without the lock, so they can re-arm their own timeout
+            for (int i = 0; i < expired.size(); i++) {
+                try {
+                    expired.get(i).task.run();
+                } catch (RuntimeException e) {
+                    Main.log(worker.getName(), "Timer task failed: " + e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    private void advance(long nowTick) {
+        // After a long pause every bucket is visited once; each holds only the deadlines of its own tick modulo the size
+        long passed = Math.min(nowTick - processedTick, buckets.length);
+        for (long tick = processedTick + 1; tick <= processedTick + passed; tick++) {
+            Timeout timeout = buckets[(int) tick & (buckets.length - 1)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= nowTick) {
+                    unlink(timeout);
+                    armed--;
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        fired += expired.size();
+        ticks++;
+        processedTick = nowTick;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("armed=%d, scheduled=%d, fired=%d, ticks=%d", armed, scheduledTotal, fired, ticks);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TLS for the streaming connections, shared by all sessions.
+ *
+ * All connections are created from one {@link SSLContext}, so they share its client session
+ * cache: a reconnect to a node that was connected before resumes the TLS session with an
+ * abbreviated handshake instead of a full key exchange, which matters when many sessions come
+ * back at once. Engines are created for the node's host and port, the key of the cache.
+ *
+ * {@link Channel} runs an {@link SSLEngine} over a non-blocking {@link SocketChannel} for the
+ * {@link StreamingEngine}; blocking sessions use {@link #connect}. Both record the handshake
+ * times, separately for full and resumed handshakes. The packet buffers of closed channels are
+ * pooled and reused.
+ */
+final class TlsTransport {
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private final SSLContext context;
+    private final String protocol;
+    private final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+    private final LatencyHistogram fullHandshakes = new LatencyHistogram();
+    private final LatencyHistogram resumedHandshakes = new LatencyHistogram();
+    private final LongAdder failedHandshakes = new LongAdder();
+
+    TlsTransport(SSLContext context, String protocol) {
+        this.context = context;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Creates a transport on the JVM's default context, which verifies the node's certificate.
+     */
+    static TlsTransport withDefaultContext(String protocol) {
+        try {
+            return new TlsTransport(SSLContext.getDefault(), protocol);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No default TLS context available", e);
+        }
+    }
+
+    /**
+     * Returns a context that accepts any certificate, for development against localhost only.
+     * It is created once, so its session cache is kept across connections.
+     */
+    static SSLContext trustAllContext() {
+        return TrustAll.CONTEXT;
+    }
+
+    /**
+     * Connects a blocking socket and completes the handshake.
+     */
+    SSLSocket connect(String host, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+        try {
+            socket.setEnabledProtocols(new String[]{protocol});
+            long start = System.nanoTime();
+            long startMillis = System.currentTimeMillis();
+            socket.startHandshake();
+            recordHandshake(socket.getSession(), start, startMillis);
+            return socket;
+        } catch (IOException e) {
+            failedHandshakes.increment();
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps a connected (or connecting) non-blocking channel; the handshake is driven by
+     * {@link Channel#handshake}.
+     */
+    Channel open(SocketChannel channel, String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(new String[]{protocol});
+        return new Channel(channel, engine);
+    }
+
+    private void recordHandshake(SSLSession session, long startNanos, long startMillis) {
+        // A resumed session was created by an earlier handshake
+        long elapsed = System.nanoTime() - startNanos;
+        if (session.getCreationTime() < startMillis) {
+            resumedHandshakes.record(elapsed);
+        } else {
+            fullHandshakes.record(elapsed);
+        }
+    }
+
+    private ByteBuffer acquireBuffer(int size) {
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer != null) {
+            pooledBuffers.decrementAndGet();
+            if (buffer.capacity() >= size) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            bufferPool.offer(buffer);
+        } else {
+            pooledBuffers.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("full_handshakes=[%s], resumed_handshakes=[%s], failed_handshakes=%d, pooled_buffers=%d",
+            fullHandshakes, resumedHandshakes, failedHandshakes.sum(), pooledBuffers.get());
+    }
+
+    // ======== CHANNEL ========
+
+    /**
+     * TLS over a non-blocking socket channel. Reads decrypt into the caller's buffer, writes
+     * encrypt into a packet buffer that is drained as far as the socket takes it. All methods
+     * must be called from the channel's event loop; delegated handshake tasks run inline.
+     */
+    final class Channel {
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private long handshakeStartNanos;
+        private long handshakeStartMillis;
+        private boolean established;
+        private boolean released;
+
+        private Channel(SocketChannel channel, SSLEngine engine) {
+            this.channel = channel;
+            this.engine = engine;
+            int packetSize = engine.getSession().getPacketBufferSize();
+            this.netIn = acquireBuffer(packetSize);
+            this.netOut = acquireBuffer(packetSize);
+            this.netOut.flip();
+        }
+
+        /**
+         * Size a read buffer needs to have free so that any record can be decrypted into it.
+         */
+        int applicationBufferSize() {
+            return engine.getSession().getApplicationBufferSize();
+        }
+
+        boolean isEstablished() {
+            return established;
+        }
+
+        /**
+         * Returns true if received bytes are still undecrypted, because the read buffer was full.
+         */
+        boolean hasBufferedInput() {
+            return netIn.position() > 0;
+        }
+
+        /**
+         * Returns true while encrypted bytes wait for the socket to become writable.
+         */
+        boolean hasPendingOutput() {
+            return netOut.hasRemaining();
+        }
+
+        SSLSession session() {
+            return engine.getSession();
+        }
+
+        /**
+         * Advances the handshake as far as possible without blocking. Returns true once it is
+         * complete; application data that arrives with the last handshake record goes to
+         * {@code appIn}.
+         */
+        boolean handshake(ByteBuffer appIn) throws IOException {
+            if (established) {
+                return true;
+            }
+            try {
+                if (handshakeStartNanos == 0) {
+                    handshakeStartNanos = System.nanoTime();
+                    handshakeStartMillis = System.currentTimeMillis();
+                    engine.beginHandshake();
+                }
+                while (true) {
+                    switch (engine.getHandshakeStatus()) {
+                        case NEED_TASK:
+                            runDelegatedTasks();
+                            break;
+                        case NEED_WRAP:
+                            if (!flushNet()) {
+                                return false;
+                            }
+                            wrap(ByteBuffer.allocate(0));
+                            break;
+                        case NEED_UNWRAP:
+                        case NEED_UNWRAP_AGAIN:
+                            if (!flushNet()) {
+                                return false;
+                            }
+                            int buffered = netIn.position();
+                            unwrap(appIn);
+                            if (netIn.position() == buffered && isUnwrapping(engine.getHandshakeStatus())) {
+                                // No complete record yet
+                                int read = fill();
+                                if (read < 0) {
+                                    throw new EOFException("Connection closed during the TLS handshake");
+                                }
+                                if (read == 0) {
+                                    return false;
+                                }
+                            }
+                            break;
+                        default:
+                            if (!flushNet()) {
+                                return false;
+                            }
+                            established = true;
+                            recordHandshake(engine.getSession(), handshakeStartNanos, handshakeStartMillis);
+                            return true;
+                    }
+                }
+            } catch (IOException e) {
+                failedHandshakes.increment();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads and decrypts what the socket has. Returns the number of bytes added to
+         * {@code dst}, or -1 once the peer closed the connection.
+         */
+        int read(ByteBuffer dst) throws IOException {
+            int before = dst.position();
+            int filled = fill();
+            unwrap(dst);
+            int produced = dst.position() - before;
+            return produced == 0 && (filled < 0 || engine.isInboundDone()) ? -1 : produced;
+        }
+
+        /**
+         * Encrypts and writes the buffers. Returns true once everything reached the socket; when
+         * false, the remainder is written by calling again once the socket is writable.
+         */
+        boolean write(ByteBuffer[] srcs) throws IOException {
+            while (true) {
+                if (!flushNet()) {
+                    return false;
+                }
+                if (!hasRemaining(srcs)) {
+                    return true;
+                }
+                netOut.compact();
+                SSLEngineResult result;
+                try {
+                    result = engine.wrap(srcs, netOut);
+                } finally {
+                    netOut.flip();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS connection closed");
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    throw new SSLException("TLS packet buffer too small");
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+            }
+        }
+
+        /**
+         * Sends close_notify as far as the socket takes it and returns the buffers to the pool.
+         */
+        void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            try {
+                engine.closeOutbound();
+                if (channel.isOpen()) {
+                    wrap(ByteBuffer.allocate(0));
+                    flushNet();
+                }
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            releaseBuffer(netIn);
+            releaseBuffer(netOut);
+            netIn = null;
+            netOut = null;
+        }
+
+        private int fill() throws IOException {
+            // The packet size can grow once the session is established
+            int packetSize = engine.getSession().getPacketBufferSize();
+            if (netIn.capacity() < packetSize) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(packetSize);
+                netIn.flip();
+                grown.put(netIn);
+                netIn = grown;
+            }
+            return channel.read(netIn);
+        }
+
+        private int unwrap(ByteBuffer dst) throws IOException {
+            int produced = 0;
+            netIn.flip();
+            try {
+                while (netIn.hasRemaining()) {
+                    SSLEngineResult result = engine.unwrap(netIn, dst);
+                    produced += result.bytesProduced();
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    SSLEngineResult.Status status = result.getStatus();
+                    if (status == SSLEngineResult.Status.CLOSED) {
+                        break;
+                    }
+                    if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        // Incomplete record, the rest follows with the next read
+                        break;
+                    }
+                    if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        // The caller has to consume decrypted data first; the record stays queued
+                        break;
+                    }
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP && established) {
+                        // Post-handshake messages (e.g. a key update) need an answer
+                        wrap(ByteBuffer.allocate(0));
+                        flushNet();
+                    }
+                    if (!established && !isUnwrapping(result.getHandshakeStatus())) {
+                        // The handshake continues with a task or a wrap
+                        break;
+                    }
+                }
+            } finally {
+                netIn.compact();
+            }
+            return produced;
+        }
+
+        private void wrap(ByteBuffer src) throws IOException {
+            netOut.compact();
+            try {
+                SSLEngineResult result = engine.wrap(src, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    throw new SSLException("TLS packet buffer too small");
+                }
+            } finally {
+                netOut.flip();
+            }
+        }
+
+        private boolean flushNet() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        private boolean isUnwrapping(SSLEngineResult.HandshakeStatus status) {
+            return status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+                || status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN;
+        }
+
+        private boolean hasRemaining(ByteBuffer[] buffers) {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // ======== TRUST ALL ========
+
+    private static final class TrustAll {
+        static final SSLContext CONTEXT = create();
+
+        private static SSLContext create() {
+            TrustManager[] trustAllCerts = new TrustManager[] {
+                new X509TrustManager() {
+                    public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+                    public void checkClientTrusted(X509Certificate[] certs, String authType) {}
+                    public void checkServerTrusted(X509Certificate[] certs, String authType) {}
+                }
+            };
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, trustAllCerts, new java.security.SecureRandom());
+                return context;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Failed to create TLS context", e);
+            }
+        }
+    }
+}
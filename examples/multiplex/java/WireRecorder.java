@@ -0,0 +1,224 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records the inbound frames of a session, as received, into memory-mapped segment files.
+ *
+ * Every record is the {@link System#nanoTime()} of the frame's arrival, relative to the start of
+ * the recording, followed by the raw frame (header and datagram). Frames are copied straight from
+ * the read buffer into the mapped segment, so recording allocates nothing and costs one copy per
+ * frame. Writing to a fresh file mapping faults in every page, which can block in the file system
+ * for hundreds of milliseconds, so the next segment is mapped and touched page by page on a
+ * background thread while the current one fills, and full segments are truncated to their used
+ * size there as well. The reader only swaps buffers. Frames that arrive while the next segment is
+ * still being prepared, or after {@code maxSegments} are full, are counted as dropped; recording
+ * never holds up the session.
+ *
+ * Segment files are named {@code <name>-<index>.wire} and start with a header holding the
+ * protocol timestamp of the recording start. A new recording replaces the segments of an earlier
+ * recording with the same name. After a crash the last segment keeps its mapped size; the zeroed
+ * space behind the last record ends it. {@link WireReplayer} plays recordings back.
+ */
+final class WireRecorder implements Closeable {
+    static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    static final int MAGIC = 0x4D585752; // "MXWR"
+    static final int VERSION = 1;
+    // Magic, version and the protocol timestamp of the recording start
+    static final int SEGMENT_HEADER_SIZE = 4 + 4 + 8;
+    // Arrival time in nanoseconds since the recording start, then the frame
+    static final int RECORD_HEADER_SIZE = 8;
+    static final String SUFFIX = ".wire";
+
+    private static final int PAGE_SIZE = 4096;
+
+    // One thread prepares and finishes the segments of all recordings, off the readers
+    private static final class Preparer {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "wire-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // A lock rather than synchronized: a session's reader may run on a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Path directory;
+    private final String name;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long startNanos;
+    private final long startTimestamp;
+    private Segment current;
+    private CompletableFuture<Segment> next;
+    private int segments;
+    private boolean closed;
+
+    private long recorded;
+    private long recordedBytes;
+    private long dropped;
+
+    WireRecorder(Path directory, String name, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + DatagramCodec.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is below the maximum frame size");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.startNanos = System.nanoTime();
+        this.startTimestamp = Main.currentTimestamp();
+
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, glob(name))) {
+            for (Path file : stale) {
+                Files.delete(file);
+            }
+        }
+        current = prepare(segments++);
+        next = prepareNext();
+    }
+
+    /**
+     * Returns the glob that matches the segment files of a recording.
+     */
+    static String glob(String name) {
+        return name + "-[0-9][0-9][0-9]" + SUFFIX;
+    }
+
+    /**
+     * Records a complete frame that starts at {@code offset} of the buffer; the buffer's position
+     * and limit are left untouched.
+     */
+    void record(ByteBuffer buffer, int offset, int frameLength, long receiveNanoTime) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (current.buffer.remaining() < RECORD_HEADER_SIZE + frameLength && !rollOver()) {
+                dropped++;
+                return;
+            }
+            MappedByteBuffer segment = current.buffer;
+            int position = segment.position();
+            segment.putLong(position, receiveNanoTime - startNanos);
+            segment.put(position + RECORD_HEADER_SIZE, buffer, offset, frameLength);
+            segment.position(position + RECORD_HEADER_SIZE + frameLength);
+            recorded++;
+            recordedBytes += frameLength;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean rollOver() {
+        if (next == null || !next.isDone()) {
+            return false;
+        }
+        Segment segment;
+        try {
+            segment = next.join();
+        } catch (CompletionException e) {
+            // Recording is a diagnostic aid; the session keeps running without it
+            Main.log(name, "Stopping the wire recording: " + e.getCause().getMessage());
+            next = null;
+            return false;
+        }
+        Segment full = current;
+        Preparer.EXECUTOR.execute(() -> finish(full));
+        current = segment;
+        next = prepareNext();
+        return true;
+    }
+
+    private CompletableFuture<Segment> prepareNext() {
+        if (segments == maxSegments) {
+            return null;
+        }
+        int index = segments++;
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return prepare(index);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, Preparer.EXECUTOR);
+    }
+
+    private Segment prepare(int index) throws IOException {
+        Path file = directory.resolve(String.format("%s-%03d%s", name, index, SUFFIX));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            // Writing, unlike load(), also allocates the blocks, so the reader takes no page faults
+            for (int position = 0; position < segmentSize; position += PAGE_SIZE) {
+                buffer.put(position, (byte) 0);
+            }
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(startTimestamp);
+            return new Segment(file, channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void finish(Segment segment) {
+        try (FileChannel channel = segment.channel) {
+            // The mapping stays valid; the space behind the last record is given back
+            channel.truncate(segment.buffer.position());
+        } catch (IOException e) {
+            Main.log(name, "Failed to truncate " + segment.file + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                finish(current);
+                if (next != null) {
+                    // A prepared segment that was never written to is not part of the recording
+                    try {
+                        Segment unused = next.join();
+                        unused.channel.close();
+                        Files.deleteIfExists(unused.file);
+                    } catch (CompletionException e) {
+                        // Its preparation failed, there is nothing to remove
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("recorded=%d, bytes=%d, dropped=%d, segments=%d/%d",
+                recorded, recordedBytes, dropped, segments, maxSegments);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private record Segment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays a recording of {@link WireRecorder} back through {@link Main#handleDatagram} and a
+ * {@link Main.PayloadCallback}, to benchmark the consumer side against recorded traffic.
+ *
+ * Frames are handed over in place from the read-only mapped segments, at the recorded pace
+ * ({@code speed} 1), N times faster ({@code speed} N) or as fast as possible ({@code speed} 0).
+ * Each frame is stamped with its scheduled arrival, so the arrival-based latencies of the
+ * pipeline include any time the replay fell behind. Timestamp requests and Reconnects are
+ * skipped, as they would act on the clock and the session of this process; the origin timestamps
+ * of payloads are those of the recording. Responses the pipeline writes, such as keepalives,
+ * are discarded.
+ *
+ * Run as a program, it replays the recording of one session into a {@link PayloadDispatcher}
+ * (or straight into the callback) and reports the throughput and the latency from scheduled
+ * arrival to the callback.
+ */
+public final class WireReplayer {
+    private static final String STREAMING_API_REPLAY_DIR = System.getenv("STREAMING_API_REPLAY_DIR") != null
+        ? System.getenv("STREAMING_API_REPLAY_DIR") : "recordings";
+    private static final String STREAMING_API_REPLAY_SESSION = System.getenv("STREAMING_API_REPLAY_SESSION") != null
+        ? System.getenv("STREAMING_API_REPLAY_SESSION") : "consumer";
+    private static final String STREAMING_API_REPLAY_SPEED = System.getenv("STREAMING_API_REPLAY_SPEED") != null
+        ? System.getenv("STREAMING_API_REPLAY_SPEED") : "1";
+    private static final String STREAMING_API_REPLAY_DISPATCH_THREADS = System.getenv("STREAMING_API_REPLAY_DISPATCH_THREADS") != null
+        ? System.getenv("STREAMING_API_REPLAY_DISPATCH_THREADS") : "2";
+    private static final String STREAMING_API_REPLAY_LOG_LEVEL = System.getenv("STREAMING_API_REPLAY_LOG_LEVEL") != null
+        ? System.getenv("STREAMING_API_REPLAY_LOG_LEVEL") : "WARNING";
+
+    private static final Logger logger = Logger.getLogger(WireReplayer.class.getName());
+    // Gaps shorter than this are waited out spinning, as parking overshoots by tens of microseconds
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final long startTimestamp;
+
+    /**
+     * Result of one replay.
+     */
+    record Report(long frames, long bytes, long skipped, long recordedNanos, long elapsedNanos, long maxLagNanos) {
+        @Override
+        public String toString() {
+            double seconds = Math.max(1e-9, elapsedNanos / 1e9);
+            return String.format("frames=%d (%.0f/s), bytes=%d (%.2f MB/s), skipped=%d, recorded=%.2fs, "
+                + "replayed=%.2fs (%.1fx), max_lag=%dus", frames, frames / seconds, bytes, bytes / seconds / 1e6,
+                skipped, recordedNanos / 1e9, seconds, recordedNanos / 1e9 / seconds, maxLagNanos / 1000);
+        }
+    }
+
+    /**
+     * Opens the segments of the named recording in the directory, in order.
+     */
+    WireReplayer(Path directory, String name) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, WireRecorder.glob(name))) {
+            stream.forEach(files::add);
+        }
+        if (files.isEmpty()) {
+            throw new IOException("No recording " + name + " in " + directory);
+        }
+        files.sort(null);
+
+        long start = -1;
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file)) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (segment.limit() < WireRecorder.SEGMENT_HEADER_SIZE || segment.getInt(0) != WireRecorder.MAGIC
+                        || segment.getInt(4) != WireRecorder.VERSION) {
+                    throw new IOException(file + " is not a wire recording");
+                }
+                start = segment.getLong(8);
+                segments.add(segment);
+            }
+        }
+        this.startTimestamp = start;
+    }
+
+    /**
+     * Returns the protocol timestamp at which the recording started.
+     */
+    long startTimestamp() {
+        return startTimestamp;
+    }
+
+    /**
+     * Replays all frames through {@link Main#handleDatagram} on the calling thread. A speed of 0
+     * or less replays as fast as possible.
+     */
+    Report replay(Main.StreamConnection connection, Main.PayloadCallback callback, double speed, String threadName)
+            throws Exception {
+        PayloadView view = new PayloadView();
+        long frames = 0;
+        long bytes = 0;
+        long skipped = 0;
+        long firstNanos = -1;
+        long lastNanos = 0;
+        long maxLagNanos = 0;
+        long start = System.nanoTime();
+
+        for (MappedByteBuffer segment : segments) {
+            int position = WireRecorder.SEGMENT_HEADER_SIZE;
+            while (position + WireRecorder.RECORD_HEADER_SIZE + DatagramCodec.HEADER_SIZE <= segment.limit()) {
+                int frame = position + WireRecorder.RECORD_HEADER_SIZE;
+                // Zeroed space ends a segment that was not closed
+                if (segment.get(frame) != Main.HEADER_PREFIX[0]) {
+                    break;
+                }
+                int size = DatagramCodec.datagramSize(segment, frame);
+                if (frame + DatagramCodec.HEADER_SIZE + size > segment.limit()) {
+                    break;
+                }
+                position = frame + DatagramCodec.HEADER_SIZE + size;
+
+                long recordedNanos = segment.getLong(frame - WireRecorder.RECORD_HEADER_SIZE);
+                if (firstNanos < 0) {
+                    firstNanos = recordedNanos;
+                }
+                lastNanos = recordedNanos;
+
+                long arrival;
+                if (speed > 0) {
+                    arrival = start + (long) ((recordedNanos - firstNanos) / speed);
+                    long now = awaitArrival(arrival);
+                    maxLagNanos = Math.max(maxLagNanos, now - arrival);
+                } else {
+                    arrival = System.nanoTime();
+                }
+
+                byte type = size > 0 ? segment.get(frame + DatagramCodec.HEADER_SIZE) : -1;
+                if (type == DatagramCodec.TIMESTAMP_REQUEST || type == DatagramCodec.RECONNECT) {
+                    skipped++;
+                    continue;
+                }
+                Main.handleDatagram(connection, view.wrap(segment, frame + DatagramCodec.HEADER_SIZE, size)
+                    .receivedAt(arrival), callback, threadName);
+                frames++;
+                bytes += DatagramCodec.HEADER_SIZE + size;
+            }
+        }
+        return new Report(frames, bytes, skipped, Math.max(0, lastNanos - firstNanos), System.nanoTime() - start,
+            maxLagNanos);
+    }
+
+    private static long awaitArrival(long arrival) {
+        long now = System.nanoTime();
+        while (arrival - now > SPIN_NANOS) {
+            LockSupport.parkNanos(arrival - now - SPIN_NANOS);
+            now = System.nanoTime();
+        }
+        while (arrival - now > 0) {
+            Thread.onSpinWait();
+            now = System.nanoTime();
+        }
+        return now;
+    }
+
+    /**
+     * Stands in for the session's connection; whatever the pipeline writes is dropped.
+     */
+    private static final class DiscardingConnection implements Main.StreamConnection {
+        private final OutboundPipeline outbound = new OutboundPipeline(this::discard,
+            OutboundPipeline.DEFAULT_MAX_BATCH_BYTES, OutboundPipeline.DEFAULT_MAX_DELAY_NANOS, false);
+
+        private boolean discard(ByteBuffer[] buffers) {
+            for (ByteBuffer buffer : buffers) {
+                buffer.position(buffer.limit());
+            }
+            return true;
+        }
+
+        @Override
+        public OutboundPipeline outbound() {
+            return outbound;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // ======== STARTUP AND RUN LOOP ========
+
+    private static void dumpConfig() {
+        logger.warning("STREAMING_API_REPLAY_DIR: '" + STREAMING_API_REPLAY_DIR + "'");
+        logger.warning("STREAMING_API_REPLAY_SESSION: '" + STREAMING_API_REPLAY_SESSION + "'");
+        logger.warning("STREAMING_API_REPLAY_SPEED: '" + STREAMING_API_REPLAY_SPEED + "'");
+        logger.warning("STREAMING_API_REPLAY_DISPATCH_THREADS: '" + STREAMING_API_REPLAY_DISPATCH_THREADS + "'");
+        logger.warning("STREAMING_API_REPLAY_LOG_LEVEL: '" + STREAMING_API_REPLAY_LOG_LEVEL + "'");
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Report lines are logged as warnings, so they remain at the default level
+        Main.configureLogging(Level.parse(STREAMING_API_REPLAY_LOG_LEVEL));
+        dumpConfig();
+
+        double speed = Double.parseDouble(STREAMING_API_REPLAY_SPEED);
+        int dispatchThreads = Integer.parseInt(STREAMING_API_REPLAY_DISPATCH_THREADS);
+        String threadName = "replay-" + STREAMING_API_REPLAY_SESSION;
+
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder payloads = new LongAdder();
+        LongAdder payloadBytes = new LongAdder();
+        Main.PayloadViewCallback callback = view -> {
+            payloads.increment();
+            payloadBytes.add(view.payloadLength());
+            latency.record(System.nanoTime() - view.receiveNanoTime());
+        };
+
+        try {
+            WireReplayer replayer = new WireReplayer(Path.of(STREAMING_API_REPLAY_DIR), STREAMING_API_REPLAY_SESSION);
+            PayloadDispatcher dispatcher = dispatchThreads > 0
+                ? new PayloadDispatcher(dispatchThreads, 1024, PayloadDispatcher.Overflow.BLOCK) : null;
+
+            long start = System.nanoTime();
+            Report report = replayer.replay(new DiscardingConnection(),
+                dispatcher != null ? dispatcher.wrap(callback) : callback, speed, threadName);
+            if (dispatcher != null) {
+                // Closing drains the queued payloads, so the elapsed time covers all callbacks
+                dispatcher.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            logger.warning("Replay: " + report);
+            logger.warning(String.format("Payloads: %d (%.0f/s, %.2f MB/s) in %.2fs", payloads.sum(),
+                payloads.sum() / seconds, payloadBytes.sum() / seconds / 1e6, seconds));
+            logger.warning("Arrival to callback latency: " + latency);
+            if (dispatcher != null) {
+                logger.warning("Dispatcher statistics: " + dispatcher);
+            }
+        } finally {
+            Main.closeLogging();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Fixture of {@code bench.CodecBenchmark}: drives the example's codec paths against an
+ * in-memory connection that discards written batches.
+ */
+public final class CodecBench implements bench.CodecFixture {
+    private static final String THREAD_NAME = "bench";
+    private static final String IDENTIFIER = "sub00001";
+
+    private final DiscardingConnection connection = new DiscardingConnection();
+    private final PayloadView readView = new PayloadView();
+    private final PayloadView handledView = new PayloadView();
+    private byte[] payload;
+    private byte[] datagram;
+    private ByteArrayInputStream frames;
+    private ByteBuffer readBuffer;
+    private long handled;
+    private final Main.PayloadViewCallback callback = view -> handled += view.payloadLength();
+
+    @Override
+    public void setUp(int payloadSize) {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+
+        ByteBuffer frame = ByteBuffer.allocate(DatagramCodec.MAX_FRAME_SIZE);
+        DatagramCodec.encodePayloadWithIdentifier(frame, IDENTIFIER, (byte) 0x02, 1L, payload, 0, payload.length);
+        frame.flip();
+        byte[] frameBytes = new byte[frame.remaining()];
+        frame.get(frameBytes);
+
+        datagram = new byte[frameBytes.length - DatagramCodec.HEADER_SIZE];
+        System.arraycopy(frameBytes, DatagramCodec.HEADER_SIZE, datagram, 0, datagram.length);
+        frames = new ByteArrayInputStream(frameBytes);
+        readBuffer = ByteBuffer.allocate(frameBytes.length);
+        handledView.wrap(ByteBuffer.wrap(frameBytes), DatagramCodec.HEADER_SIZE, datagram.length);
+    }
+
+    @Override
+    public long writeDatagram() throws Exception {
+        Main.writeDatagram(connection, datagram, THREAD_NAME);
+        connection.flush();
+        return connection.bytes;
+    }
+
+    @Override
+    public long writePayloadWithIdentifier() throws Exception {
+        Main.writePayloadWithIdentifier(connection, IDENTIFIER, (byte) 0x02, 1L, payload, 0, payload.length, THREAD_NAME);
+        connection.flush();
+        return connection.bytes;
+    }
+
+    @Override
+    public long readDatagram() throws Exception {
+        frames.reset();
+        PayloadView view = Main.readDatagram(frames, readBuffer, readView, THREAD_NAME);
+        return view.payloadLength();
+    }
+
+    @Override
+    public long handlePayloadWithIdentifier() throws Exception {
+        Main.handleDatagram(connection, handledView, callback, THREAD_NAME);
+        return handled;
+    }
+
+    @Override
+    public String asHexStream() {
+        return Main.asHexStream(payload);
+    }
+
+    // Also the connection of JournalBench
+    static final class DiscardingConnection implements Main.StreamConnection {
+        private final OutboundPipeline outbound = new OutboundPipeline(this::discard,
+            OutboundPipeline.DEFAULT_MAX_BATCH_BYTES, OutboundPipeline.DEFAULT_MAX_DELAY_NANOS, false);
+        private long bytes;
+
+        private boolean discard(ByteBuffer[] buffers) {
+            for (ByteBuffer buffer : buffers) {
+                bytes += buffer.remaining();
+                buffer.position(buffer.limit());
+            }
+            return true;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public OutboundPipeline outbound() {
+            return outbound;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixture of {@code bench.LoopbackBenchmark} on the {@link StreamingEngine}: a producer and a
+ * consumer session on one event loop with a {@link LoopbackRelay} in between. The benchmark
+ * thread queues a payload on the producer and waits until the consumer's callback, which runs on
+ * the event loop, has handled it.
+ */
+public final class EngineLoopbackBench implements bench.LoopbackFixture {
+    private static final String THREAD_NAME = "bench";
+    private static final long IDENTIFIER_KEY = DatagramCodec.packIdentifier("sub00001");
+    private static final long LOOP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long OPEN_TIMEOUT_SECONDS = 10;
+    // Bounds a wait that missed its unpark, and how quickly a failed session is noticed
+    private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private TimerWheel timers;
+    private StreamingEngine engine;
+    private LoopbackRelay relay;
+    private StreamingEngine.Session producer;
+    private StreamingEngine.Session consumer;
+    private byte[] payload;
+    private long sent;
+    private volatile long received;
+    private volatile long handled;
+    private volatile Thread waiter;
+
+    private final Main.PayloadViewCallback callback = view -> {
+        handled += view.payloadLength();
+        received++;
+        LockSupport.unpark(waiter);
+    };
+
+    @Override
+    public String transport() {
+        return "engine";
+    }
+
+    @Override
+    public void open(boolean tls, int payloadSize) throws Exception {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+
+        timers = new TimerWheel("bench-timers", 1, 64);
+        engine = new StreamingEngine(1, timers);
+        relay = new LoopbackRelay(tls, true);
+        TlsTransport transport = tls ? new TlsTransport(TlsTransport.trustAllContext(), LoopbackRelay.TLS_PROTOCOL) : null;
+        // The loop callback first runs once the session sent its token; payloads queued before would precede it
+        CountDownLatch streaming = new CountDownLatch(2);
+        Main.LoopCallback loop = connection -> {
+            streaming.countDown();
+            return LOOP_INTERVAL_NANOS;
+        };
+        producer = engine.open(relay.host(), relay.port(), LoopbackRelay.PRODUCER_TOKEN, transport, callback, loop,
+            SessionMetrics.DETACHED, THREAD_NAME);
+        consumer = engine.open(relay.host(), relay.port(), LoopbackRelay.CONSUMER_TOKEN, transport, callback, loop,
+            SessionMetrics.DETACHED, THREAD_NAME);
+        if (!streaming.await(OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IOException("Loopback sessions did not start streaming");
+        }
+    }
+
+    @Override
+    public long transfer() throws Exception {
+        waiter = Thread.currentThread();
+        long target = ++sent;
+        Main.writePayloadWithIdentifier(producer, IDENTIFIER_KEY, (byte) 0x02, Main.currentTimestamp(),
+            payload, 0, payload.length, THREAD_NAME);
+
+        while (received < target) {
+            if (producer.isClosed() || consumer.isClosed()) {
+                consumer.awaitClose();
+                producer.awaitClose();
+                throw new IllegalStateException("Loopback session closed");
+            }
+            LockSupport.parkNanos(this, WAIT_NANOS);
+        }
+        return handled;
+    }
+
+    @Override
+    public void close() throws Exception {
+        producer.close();
+        consumer.close();
+        engine.close();
+        timers.close();
+        relay.close();
+    }
+}
@@ -0,0 +1,46 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Fixture of {@code bench.JournalBenchmark}: appends to an outbound journal in a temporary
+ * directory and sends to an in-memory connection that discards written batches. Every send
+ * acknowledges the frames of the previous one, so segments are recycled rather than mapped anew.
+ */
+public final class JournalBench implements bench.JournalFixture {
+    private static final String THREAD_NAME = "bench";
+    private static final long IDENTIFIER_KEY = DatagramCodec.packIdentifier("sub00001");
+
+    private final CodecBench.DiscardingConnection connection = new CodecBench.DiscardingConnection();
+    private Path directory;
+    private OutboundJournal journal;
+    private byte[] payload;
+    private int framesPerSend;
+
+    @Override
+    public void open(int payloadSize, int framesPerSend) throws Exception {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        this.framesPerSend = framesPerSend;
+        directory = Files.createTempDirectory("journal-bench");
+        journal = new OutboundJournal(directory, THREAD_NAME, OutboundJournal.DEFAULT_SEGMENT_SIZE,
+            OutboundJournal.DEFAULT_MAX_SEGMENTS);
+    }
+
+    @Override
+    public long appendAndSend() throws Exception {
+        for (int i = 0; i < framesPerSend; i++) {
+            journal.append(IDENTIFIER_KEY, (byte) 0x02, 1L, payload, 0, payload.length);
+        }
+        journal.send(connection, null, THREAD_NAME);
+        connection.flush();
+        return connection.bytes();
+    }
+
+    @Override
+    public void close() throws Exception {
+        // Closing the journal deletes its segment files
+        journal.close();
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Fixture of {@code bench.LoopbackBenchmark} on blocking sockets: a producer and a consumer
+ * {@link Main.SocketConnection} with a {@link LoopbackRelay} in between, driven by the
+ * benchmark thread.
+ */
+public final class LoopbackBench implements bench.LoopbackFixture {
+    private static final String THREAD_NAME = "bench";
+    private static final long IDENTIFIER_KEY = DatagramCodec.packIdentifier("sub00001");
+
+    private final PayloadView view = new PayloadView();
+    private LoopbackRelay relay;
+    private Main.SocketConnection producer;
+    private Main.SocketConnection consumer;
+    private InputStream consumerIn;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private byte[] payload;
+    private long handled;
+    private final Main.PayloadViewCallback callback = view -> handled += view.payloadLength();
+
+    @Override
+    public String transport() {
+        return "socket";
+    }
+
+    @Override
+    public void open(boolean tls, int payloadSize) throws Exception {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+
+        relay = new LoopbackRelay(tls, false);
+        TlsTransport transport = tls ? new TlsTransport(TlsTransport.trustAllContext(), LoopbackRelay.TLS_PROTOCOL) : null;
+        // The relay takes the first connection for the producer
+        Socket producerSocket = connect(transport);
+        Socket consumerSocket = connect(transport);
+        producer = new Main.SocketConnection(producerSocket);
+        consumer = new Main.SocketConnection(consumerSocket);
+        consumerIn = consumerSocket.getInputStream();
+    }
+
+    @Override
+    public long transfer() throws Exception {
+        Main.writePayloadWithIdentifier(producer, IDENTIFIER_KEY, (byte) 0x02, Main.currentTimestamp(),
+            payload, 0, payload.length, THREAD_NAME);
+        producer.flush();
+
+        PayloadView datagram = Main.readDatagram(consumerIn, readBuffer, view, THREAD_NAME);
+        readBuffer = datagram.buffer();
+        Main.handleDatagram(consumer, datagram, callback, THREAD_NAME);
+        return handled;
+    }
+
+    @Override
+    public void close() throws Exception {
+        producer.close();
+        consumer.close();
+        relay.close();
+    }
+
+    private Socket connect(TlsTransport transport) throws Exception {
+        Socket socket = transport != null
+            ? transport.connect(relay.host(), relay.port())
+            : new Socket(relay.host(), relay.port());
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+}
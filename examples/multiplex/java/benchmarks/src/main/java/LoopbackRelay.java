@@ -0,0 +1,149 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Stands in for a streaming node in the loopback benchmarks: accepts a producer and a consumer
+ * connection on localhost and forwards the producer's bytes to the consumer on a relay thread.
+ *
+ * With the handshake, each connection is greeted with the protocol version and identified by the
+ * token it sends, as the example's clients do; the producer's handshake is not forwarded. Without
+ * it, the first connection accepted is the producer and all bytes are forwarded as they are. TLS
+ * connections use a fresh self-signed certificate (made with the JDK's keytool); clients connect
+ * with {@link TlsTransport#trustAllContext()}.
+ */
+final class LoopbackRelay implements Closeable {
+    static final String TLS_PROTOCOL = "TLSv1.2";
+    static final String PRODUCER_TOKEN = "producer";
+    static final String CONSUMER_TOKEN = "consumer";
+
+    private static final char[] KEYSTORE_PASSWORD = "benchmark".toCharArray();
+
+    private final ServerSocket server;
+    private final boolean handshake;
+    private final Thread relay;
+
+    LoopbackRelay(boolean tls, boolean handshake) throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        this.server = tls
+            ? createServerContext().getServerSocketFactory().createServerSocket(0, 2, loopback)
+            : new ServerSocket(0, 2, loopback);
+        this.handshake = handshake;
+        this.relay = new Thread(this::relay, "loopback-relay");
+        this.relay.setDaemon(true);
+        this.relay.start();
+    }
+
+    String host() {
+        return server.getInetAddress().getHostAddress();
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        try {
+            relay.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void relay() {
+        try (Socket first = accept(); Socket second = accept()) {
+            Socket from = first;
+            Socket to = second;
+            if (handshake && !PRODUCER_TOKEN.equals(greet(first))) {
+                from = second;
+                to = first;
+            }
+            if (handshake) {
+                greet(second);
+            }
+
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            byte[] buffer = new byte[DatagramCodec.MAX_FRAME_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+        } catch (Exception e) {
+            // Connections closed at tear down
+        }
+    }
+
+    private Socket accept() throws IOException {
+        Socket socket = server.accept();
+        socket.setTcpNoDelay(true);
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).startHandshake();
+        }
+        return socket;
+    }
+
+    // Exchanges the protocol version and returns the token the client sent
+    private static String greet(Socket socket) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(0x01);
+        out.flush();
+
+        InputStream in = socket.getInputStream();
+        if (in.read() != 0x01) {
+            throw new IOException("Unsupported protocol version received");
+        }
+        PayloadView token = Main.readDatagram(in, ByteBuffer.allocate(DatagramCodec.MAX_FRAME_SIZE), new PayloadView(),
+            "loopback-relay");
+        if (token.type() != DatagramCodec.TOKEN) {
+            throw new IOException("Expected a token datagram");
+        }
+        return new String(token.buffer().array(), token.offset() + 1, token.length() - 1, StandardCharsets.US_ASCII);
+    }
+
+    private static SSLContext createServerContext() throws Exception {
+        Path directory = Files.createTempDirectory("loopback-bench");
+        File keystoreFile = directory.resolve("loopback.p12").toFile();
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "loopback",
+            "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1",
+            "-storetype", "PKCS12", "-keystore", keystoreFile.getPath(),
+            "-storepass", new String(KEYSTORE_PASSWORD), "-keypass", new String(KEYSTORE_PASSWORD))
+            .redirectErrorStream(true).start();
+        process.getInputStream().transferTo(OutputStream.nullOutputStream());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed to create the loopback certificate");
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keystoreFile)) {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        }
+        Files.delete(keystoreFile.toPath());
+        Files.delete(directory);
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        SSLContext context = SSLContext.getInstance(TLS_PROTOCOL);
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+}
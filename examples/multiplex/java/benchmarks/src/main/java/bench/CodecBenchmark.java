@@ -0,0 +1,62 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Frame encoding, decoding and hex formatting. Throughput mode reports operations per
+ * microsecond, sample time mode the latency percentiles; add {@code -prof gc} for allocations.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"100", "1000", "16000"})
+    int payloadSize;
+
+    private CodecFixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.load(CodecFixture.class, candidate -> true);
+        fixture.setUp(payloadSize);
+    }
+
+    @Benchmark
+    public long writeDatagram() throws Exception {
+        return fixture.writeDatagram();
+    }
+
+    @Benchmark
+    public long writePayloadWithIdentifier() throws Exception {
+        return fixture.writePayloadWithIdentifier();
+    }
+
+    @Benchmark
+    public long readDatagram() throws Exception {
+        return fixture.readDatagram();
+    }
+
+    @Benchmark
+    public long handlePayloadWithIdentifier() throws Exception {
+        return fixture.handlePayloadWithIdentifier();
+    }
+
+    @Benchmark
+    public String asHexStream() {
+        return fixture.asHexStream();
+    }
+}
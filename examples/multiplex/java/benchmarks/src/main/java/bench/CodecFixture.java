@@ -0,0 +1,22 @@
+package bench;
+
+/**
+ * Frame encode and decode paths of the example, implemented by {@code CodecBench}.
+ */
+public interface CodecFixture {
+    void setUp(int payloadSize) throws Exception;
+
+    /** Writes a prebuilt 0x05 datagram through {@code Main.writeDatagram} and flushes it. */
+    long writeDatagram() throws Exception;
+
+    /** Encodes and writes a 0x05 payload through {@code Main.writePayloadWithIdentifier} and flushes it. */
+    long writePayloadWithIdentifier() throws Exception;
+
+    /** Reads one 0x05 frame from an in-memory stream through {@code Main.readDatagram}. */
+    long readDatagram() throws Exception;
+
+    /** Handles a received 0x05 datagram through {@code Main.handleDatagram} up to the payload callback. */
+    long handlePayloadWithIdentifier() throws Exception;
+
+    String asHexStream();
+}
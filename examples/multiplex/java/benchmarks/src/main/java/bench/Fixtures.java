@@ -0,0 +1,26 @@
+package bench;
+
+import java.util.ServiceLoader;
+import java.util.function.Predicate;
+
+/**
+ * Looks up the benchmark fixtures.
+ *
+ * The example lives in the unnamed package, which code in a named package cannot reference, and
+ * JMH does not run benchmarks from the unnamed package. The fixtures are therefore written in the
+ * unnamed package next to the example and implement the interfaces of this package. They are
+ * registered as service providers in {@code META-INF/services}, so the benchmarks find them
+ * through {@link ServiceLoader} instead of by class name.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    static <T> T load(Class<T> type, Predicate<T> filter) {
+        return ServiceLoader.load(type).stream()
+            .map(ServiceLoader.Provider::get)
+            .filter(filter)
+            .findFirst()
+            .orElseThrow(() -> new IllegalStateException("No matching " + type.getSimpleName() + " registered"));
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appending payloads to the memory-mapped outbound journal and sending them to a connection that
+ * discards written batches, one payload per send and in runs of several.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JournalBenchmark {
+    @Param({"100", "1000"})
+    int payloadSize;
+
+    @Param({"1", "16"})
+    int framesPerSend;
+
+    private JournalFixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.load(JournalFixture.class, candidate -> true);
+        fixture.open(payloadSize, framesPerSend);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public long appendAndSend() throws Exception {
+        return fixture.appendAndSend();
+    }
+}
@@ -0,0 +1,13 @@
+package bench;
+
+/**
+ * Outbound journal of a producer, implemented by {@code JournalBench}.
+ */
+public interface JournalFixture {
+    void open(int payloadSize, int framesPerSend) throws Exception;
+
+    /** Appends {@code framesPerSend} 0x05 payloads, sends them through {@code OutboundJournal.send} and flushes. */
+    long appendAndSend() throws Exception;
+
+    void close() throws Exception;
+}
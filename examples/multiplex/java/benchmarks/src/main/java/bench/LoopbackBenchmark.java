@@ -0,0 +1,55 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end payload transfer from a producer connection through a relay, standing in for the
+ * streaming node, to a consumer connection, over localhost TCP with and without TLS, on blocking
+ * sockets and on the streaming engine.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopbackBenchmark {
+    @Param({"socket", "engine"})
+    String transport;
+
+    @Param({"false", "true"})
+    boolean tls;
+
+    @Param({"100", "1000"})
+    int payloadSize;
+
+    private LoopbackFixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixtures.load(LoopbackFixture.class, candidate -> candidate.transport().equals(transport));
+        fixture.open(tls, payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public long transfer() throws Exception {
+        return fixture.transfer();
+    }
+}
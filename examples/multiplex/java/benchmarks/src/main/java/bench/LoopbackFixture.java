@@ -0,0 +1,17 @@
+package bench;
+
+/**
+ * Producer and consumer connection over localhost TCP, implemented by {@code LoopbackBench} on
+ * blocking sockets and by {@code EngineLoopbackBench} on the streaming engine.
+ */
+public interface LoopbackFixture {
+    /** Names the transport, the value of the benchmark's {@code transport} parameter. */
+    String transport();
+
+    void open(boolean tls, int payloadSize) throws Exception;
+
+    /** Sends one 0x05 payload from the producer and returns once the consumer handled it. */
+    long transfer() throws Exception;
+
+    void close() throws Exception;
+}
@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.Test;
+
+class AsyncLogTest {
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+
+    private AsyncLog newLog(String name) {
+        Logger logger = Logger.getLogger("AsyncLogTest." + name);
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        return new AsyncLog(logger, 8);
+    }
+
+    @Test
+    void formatsRecordsInOrder() {
+        AsyncLog log = newLog("order");
+        log.begin(Level.INFO, "t", "a={} b={h}").arg(12).arg(0xAB).publish();
+        log.log(Level.INFO, "t", "plain");
+        log.flush(5000);
+        log.close();
+
+        assertEquals(List.of("t: a=12 b=0xAB", "t: plain"), messages);
+    }
+
+    @Test
+    void skipsARecordWhoseArgumentsThrew() {
+        AsyncLog log = newLog("abandoned");
+        assertThrows(ArithmeticException.class,
+                () -> log.begin(Level.INFO, "t", "{}").arg(1 / zero()).publish());
+        log.log(Level.INFO, "t", "after");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!messages.contains("t: after") && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        log.close();
+
+        assertTrue(messages.contains("t: after"), messages.toString());
+        assertTrue(messages.get(0).startsWith("Skipped a log record"), messages.toString());
+    }
+
+    @Test
+    void idleWriterParksWithoutTimeout() throws InterruptedException {
+        AsyncLog log = newLog("idle");
+        Thread writer = null;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            writer = Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().equals("log-writer") && thread.getState() == Thread.State.WAITING)
+                    .findFirst().orElse(null);
+            if (writer != null) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        log.log(Level.INFO, "t", "wake");
+        log.flush(5000);
+        log.close();
+
+        assertTrue(writer != null, "writer never parked without a timeout");
+        assertEquals(List.of("t: wake"), messages);
+    }
+
+    private static int zero() {
+        return 0;
+    }
+}
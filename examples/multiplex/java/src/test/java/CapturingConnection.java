@@ -0,0 +1,63 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stream connection for tests that keeps the bytes written to it and the number of frames of each
+ * write. A stalled connection takes nothing, like a socket whose send buffer is full.
+ */
+final class CapturingConnection implements Main.StreamConnection {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final OutboundPipeline outbound = new OutboundPipeline(this::take, OutboundPipeline.DEFAULT_MAX_BATCH_BYTES,
+        OutboundPipeline.DEFAULT_MAX_DELAY_NANOS, false);
+    final List<Integer> runs = new ArrayList<>();
+    boolean stalled;
+
+    private boolean take(ByteBuffer[] buffers) {
+        if (stalled) {
+            return false;
+        }
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                written.write(buffer.get());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public OutboundPipeline outbound() {
+        return outbound;
+    }
+
+    @Override
+    public void write(ByteBuffer frames, int frameCount) throws IOException {
+        runs.add(frameCount);
+        outbound.enqueue(frames, frameCount);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Returns the datagrams written so far, each as a view of its own copy.
+     */
+    List<PayloadView> datagrams() throws Exception {
+        ByteBuffer bytes = ByteBuffer.wrap(written.toByteArray());
+        List<PayloadView> datagrams = new ArrayList<>();
+        while (bytes.hasRemaining()) {
+            int size = DatagramCodec.datagramSize(bytes, bytes.position());
+            datagrams.add(new PayloadView().wrap(bytes, bytes.position() + DatagramCodec.HEADER_SIZE, size));
+            bytes.position(bytes.position() + DatagramCodec.HEADER_SIZE + size);
+        }
+        return datagrams;
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Feeds synthetic timestamp requests: a server clock 250 ms behind the local one, reached with
+ * a given one-way delay.
+ */
+class ClockSyncTest {
+    private static final long SERVER_BEHIND_MILLIS = 250;
+
+    private final ClockSync clock = new ClockSync(true);
+    private final long base = System.nanoTime();
+    // Uncorrected epoch millis at base, read before the first sample
+    private final long rawBase = clock.toMillis(base);
+
+    private static long at(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    // Server time of a request that arrives after delayMillis at base + offsetMillis
+    private long serverTime(long offsetMillis, long delayMillis) {
+        return rawBase + offsetMillis - SERVER_BEHIND_MILLIS - delayMillis;
+    }
+
+    private void request(long offsetMillis, long delayMillis) {
+        clock.onTimestampRequest(serverTime(offsetMillis, delayMillis), base + at(offsetMillis));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(Math.abs(expected - actual) <= 1, "expected " + expected + " but was " + actual);
+    }
+
+    @Test
+    void appliesTheFirstEstimateAtOnce() {
+        request(0, 0);
+
+        assertNear(serverTime(0, 0), clock.toMillis(base));
+        assertNear(serverTime(1000, 0), clock.toMillis(base + at(1000)));
+    }
+
+    @Test
+    void trailsTheServerByTheLeastDelayedSample() {
+        long[] delays = {5, 2, 8, 3, 12};
+        for (int i = 0; i < delays.length; i++) {
+            request(i * 100, delays[i]);
+        }
+
+        // Well after the changes were slewed in
+        assertNear(serverTime(2000, 0) - 2, clock.toMillis(base + at(2000)));
+        assertEquals(SERVER_BEHIND_MILLIS + 2, clock.offsetMillis(), 1);
+    }
+
+    @Test
+    void slewsALaterChangeInAtATenthOfTheElapsedTime() {
+        request(0, 0);
+        // The server clock stepped forward by 50 ms: a 50 ms change is slewed in over 500 ms
+        clock.onTimestampRequest(serverTime(1000, 0) + 50, base + at(1000));
+
+        assertNear(serverTime(1000, 0), clock.toMillis(base + at(1000)));
+        assertNear(serverTime(1250, 0) + 25, clock.toMillis(base + at(1250)));
+        assertNear(serverTime(1500, 0) + 50, clock.toMillis(base + at(1500)));
+        assertNear(serverTime(2000, 0) + 50, clock.toMillis(base + at(2000)));
+
+        long previous = Long.MIN_VALUE;
+        for (long offset = 900; offset <= 1600; offset += 10) {
+            long millis = clock.toMillis(base + at(offset));
+            assertTrue(millis >= previous, "went back at " + offset);
+            previous = millis;
+        }
+    }
+
+    @Test
+    void fitsTheDriftOnceTheSamplesSpanTenSeconds() {
+        // 100 ppm: the local clock gains 1 ms on the server every 10 s
+        for (int i = 0; i < 4; i++) {
+            request(i * 1000L, 0);
+        }
+        assertEquals(0, clock.driftPpm(), 1e-9);
+
+        for (int i = 1; i <= 64; i++) {
+            request(i * 10_000L, i);
+        }
+        assertEquals(100, clock.driftPpm(), 0.01);
+        // Extrapolated with the drift past the last sample
+        assertNear(serverTime(645_000, 64), clock.toMillis(base + at(645_000)));
+    }
+
+    @Test
+    void limitsTheDrift() {
+        for (int i = 0; i <= 8; i++) {
+            request(i * 10_000L, 10L * i);
+        }
+        assertEquals(500, clock.driftPpm(), 1e-6);
+    }
+
+    @Test
+    void usesTheWallClockWithoutCorrection() {
+        clock.setCorrecting(false);
+        request(0, 0);
+
+        long before = System.currentTimeMillis();
+        long now = clock.currentTimeMillis();
+        long earlier = clock.toMillis(System.nanoTime() - at(1000));
+        long after = System.currentTimeMillis();
+
+        assertTrue(now >= before && now <= after);
+        assertTrue(earlier >= before - 1001 && earlier <= after - 1000);
+    }
+}
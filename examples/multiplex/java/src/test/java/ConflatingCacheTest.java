@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ConflatingCacheTest {
+    private final ByteBuffer frame = ByteBuffer.allocate(256);
+    private final PayloadView view = new PayloadView();
+    private final List<String> delivered = new ArrayList<>();
+    private final Main.PayloadViewCallback consumer = payload -> delivered.add(payload.identifier() + "/"
+        + payload.payloadType() + "=" + new String(payload.payloadBytes(), StandardCharsets.US_ASCII));
+
+    // Stores a 0x05 from a reused buffer, as the socket reader does
+    private void store(ConflatingCache cache, String identifier, int payloadType, String value) {
+        frame.clear();
+        byte[] payload = value.getBytes(StandardCharsets.US_ASCII);
+        DatagramCodec.encodePayloadWithIdentifier(frame, identifier, (byte) payloadType, 1, payload, 0, payload.length);
+        cache.onPayload(view.wrap(frame, DatagramCodec.HEADER_SIZE, frame.position() - DatagramCodec.HEADER_SIZE));
+    }
+
+    @Test
+    void deliversTheLatestValueOfEachKeyInOrderOfFirstChange() {
+        ConflatingCache cache = new ConflatingCache(8, 64);
+        store(cache, "sub00001", 1, "a1");
+        store(cache, "sub00002", 1, "b1");
+        store(cache, "sub00001", 1, "a2");
+        store(cache, "sub00001", 2, "x1");
+
+        assertEquals(3, cache.drain(consumer, 10));
+        assertEquals(List.of("sub00001/1=a2", "sub00002/1=b1", "sub00001/2=x1"), delivered);
+        assertEquals("received=4, conflated=1, delivered=3, evicted=0, overflowed=0, slots=3/8", cache.toString());
+        assertEquals(0, cache.drain(consumer, 10));
+    }
+
+    @Test
+    void drainStopsAtTheLimitAndKeepsTheRest() {
+        ConflatingCache cache = new ConflatingCache(8, 64);
+        store(cache, "sub00001", 1, "a1");
+        store(cache, "sub00002", 1, "b1");
+        store(cache, "sub00003", 1, "c1");
+
+        assertEquals(2, cache.drain(consumer, 2));
+        store(cache, "sub00001", 1, "a2");
+        assertEquals(2, cache.drain(consumer, 10));
+
+        assertEquals(List.of("sub00001/1=a1", "sub00002/1=b1", "sub00003/1=c1", "sub00001/1=a2"), delivered);
+    }
+
+    @Test
+    void valuesLongerThanASlotAreKept() {
+        ConflatingCache cache = new ConflatingCache(2, 8);
+        String value = "x".repeat(100);
+        store(cache, "sub00001", 1, value);
+
+        cache.drain(consumer, 1);
+
+        assertEquals(List.of("sub00001/1=" + value), delivered);
+    }
+
+    @Test
+    void newKeysOverflowAFullPool() {
+        ConflatingCache cache = new ConflatingCache(2, 64);
+        store(cache, "sub00001", 1, "a1");
+        store(cache, "sub00001", 2, "a2");
+        store(cache, "sub00002", 1, "b1");
+        // Keys that have a slot are still updated
+        store(cache, "sub00001", 1, "a3");
+
+        cache.drain(consumer, 10);
+
+        assertEquals(List.of("sub00001/1=a3", "sub00001/2=a2"), delivered);
+        assertTrue(cache.toString().contains("overflowed=1, slots=2/2"), cache.toString());
+    }
+
+    @Test
+    void evictsIdleIdentifiersOnlyOnceDrained() throws InterruptedException {
+        ConflatingCache cache = new ConflatingCache(2, 64);
+        store(cache, "sub00001", 1, "a1");
+        store(cache, "sub00001", 2, "a2");
+
+        // Undrained values are never evicted
+        assertEquals(0, cache.evictIdle(0, TimeUnit.NANOSECONDS));
+        cache.drain(consumer, 10);
+        assertEquals(0, cache.evictIdle(1, TimeUnit.HOURS));
+        assertEquals(1, cache.evictIdle(0, TimeUnit.NANOSECONDS));
+
+        // Both slots of the identifier were freed
+        store(cache, "sub00002", 1, "b1");
+        store(cache, "sub00003", 1, "c1");
+        delivered.clear();
+        cache.drain(consumer, 10);
+        assertEquals(List.of("sub00002/1=b1", "sub00003/1=c1"), delivered);
+        assertTrue(cache.toString().contains("evicted=1, overflowed=0, slots=2/2"), cache.toString());
+    }
+
+    @Test
+    void awaitChangesReportsPendingValues() throws InterruptedException {
+        ConflatingCache cache = new ConflatingCache(2, 64);
+
+        assertFalse(cache.awaitChanges(1, TimeUnit.MILLISECONDS));
+        store(cache, "sub00001", 1, "a1");
+        assertTrue(cache.awaitChanges(0, TimeUnit.MILLISECONDS));
+        cache.drain(consumer, 10);
+        assertFalse(cache.awaitChanges(0, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,109 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class IdentifierMapTest {
+    @Test
+    void putGetAndReplace() {
+        IdentifierMap<String> map = new IdentifierMap<>(4);
+        long key = DatagramCodec.packIdentifier("sub00001");
+
+        assertNull(map.put(key, "a"));
+        assertEquals("a", map.get(key));
+        assertEquals("a", map.put(key, "b"));
+        assertEquals("b", map.get(key));
+        assertEquals(1, map.size());
+        assertNull(map.get(DatagramCodec.packIdentifier("sub00002")));
+    }
+
+    @Test
+    void zeroKeyIsKeptOutsideTheTable() {
+        IdentifierMap<String> map = new IdentifierMap<>(4);
+
+        assertNull(map.put(0, "zero"));
+        assertEquals("zero", map.get(0));
+        assertEquals(1, map.size());
+        assertEquals("zero", map.remove(0));
+        assertNull(map.get(0));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void rejectsNullValues() {
+        IdentifierMap<String> map = new IdentifierMap<>(4);
+
+        assertThrows(IllegalArgumentException.class, () -> map.put(1, null));
+    }
+
+    @Test
+    void growsBeyondTheExpectedSize() {
+        IdentifierMap<Integer> map = new IdentifierMap<>(1);
+        for (int i = 0; i < 10_000; i++) {
+            map.put(DatagramCodec.packIdentifier(String.format("sub%05d", i)), i);
+        }
+
+        assertEquals(10_000, map.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, map.get(DatagramCodec.packIdentifier(String.format("sub%05d", i))));
+        }
+    }
+
+    @Test
+    void removeKeepsProbeSequencesIntact() {
+        // Random keys with removals in between exercise the backward shift against a reference map
+        IdentifierMap<Long> map = new IdentifierMap<>(16);
+        Map<Long, Long> reference = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            // A small key range makes collisions, replacements and removals of present keys common
+            long key = 1 + random.nextInt(512);
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.remove(key), map.remove(key));
+            } else {
+                assertEquals(reference.put(key, (long) i), map.put(key, (long) i));
+            }
+        }
+
+        assertEquals(reference.size(), map.size());
+        for (long key = 1; key <= 512; key++) {
+            assertEquals(reference.get(key), map.get(key));
+            assertEquals(reference.containsKey(key), map.containsKey(key));
+        }
+    }
+
+    @Test
+    void forEachVisitsEveryEntryOnce() {
+        IdentifierMap<String> map = new IdentifierMap<>(4);
+        map.put(0, "zero");
+        map.put(7, "seven");
+        map.put(DatagramCodec.packIdentifier("sub00001"), "sub");
+        Map<Long, String> visited = new HashMap<>();
+
+        map.forEach((key, value) -> assertNull(visited.put(key, value)));
+
+        assertEquals(Map.of(0L, "zero", 7L, "seven", DatagramCodec.packIdentifier("sub00001"), "sub"), visited);
+    }
+
+    @Test
+    void clearRemovesEverything() {
+        IdentifierMap<String> map = new IdentifierMap<>(4);
+        map.put(0, "zero");
+        map.put(7, "seven");
+
+        map.clear();
+
+        assertEquals(0, map.size());
+        assertNull(map.get(0));
+        assertNull(map.get(7));
+        assertFalse(map.containsKey(7));
+        map.put(7, "again");
+        assertTrue(map.containsKey(7));
+    }
+}
@@ -0,0 +1,92 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class JsonFieldsTest {
+    // The Create Session response of the API reference, with the multiplex identifier list
+    private static final String SESSION_RESPONSE = """
+        {
+          "domain": "dev_001",
+          "type": "TLC",
+          "token": "session-token-abc123",
+          "protocol": "TCPStreaming_Multiplex",
+          "details": {
+            "securityMode": "TLSv1.2",
+            "keepAliveTimeout": "PT10S",
+            "payloadRateLimit": 12,
+            "payloadRateLimitDuration": "PT5S",
+            "payloadThroughputLimit": 60,
+            "payloadThroughputLimitDuration": "PT5S",
+            "clockDiffLimit": "PT3S",
+            "clockDiffLimitDuration": "PT1M",
+            "listener": {
+              "host": "streaming.example.com",
+              "port": 8443,
+              "expiration": "2024-01-15T10:30:00Z"
+            },
+            "tlcIdentifiers": ["sub00001", "sub00002"]
+          }
+        }
+        """;
+
+    private static Map<String, String> extract(String json, Set<String> paths) {
+        return JsonFields.extract(json.getBytes(StandardCharsets.UTF_8), paths);
+    }
+
+    @Test
+    void extractsAllSessionFieldsOfTheDocumentedResponse() {
+        Map<String, String> fields = extract(SESSION_RESPONSE, Main.SESSION_FIELDS);
+
+        assertEquals(Main.SESSION_FIELDS, fields.keySet());
+        assertEquals("session-token-abc123", fields.get("token"));
+        assertEquals("streaming.example.com", fields.get("details.listener.host"));
+        assertEquals("8443", fields.get("details.listener.port"));
+        assertEquals("PT10S", fields.get("details.keepAliveTimeout"));
+        assertEquals("12", fields.get("details.payloadRateLimit"));
+        assertEquals("60", fields.get("details.payloadThroughputLimit"));
+        assertEquals("PT1M", fields.get("details.clockDiffLimitDuration"));
+    }
+
+    @Test
+    void stopsInsideNestedObjectsOnceAllFieldsWereFound() {
+        // The last wanted field is followed by more keys in the same and in the enclosing objects
+        Map<String, String> fields = extract(SESSION_RESPONSE, Set.of("token", "details.listener.port"));
+
+        assertEquals(Map.of("token", "session-token-abc123", "details.listener.port", "8443"), fields);
+    }
+
+    @Test
+    void stopsBeforeMalformedContentBehindTheLastField() {
+        Map<String, String> fields = extract("{\"a\": {\"b\": 1, \"c\": ???", Set.of("a.b"));
+
+        assertEquals(Map.of("a.b", "1"), fields);
+    }
+
+    @Test
+    void leavesMissingAndNullFieldsOut() {
+        Map<String, String> fields = extract("{\"a\": null, \"b\": {}, \"c\": [{\"a\": 1}]}", Set.of("a", "b.x", "c.a"));
+
+        assertEquals(Map.of(), fields);
+    }
+
+    @Test
+    void unescapesStringsAndSkipsBracketsInsideStrings() {
+        Map<String, String> fields = extract("{\"skip\": [\"]}\", {\"x\": \"[\"}], \"s\": \"a\\\"b\\n\\u0041\", \"n\": -1.5e3, "
+            + "\"t\": true}", Set.of("s", "n", "t"));
+
+        assertEquals(Map.of("s", "a\"b\nA", "n", "-1.5e3", "t", "true"), fields);
+    }
+
+    @Test
+    void rejectsTruncatedDocuments() {
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+            () -> extract("{\"a\": {\"b\": 1", Set.of("a.b", "a.c")));
+
+        assertFalse(error.getMessage().isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.min());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.mean());
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 31; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(16, histogram.percentile(0.5));
+        assertEquals(31, histogram.percentile(1.0));
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(1, histogram.min());
+        assertEquals(16.0, histogram.mean());
+    }
+
+    @Test
+    void percentilesStayWithinTheBucketError() {
+        // Values spread over several powers of two, compared against the exact percentiles
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(7);
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * Math.log(1e9));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double fraction : new double[] {0.1, 0.5, 0.9, 0.99, 0.999}) {
+            long exact = values[(int) Math.ceil(fraction * values.length) - 1];
+            long reported = histogram.percentile(fraction);
+            // The upper bound of the bucket: never below the value, and less than 1/32 above it
+            assertTrue(reported >= exact && reported <= exact + exact / 32, fraction + ": " + reported + " vs " + exact);
+        }
+        assertEquals(values[0], histogram.min());
+        assertEquals(values[values.length - 1], histogram.max());
+        assertEquals(values[values.length - 1], histogram.percentile(1.0));
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.min());
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.percentile(1.0));
+    }
+
+    @Test
+    void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000);
+        histogram.record(2_000);
+
+        histogram.reset();
+        histogram.record(50);
+
+        assertEquals(1, histogram.count());
+        assertEquals(50, histogram.min());
+        assertEquals(50, histogram.max());
+        assertEquals(50, histogram.percentile(0.5));
+    }
+}
@@ -0,0 +1,48 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LoadGeneratorTest {
+    private LocalStreamingService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        service = new LocalStreamingService("127.0.0.1", 0, 0, new LocalStreamingService.Enforcement());
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.close();
+    }
+
+    private void assertDelivered(LoadGenerator generator, int consumers) {
+        assertTrue(generator.sent() > 0);
+        assertEquals(0, generator.rejected());
+        // Payloads still on the way when the sessions were closed are not received
+        assertTrue(generator.received() > 0 && generator.received() <= consumers * generator.sent(),
+            "sent " + generator.sent() + ", received " + generator.received());
+        assertEquals(generator.received(), generator.latency().count());
+        assertTrue(generator.latency().max() > 0);
+    }
+
+    @Test
+    void deliversPayloadsSentOneByOne() throws Exception {
+        LoadGenerator generator = LoadGenerator.run(service, 2, 2, 10, 100, Main.PROTOCOL_MULTIPLEX, 1, 1500);
+
+        assertDelivered(generator, 2);
+        // About 10 per second and producer, less the time taken to connect
+        assertTrue(generator.sent() >= 10 && generator.sent() <= 40, "sent " + generator.sent());
+        assertTrue(service.toString().contains("payloads_out_of_scope=0"), service.toString());
+    }
+
+    @Test
+    void deliversBatchesOverSingleplexSessions() throws Exception {
+        LoadGenerator generator = LoadGenerator.run(service, 2, 1, 10, 100, Main.PROTOCOL_SINGLEPLEX, 4, 1500);
+
+        assertDelivered(generator, 1);
+        assertEquals(0, generator.sent() % 4);
+    }
+}
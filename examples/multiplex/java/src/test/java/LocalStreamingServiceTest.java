@@ -0,0 +1,361 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Drives the stand-in over its REST endpoint and plain sockets, as a client would.
+ */
+class LocalStreamingServiceTest {
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final LocalStreamingService.Enforcement enforcement = new LocalStreamingService.Enforcement();
+    private LocalStreamingService service;
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) {
+            service.close();
+        }
+    }
+
+    private void start() throws IOException {
+        service = new LocalStreamingService("127.0.0.1", 0, 0, enforcement);
+    }
+
+    private HttpResponse<String> post(JSONObject body) throws Exception {
+        return http.send(HttpRequest.newBuilder(URI.create(service.baseUrl() + "/v1/sessions"))
+            .header("X-Authorization", "test")
+            .POST(HttpRequest.BodyPublishers.ofString(body.toString())).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> delete(String token) throws Exception {
+        return http.send(HttpRequest.newBuilder(URI.create(service.baseUrl() + "/v1/sessions/" + token))
+            .header("X-Authorization", "test").DELETE().build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static JSONObject request(String type, String protocol, List<String> identifiers) {
+        JSONObject details = new JSONObject().put("securityMode", "NONE");
+        if (Main.PROTOCOL_SINGLEPLEX.equals(protocol)) {
+            details.put("tlcIdentifier", identifiers.get(0));
+        } else {
+            details.put("tlcIdentifiers", new JSONArray(identifiers));
+        }
+        return new JSONObject().put("type", type).put("domain", "test").put("protocol", protocol)
+            .put("details", details);
+    }
+
+    private String createSession(String type, String protocol, String... identifiers) throws Exception {
+        HttpResponse<String> response = post(request(type, protocol, List.of(identifiers)));
+        assertEquals(200, response.statusCode(), response.body());
+        return new JSONObject(response.body()).getString("token");
+    }
+
+    // Waits for the statistics of the service to report the given count
+    private void awaitStatistic(String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!service.toString().contains(expected)) {
+            assertTrue(System.currentTimeMillis() < deadline, "expected " + expected + " in " + service);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitTermination(String reason) throws InterruptedException {
+        awaitStatistic("terminated[" + reason + "]=1");
+    }
+
+    private static ByteBuffer payloadWithIdentifier(String identifier, String payload) {
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        byte[] bytes = payload.getBytes(StandardCharsets.US_ASCII);
+        DatagramCodec.encodePayloadWithIdentifier(frame, identifier, (byte) 0x02, 1234, bytes, 0, bytes.length);
+        return frame.flip();
+    }
+
+    private static ByteBuffer singleplexPayload(String payload) {
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        byte[] bytes = payload.getBytes(StandardCharsets.US_ASCII);
+        DatagramCodec.encodePayload(frame, (byte) 0x02, 1234, bytes, 0, bytes.length);
+        return frame.flip();
+    }
+
+    /** A connection to the node that answers nothing; it only sends and reads datagrams. */
+    private final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final PayloadView view = new PayloadView();
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        Client() throws IOException {
+            socket = new Socket("127.0.0.1", service.streamingPort());
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        // Connects with the token and waits for the first timestamp request, sent once the session is routed
+        Client(String token) throws Exception {
+            this();
+            out.write(0x01);
+            assertEquals(0x01, in.read());
+            send(token(token));
+            assertEquals(DatagramCodec.TIMESTAMP_REQUEST, read().type());
+        }
+
+        void send(ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.position(), frame.remaining());
+        }
+
+        PayloadView read() throws Exception {
+            PayloadView datagram = Main.readDatagram(in, buffer, view, "test");
+            buffer = datagram.buffer();
+            return datagram;
+        }
+
+        // The next datagram other than a timestamp request
+        PayloadView next() throws Exception {
+            PayloadView datagram;
+            do {
+                datagram = read();
+            } while (datagram.type() == DatagramCodec.TIMESTAMP_REQUEST);
+            return datagram;
+        }
+
+        boolean isClosedByNode() throws IOException {
+            try {
+                while (true) {
+                    if (in.read() == -1) {
+                        return true;
+                    }
+                }
+            } catch (SocketException e) {
+                return true;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static ByteBuffer token(String token) {
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodeToken(frame, token);
+        return frame.flip();
+    }
+
+    // ======== REST API ========
+
+    @Test
+    void createsSessionsWithTheListenerAndEnforcementParameters() throws Exception {
+        start();
+        HttpResponse<String> response = post(request(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX,
+            List.of("sub00001", "sub00002")));
+
+        assertEquals(200, response.statusCode());
+        JSONObject session = new JSONObject(response.body());
+        JSONObject details = session.getJSONObject("details");
+        assertEquals(LocalStreamingService.TYPE_TLC, session.getString("type"));
+        assertEquals(service.streamingPort(), details.getJSONObject("listener").getInt("port"));
+        assertEquals(List.of("sub00001", "sub00002"), details.getJSONArray("tlcIdentifiers").toList());
+        assertEquals(100, details.getInt("payloadRateLimit"));
+        assertEquals("PT5S", details.getString("payloadThroughputLimitDuration"));
+        assertEquals("PT10S", details.getString("keepAliveTimeout"));
+        assertTrue(session.getString("token").length() >= 32);
+
+        JSONObject singleplex = new JSONObject(post(request(LocalStreamingService.TYPE_BROKER,
+            Main.PROTOCOL_SINGLEPLEX, List.of("sub00001"))).body()).getJSONObject("details");
+        assertEquals("sub00001", singleplex.getString("tlcIdentifier"));
+    }
+
+    @Test
+    void rejectsInvalidSessionRequests() throws Exception {
+        start();
+        HttpResponse<String> unauthorized = http.send(HttpRequest.newBuilder(
+            URI.create(service.baseUrl() + "/v1/sessions")).POST(HttpRequest.BodyPublishers.ofString("{}")).build(),
+            HttpResponse.BodyHandlers.ofString());
+        assertEquals(401, unauthorized.statusCode());
+
+        assertEquals(400, post(request("Publisher", Main.PROTOCOL_MULTIPLEX, List.of("sub00001"))).statusCode());
+        assertEquals(400, post(request(LocalStreamingService.TYPE_TLC, "UDP", List.of("sub00001"))).statusCode());
+        JSONObject both = request(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_SINGLEPLEX, List.of("sub00001"));
+        both.getJSONObject("details").put("tlcIdentifiers", new JSONArray(List.of("sub00001")));
+        assertEquals(400, post(both).statusCode());
+        assertEquals(400, post(request(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, List.of()))
+            .statusCode());
+        JSONObject tls = request(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, List.of("sub00001"));
+        tls.getJSONObject("details").put("securityMode", "TLS");
+        assertEquals(400, post(tls).statusCode());
+        assertEquals(405, delete("").statusCode());
+    }
+
+    @Test
+    void deletesASessionThatWasNotConnected() throws Exception {
+        start();
+        String token = createSession(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, "sub00001");
+
+        assertEquals(204, delete(token).statusCode());
+        assertEquals(404, delete(token).statusCode());
+        try (Client client = new Client()) {
+            client.out.write(0x01);
+            assertEquals(0x01, client.in.read());
+            client.send(token(token));
+            assertTrue(client.isClosedByNode());
+        }
+        awaitTermination("invalid token");
+    }
+
+    // ======== STREAMING NODE ========
+
+    @Test
+    void acceptsATokenOnce() throws Exception {
+        start();
+        String token = createSession(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, "sub00001");
+
+        try (Client first = new Client(token); Client second = new Client()) {
+            second.out.write(0x01);
+            assertEquals(0x01, second.in.read());
+            second.send(token(token));
+            assertTrue(second.isClosedByNode());
+            awaitTermination("invalid token");
+        }
+    }
+
+    @Test
+    void rejectsAnExpiredToken() throws Exception {
+        enforcement.sessionExpiration = Duration.ZERO;
+        start();
+        String token = createSession(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, "sub00001");
+
+        assertThrows(Exception.class, () -> new Client(token).close());
+        awaitTermination("expired token");
+    }
+
+    @Test
+    void rejectsAnUnsupportedVersion() throws Exception {
+        start();
+        try (Client client = new Client()) {
+            client.out.write(0x02);
+            assertTrue(client.isClosedByNode());
+        }
+        awaitTermination("unsupported protocol version");
+    }
+
+    @Test
+    void relaysPayloadsInTheProtocolOfEachReceiver() throws Exception {
+        start();
+        String tlcToken = createSession(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, "sub00001", "sub00002");
+        String brokerToken = createSession(LocalStreamingService.TYPE_BROKER, Main.PROTOCOL_MULTIPLEX, "sub00001");
+        String singleToken = createSession(LocalStreamingService.TYPE_BROKER, Main.PROTOCOL_SINGLEPLEX, "sub00001");
+        String monitorToken = createSession(LocalStreamingService.TYPE_MONITOR, Main.PROTOCOL_MULTIPLEX, "sub00001");
+
+        try (Client tlc = new Client(tlcToken); Client broker = new Client(brokerToken);
+                Client single = new Client(singleToken); Client monitor = new Client(monitorToken)) {
+            ByteBuffer sent = payloadWithIdentifier("sub00001", "hello");
+            tlc.send(sent.duplicate());
+
+            PayloadView multiplex = broker.next();
+            byte[] received = new byte[multiplex.length()];
+            multiplex.copyDatagram(received, 0);
+            assertArrayEquals(Arrays.copyOfRange(sent.array(), DatagramCodec.HEADER_SIZE, sent.limit()), received);
+
+            PayloadView singleplex = single.next();
+            assertEquals(DatagramCodec.PAYLOAD, singleplex.type());
+            assertEquals(1234, singleplex.originTimestamp());
+            assertEquals("hello", new String(singleplex.payloadBytes(), StandardCharsets.US_ASCII));
+
+            PayloadView copy = monitor.next();
+            assertEquals(DatagramCodec.MONITOR_PAYLOAD, copy.type());
+            assertEquals(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, copy.originalType());
+            assertEquals(tlcToken, new String(copy.buffer().array(), copy.publisherTokenOffset(),
+                copy.publisherTokenLength(), StandardCharsets.US_ASCII));
+
+            // Brokers answer the TLC; the singleplex one on its only identifier
+            single.send(singleplexPayload("answer"));
+            PayloadView answer = tlc.next();
+            assertEquals(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, answer.type());
+            assertEquals("sub00001", answer.identifier());
+            assertEquals("answer", new String(answer.payloadBytes(), StandardCharsets.US_ASCII));
+        }
+        // The answer is copied to the monitor as well
+        awaitStatistic("payloads_forwarded=3");
+        awaitStatistic("payloads_monitored=2");
+    }
+
+    @Test
+    void dropsPayloadsOutsideTheScopeOfTheSession() throws Exception {
+        start();
+        String tlcToken = createSession(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, "sub00001");
+        String brokerToken = createSession(LocalStreamingService.TYPE_BROKER, Main.PROTOCOL_MULTIPLEX, "sub00002");
+
+        try (Client tlc = new Client(tlcToken); Client broker = new Client(brokerToken)) {
+            tlc.send(payloadWithIdentifier("sub00002", "out of scope"));
+            tlc.send(payloadWithIdentifier("sub00001", "in scope"));
+
+            awaitStatistic("payloads_received=2");
+            assertTrue(service.toString().contains("payloads_out_of_scope=1"), service.toString());
+            assertTrue(service.toString().contains("payloads_forwarded=0"), service.toString());
+        }
+    }
+
+    @Test
+    void closesAConnectionThatExceedsThePayloadRateLimit() throws Exception {
+        enforcement.payloadRateLimit = 2;
+        enforcement.payloadRateLimitDuration = Duration.ofSeconds(1);
+        start();
+        String token = createSession(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, "sub00001");
+
+        try (Client tlc = new Client(token)) {
+            for (int i = 0; i < 3; i++) {
+                tlc.send(payloadWithIdentifier("sub00001", "p" + i));
+            }
+            assertTrue(tlc.isClosedByNode());
+        }
+        awaitTermination("payload rate limit");
+    }
+
+    @Test
+    void closesAConnectionThatSendsThePayloadOfTheOtherProtocol() throws Exception {
+        start();
+        String token = createSession(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_SINGLEPLEX, "sub00001");
+
+        try (Client tlc = new Client(token)) {
+            tlc.send(payloadWithIdentifier("sub00001", "multiplex"));
+            assertTrue(tlc.isClosedByNode());
+        }
+        awaitTermination("datagram 0x05 not allowed in singleplex session");
+    }
+
+    @Test
+    void closesAConnectionThatSendsNothingWithinTheKeepAliveTimeout() throws Exception {
+        enforcement.keepAliveTimeout = Duration.ofMillis(300);
+        start();
+        String token = createSession(LocalStreamingService.TYPE_TLC, Main.PROTOCOL_MULTIPLEX, "sub00001");
+
+        try (Client tlc = new Client(token)) {
+            assertTrue(tlc.isClosedByNode());
+        }
+        awaitTermination("keep alive timeout");
+    }
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MainTest {
+    private static List<Main.Payload> payloads(int count, int size) {
+        List<Main.Payload> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[size];
+            data[0] = (byte) i;
+            payloads.add(new Main.Payload(String.format("sub%05d", i), (byte) 0x01, data));
+        }
+        return payloads;
+    }
+
+    @Test
+    void publishesABatchAsPayloadsWithIdentifier() throws Exception {
+        CapturingConnection connection = new CapturingConnection();
+        List<Main.Payload> payloads = payloads(3, 10);
+
+        Main.publish(connection, payloads, false, 1234, "test");
+        connection.flush();
+
+        List<PayloadView> datagrams = connection.datagrams();
+        assertEquals(List.of(3), connection.runs);
+        assertEquals(3, datagrams.size());
+        for (int i = 0; i < datagrams.size(); i++) {
+            PayloadView datagram = datagrams.get(i);
+            assertEquals(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, datagram.type());
+            assertEquals(String.format("sub%05d", i), datagram.identifier());
+            assertEquals(1234, datagram.originTimestamp());
+            assertArrayEquals(payloads.get(i).data(), datagram.payloadBytes());
+        }
+    }
+
+    @Test
+    void publishesABatchWithoutIdentifiersOnASingleplexSession() throws Exception {
+        CapturingConnection connection = new CapturingConnection();
+        List<Main.Payload> payloads = payloads(3, 10);
+
+        Main.publish(connection, payloads, true, 1234, "test");
+        connection.flush();
+
+        List<PayloadView> datagrams = connection.datagrams();
+        assertEquals(3, datagrams.size());
+        for (int i = 0; i < datagrams.size(); i++) {
+            PayloadView datagram = datagrams.get(i);
+            assertEquals(DatagramCodec.PAYLOAD, datagram.type());
+            assertFalse(datagram.hasIdentifier());
+            assertEquals(1234, datagram.originTimestamp());
+            assertArrayEquals(payloads.get(i).data(), datagram.payloadBytes());
+        }
+    }
+
+    @Test
+    void splitsABatchIntoRunsOfAtMostTheRunSize() throws Exception {
+        // 1800 bytes leave room for 8 frames with identifier per run, but 9 without
+        int size = 1800;
+        assertEquals(8, Main.PUBLISH_RUN_BYTES / (DatagramCodec.PAYLOAD_WITH_IDENTIFIER_FRAME_OVERHEAD + size));
+        assertEquals(9, Main.PUBLISH_RUN_BYTES / (DatagramCodec.PAYLOAD_FRAME_OVERHEAD + size));
+        CapturingConnection multiplex = new CapturingConnection();
+        CapturingConnection singleplex = new CapturingConnection();
+
+        Main.publish(multiplex, payloads(20, size), false, 1, "test");
+        Main.publish(singleplex, payloads(20, size), true, 1, "test");
+        multiplex.flush();
+        singleplex.flush();
+
+        assertEquals(List.of(8, 8, 4), multiplex.runs);
+        assertEquals(List.of(9, 9, 2), singleplex.runs);
+        List<PayloadView> datagrams = multiplex.datagrams();
+        assertEquals(20, datagrams.size());
+        for (int i = 0; i < datagrams.size(); i++) {
+            assertEquals((byte) i, datagrams.get(i).payloadByte(0));
+        }
+        assertEquals(20, singleplex.datagrams().size());
+    }
+
+    @Test
+    void writesAPayloadLargerThanARunOnItsOwn() throws Exception {
+        CapturingConnection connection = new CapturingConnection();
+        List<Main.Payload> payloads = new ArrayList<>(payloads(1, 100));
+        payloads.addAll(payloads(1, Main.PUBLISH_RUN_BYTES + 1000));
+        payloads.addAll(payloads(1, 100));
+
+        Main.publish(connection, payloads, false, 1, "test");
+        connection.flush();
+
+        assertEquals(List.of(1, 1, 1), connection.runs);
+        List<PayloadView> datagrams = connection.datagrams();
+        assertEquals(3, datagrams.size());
+        assertEquals(Main.PUBLISH_RUN_BYTES + 1000, datagrams.get(1).payloadLength());
+    }
+
+    @Test
+    void publishesNothingForAnEmptyBatch() throws Exception {
+        CapturingConnection connection = new CapturingConnection();
+
+        Main.publish(connection, List.of(), false, 1, "test");
+
+        assertTrue(connection.runs.isEmpty());
+    }
+}
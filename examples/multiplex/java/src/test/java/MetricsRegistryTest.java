@@ -0,0 +1,130 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.Attribute;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class MetricsRegistryTest {
+    // Session names of their own, as the registry of Main may share the platform MBean server
+    private static final String SESSION = "registry-test";
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    @AfterEach
+    void tearDown() {
+        registry.close();
+    }
+
+    private static List<String> lines(String text, String prefix) {
+        List<String> lines = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (line.startsWith(prefix)) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    void scrapesCountersPerSessionAndType() {
+        SessionMetrics metrics = registry.session(SESSION);
+        metrics.received(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, 40);
+        metrics.received(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, 60);
+        metrics.received(DatagramCodec.KEEPALIVE, 5);
+        metrics.sent(DatagramCodec.TOKEN, 12);
+        metrics.connected();
+
+        String text = registry.scrape();
+
+        assertTrue(text.startsWith("# HELP streaming_datagrams_received_total Datagrams received.\n"
+            + "# TYPE streaming_datagrams_received_total counter\n"
+            + "streaming_datagrams_received_total{session=\"registry-test\",type=\"keepalive\"} 1\n"
+            + "streaming_datagrams_received_total{session=\"registry-test\",type=\"payload_with_identifier\"} 2\n"
+            + "# HELP streaming_bytes_received_total "), text);
+        assertEquals(List.of("streaming_bytes_received_total{session=\"registry-test\",type=\"keepalive\"} 5",
+            "streaming_bytes_received_total{session=\"registry-test\",type=\"payload_with_identifier\"} 100"),
+            lines(text, "streaming_bytes_received_total{"));
+        assertEquals(List.of("streaming_datagrams_sent_total{session=\"registry-test\",type=\"token\"} 1"),
+            lines(text, "streaming_datagrams_sent_total{"));
+        assertEquals(List.of("streaming_connections_total{session=\"registry-test\"} 1"),
+            lines(text, "streaming_connections_total{"));
+        assertTrue(text.contains("# TYPE streaming_rate_limit_headroom_ratio gauge\n"));
+        assertEquals(List.of("streaming_rate_limit_headroom_ratio{session=\"registry-test\"} 1"),
+            lines(text, "streaming_rate_limit_headroom_ratio{"));
+        assertTrue(text.endsWith("\n"));
+    }
+
+    @Test
+    void scrapesLatencyAsASummaryOnceRecorded() {
+        SessionMetrics metrics = registry.session(SESSION);
+        assertTrue(lines(registry.scrape(), "streaming_payload_latency_seconds{").isEmpty());
+
+        metrics.payloadLatency(2);
+        metrics.payloadLatency(4);
+        String text = registry.scrape();
+
+        assertTrue(text.contains("# TYPE streaming_payload_latency_seconds summary\n"));
+        List<String> quantiles = lines(text, "streaming_payload_latency_seconds{");
+        assertEquals(4, quantiles.size());
+        assertTrue(quantiles.get(0).startsWith("streaming_payload_latency_seconds{session=\"registry-test\","
+            + "quantile=\"0.5\"} 0.00"));
+        assertEquals(List.of("streaming_payload_latency_seconds_count{session=\"registry-test\"} 2"),
+            lines(text, "streaming_payload_latency_seconds_count"));
+        String sum = lines(text, "streaming_payload_latency_seconds_sum").get(0);
+        assertEquals(0.006, Double.parseDouble(sum.substring(sum.indexOf("} ") + 2)), 1e-9);
+    }
+
+    @Test
+    void escapesSessionNamesAndAppendsGauges() {
+        registry.session("a \"quoted\" \\ name").connected();
+        registry.gauge("streaming_test_gauge", "A gauge.", () -> 1.5);
+
+        String text = registry.scrape();
+
+        assertEquals(List.of("streaming_connections_total{session=\"a \\\"quoted\\\" \\\\ name\"} 1"),
+            lines(text, "streaming_connections_total{"));
+        assertTrue(text.endsWith("# HELP streaming_test_gauge A gauge.\n"
+            + "# TYPE streaming_test_gauge gauge\nstreaming_test_gauge 1.5\n"));
+    }
+
+    @Test
+    void registersEachSessionAsAReadOnlyMBean() throws Exception {
+        SessionMetrics metrics = registry.session(SESSION);
+        metrics.sent(DatagramCodec.TOKEN, 12);
+        metrics.sent(DatagramCodec.KEEPALIVE, 5);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("multiplex:type=Session,name=" + ObjectName.quote(SESSION));
+
+        // Attributes are read on every request
+        assertEquals(2L, server.getAttribute(name, "DatagramsSent"));
+        metrics.sent(DatagramCodec.KEEPALIVE, 5);
+        assertEquals(3L, server.getAttribute(name, "DatagramsSent"));
+        assertEquals(2L, server.getAttribute(name, "DatagramsSent_keepalive"));
+        assertEquals(2, server.getAttributes(name, new String[]{"BytesSent", "Missing", "Connections"}).size());
+
+        List<String> names = new ArrayList<>();
+        for (MBeanAttributeInfo info : server.getMBeanInfo(name).getAttributes()) {
+            assertTrue(info.isReadable());
+            assertFalse(info.isWritable());
+            names.add(info.getName());
+        }
+        assertTrue(names.contains("PayloadLatencyP99Millis"));
+
+        assertThrows(AttributeNotFoundException.class, () -> server.getAttribute(name, "Missing"));
+        assertThrows(AttributeNotFoundException.class,
+            () -> server.setAttribute(name, new Attribute("DatagramsSent", 0L)));
+
+        registry.close();
+        assertFalse(server.isRegistered(name));
+    }
+}
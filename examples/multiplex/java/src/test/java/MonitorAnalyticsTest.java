@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class MonitorAnalyticsTest {
+    private static final byte[] PAYLOAD = {1, 2, 3};
+
+    private static PayloadView monitorPayload(String token, String identifier) {
+        ByteBuffer original = ByteBuffer.allocate(64);
+        if (identifier != null) {
+            DatagramCodec.encodePayloadWithIdentifier(original, identifier, (byte) 0x01, 1, PAYLOAD, 0,
+                PAYLOAD.length);
+        } else {
+            DatagramCodec.encodePayload(original, (byte) 0x01, 1, PAYLOAD, 0, PAYLOAD.length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(DatagramCodec.MAX_FRAME_SIZE);
+        long now = Main.currentTimestamp();
+        DatagramCodec.encodeMonitorPayload(frame, token.getBytes(StandardCharsets.US_ASCII), now - 5, now, original,
+            DatagramCodec.HEADER_SIZE, original.position() - DatagramCodec.HEADER_SIZE);
+        return new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE, frame.position() - DatagramCodec.HEADER_SIZE);
+    }
+
+    private static int slot(String token, int capacity) {
+        byte[] bytes = token.getBytes(StandardCharsets.US_ASCII);
+        return MonitorAnalytics.slot(MonitorAnalytics.hash(ByteBuffer.wrap(bytes), 0, bytes.length), capacity);
+    }
+
+    private static String line(String report, String start) {
+        for (String line : report.split("\n")) {
+            if (line.startsWith("  " + start + ": ")) {
+                return line;
+            }
+        }
+        return "";
+    }
+
+    @Test
+    void keepsPublishersWhoseTokensStartProbingAtTheSameSlotApart() {
+        // Two publishers get a table of 4 slots
+        String first = "token-0";
+        String second = null;
+        for (int i = 1; second == null; i++) {
+            if (slot("token-" + i, 4) == slot(first, 4)) {
+                second = "token-" + i;
+            }
+        }
+        MonitorAnalytics analytics = new MonitorAnalytics(2, 16);
+
+        analytics.onPayload(monitorPayload(first, "sub00001"));
+        analytics.onPayload(monitorPayload(second, "sub00001"));
+        analytics.onPayload(monitorPayload(second, "sub00001"));
+        analytics.onPayload(monitorPayload(first, "sub00001"));
+        analytics.onPayload(monitorPayload(second, "sub00001"));
+
+        String report = analytics.report(10);
+        assertTrue(report.contains("publishers=2, identifiers=1, untracked_publisher_payloads=0"), report);
+        assertTrue(line(report, "publisher " + first).contains(" messages=2, "), report);
+        assertTrue(line(report, "publisher " + second).contains(" messages=3, "), report);
+        assertTrue(line(report, "identifier sub00001").contains(" messages=5, "), report);
+    }
+
+    @Test
+    void hashesTheWholeToken() {
+        byte[] token = "publisher-token".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(token.length + 4).position(4).put(token);
+
+        assertEquals(MonitorAnalytics.hash(ByteBuffer.wrap(token), 0, token.length),
+            MonitorAnalytics.hash(buffer, 4, token.length));
+        assertNotEquals(MonitorAnalytics.hash(buffer, 4, token.length),
+            MonitorAnalytics.hash(buffer, 4, token.length - 1));
+        // FNV-1a of no bytes is its offset basis
+        assertEquals(0xCBF29CE484222325L, MonitorAnalytics.hash(buffer, 0, 0));
+    }
+
+    @Test
+    void countsPayloadsBeyondTheCapacityOnlyInTheTotals() {
+        MonitorAnalytics analytics = new MonitorAnalytics(1, 1);
+
+        analytics.onPayload(monitorPayload("token-a", "sub00001"));
+        analytics.onPayload(monitorPayload("token-b", "sub00001"));
+        analytics.onPayload(monitorPayload("token-a", "sub00002"));
+        analytics.onPayload(monitorPayload("token-c", "sub00003"));
+
+        String report = analytics.report(10);
+        assertTrue(report.contains("publishers=1, identifiers=1, untracked_publisher_payloads=2, "
+            + "untracked_identifier_payloads=2, "), report);
+        assertTrue(line(report, "total").contains(" messages=4, "), report);
+        assertTrue(line(report, "publisher token-a").contains(" messages=2, "), report);
+        assertFalse(report.contains("token-b"), report);
+        assertFalse(report.contains("sub00002"), report);
+        assertEquals("messages=4, bytes=12, publishers=1, identifiers=1", analytics.toString());
+    }
+
+    @Test
+    void countsSingleplexOriginalsApartFromIdentifiers() {
+        MonitorAnalytics analytics = new MonitorAnalytics(4, 4);
+
+        analytics.onPayload(monitorPayload("token-a", null));
+        analytics.onPayload(monitorPayload("token-a", null));
+        analytics.onPayload(monitorPayload("token-a", "sub00001"));
+
+        String report = analytics.report(10);
+        assertTrue(report.contains("publishers=1, identifiers=1, untracked_publisher_payloads=0, "
+            + "untracked_identifier_payloads=0, payloads_without_identifier=2, ignored=0"), report);
+        assertEquals("", line(report, "identifier "));
+        assertTrue(line(report, "identifier sub00001").contains(" messages=1, "), report);
+        assertTrue(line(report, "publisher token-a").contains(" messages=3, "), report);
+    }
+
+    @Test
+    void ignoresOtherDatagrams() {
+        MonitorAnalytics analytics = new MonitorAnalytics(4, 4);
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        DatagramCodec.encodePayloadWithIdentifier(frame, "sub00001", (byte) 0x01, 1, PAYLOAD, 0, PAYLOAD.length);
+
+        analytics.onPayload(new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE,
+            frame.position() - DatagramCodec.HEADER_SIZE));
+
+        String report = analytics.report(10);
+        assertTrue(report.contains("publishers=0, identifiers=0, ") && report.contains(", ignored=1"), report);
+    }
+
+    @Test
+    void histogramBucketsAreExactBelowEightAndWithinAnEighthAbove() {
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, MonitorAnalytics.Histogram.bucketOf(value));
+            assertEquals(value, MonitorAnalytics.Histogram.upperBound(value));
+        }
+        assertEquals(8, MonitorAnalytics.Histogram.bucketOf(8));
+        assertEquals(16, MonitorAnalytics.Histogram.bucketOf(16));
+        assertEquals(17, MonitorAnalytics.Histogram.upperBound(16));
+        assertEquals(231, MonitorAnalytics.Histogram.bucketOf(Integer.MAX_VALUE));
+        assertEquals(Integer.MAX_VALUE, MonitorAnalytics.Histogram.upperBound(231));
+
+        long previousBound = -1;
+        for (int bucket = 0; bucket <= 231; bucket++) {
+            long bound = MonitorAnalytics.Histogram.upperBound(bucket);
+            // Buckets are contiguous: each starts right after the previous bound
+            assertEquals(bucket, MonitorAnalytics.Histogram.bucketOf(previousBound + 1));
+            assertEquals(bucket, MonitorAnalytics.Histogram.bucketOf(bound));
+            assertTrue(bound - previousBound <= Math.max(1, (previousBound + 1) / 8), "bucket " + bucket);
+            previousBound = bound;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutboundJournalTest {
+    private static final long IDENTIFIER = DatagramCodec.packIdentifier("sub00001");
+
+    @TempDir
+    Path directory;
+
+    private static void append(OutboundJournal journal, String value) throws Exception {
+        byte[] payload = value.getBytes(StandardCharsets.US_ASCII);
+        journal.append(IDENTIFIER, (byte) 0x01, 1, payload, 0, payload.length);
+    }
+
+    private static List<String> payloads(CapturingConnection connection) throws Exception {
+        List<String> payloads = new ArrayList<>();
+        for (PayloadView datagram : connection.datagrams()) {
+            payloads.add(new String(datagram.payloadBytes(), StandardCharsets.US_ASCII));
+        }
+        return payloads;
+    }
+
+    private static void send(OutboundJournal journal, CapturingConnection connection) throws Exception {
+        journal.send(connection, null, "test");
+        connection.flush();
+    }
+
+    @Test
+    void sendsAppendedFramesInOrder() throws Exception {
+        try (OutboundJournal journal = new OutboundJournal(directory, "journal", OutboundJournal.DEFAULT_SEGMENT_SIZE, 4)) {
+            CapturingConnection connection = new CapturingConnection();
+            append(journal, "a");
+            append(journal, "b");
+            send(journal, connection);
+            append(journal, "c");
+            assertTrue(journal.hasUnsent());
+            send(journal, connection);
+
+            assertEquals(List.of("a", "b", "c"), payloads(connection));
+            assertEquals(IDENTIFIER, connection.datagrams().get(0).identifierKey());
+            assertFalse(journal.hasUnsent());
+            assertEquals(0, journal.backlog());
+        }
+    }
+
+    @Test
+    void replaysFromTheAcknowledgedOffsetOnANewConnection() throws Exception {
+        try (OutboundJournal journal = new OutboundJournal(directory, "journal", OutboundJournal.DEFAULT_SEGMENT_SIZE, 4)) {
+            CapturingConnection first = new CapturingConnection();
+            append(journal, "a");
+            append(journal, "b");
+            send(journal, first);
+            assertEquals(0, journal.backlog());
+
+            // Handed to the connection, but never written to its socket
+            first.stalled = true;
+            append(journal, "c");
+            append(journal, "d");
+            send(journal, first);
+            assertFalse(journal.hasUnsent());
+            assertEquals(2, journal.backlog());
+
+            CapturingConnection second = new CapturingConnection();
+            append(journal, "e");
+            send(journal, second);
+
+            assertEquals(List.of("a", "b"), payloads(first));
+            assertEquals(List.of("c", "d", "e"), payloads(second));
+            assertEquals(0, journal.backlog());
+            assertTrue(journal.toString().startsWith("appended=5, sent=7, replayed=2, dropped=0"), journal.toString());
+        }
+    }
+
+    @Test
+    void sendsOnlyWhatTheGovernorAdmits() throws Exception {
+        Main.SessionInfo session = new Main.SessionInfo("localhost", 0, "token");
+        session.payloadRateLimit = 2;
+        session.payloadRateLimitDuration = Duration.ofSeconds(1);
+        PayloadGovernor governor = new PayloadGovernor(session, PayloadGovernor.Backpressure.REJECT, 0, 1.0);
+        try (OutboundJournal journal = new OutboundJournal(directory, "journal", OutboundJournal.DEFAULT_SEGMENT_SIZE, 4)) {
+            CapturingConnection connection = new CapturingConnection();
+            for (String value : List.of("a", "b", "c", "d")) {
+                append(journal, value);
+            }
+            journal.send(connection, governor, "test");
+            connection.flush();
+
+            assertEquals(List.of("a", "b"), payloads(connection));
+            assertTrue(journal.hasUnsent());
+            assertEquals(2, journal.backlog());
+        }
+    }
+
+    @Test
+    void sendsAcrossSegmentsAndRecyclesThem() throws Exception {
+        // Two 30000 byte payloads fit one segment of the minimum size
+        String large = "x".repeat(30_000);
+        try (OutboundJournal journal = new OutboundJournal(directory, "journal", DatagramCodec.MAX_FRAME_SIZE, 3)) {
+            CapturingConnection connection = new CapturingConnection();
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < 3; i++) {
+                    append(journal, round + large + i);
+                }
+                send(journal, connection);
+            }
+
+            List<String> payloads = payloads(connection);
+            assertEquals(12, payloads.size());
+            for (int i = 0; i < payloads.size(); i++) {
+                assertEquals(i / 3 + large + i % 3, payloads.get(i));
+            }
+            assertTrue(journal.toString().contains("dropped=0, unacknowledged=0, segments=3/3"), journal.toString());
+        }
+    }
+
+    @Test
+    void dropsTheOldestSegmentWhenAllAreUnacknowledged() throws Exception {
+        String large = "x".repeat(30_000);
+        try (OutboundJournal journal = new OutboundJournal(directory, "journal", DatagramCodec.MAX_FRAME_SIZE, 2)) {
+            CapturingConnection connection = new CapturingConnection();
+            for (int i = 0; i < 5; i++) {
+                append(journal, i + large);
+            }
+            send(journal, connection);
+
+            List<String> payloads = payloads(connection);
+            assertEquals(List.of(2 + large, 3 + large, 4 + large), payloads);
+            assertTrue(journal.toString().contains("dropped=2"), journal.toString());
+        }
+    }
+
+    @Test
+    void singleplexJournalWritesPayloadsWithoutIdentifier() throws Exception {
+        try (OutboundJournal journal = new OutboundJournal(directory, "journal", OutboundJournal.DEFAULT_SEGMENT_SIZE, 2,
+                true)) {
+            CapturingConnection connection = new CapturingConnection();
+            append(journal, "a");
+            send(journal, connection);
+
+            PayloadView datagram = connection.datagrams().get(0);
+            assertEquals(DatagramCodec.PAYLOAD, datagram.type());
+            assertEquals("a", new String(datagram.payloadBytes(), StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class OutboundPipelineTest {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    // Bytes the sink takes per write, like the free space of a socket send buffer
+    private int budget = Integer.MAX_VALUE;
+    private int writes;
+    private final OutboundPipeline pipeline = new OutboundPipeline(this::take, 1024, 0, false);
+
+    private boolean take(ByteBuffer[] buffers) {
+        writes++;
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining() && budget > 0) {
+                written.write(buffer.get());
+                budget--;
+            }
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer frame(int type, int size) {
+        ByteBuffer frame = ByteBuffer.allocate(DatagramCodec.HEADER_SIZE + size);
+        frame.put(Main.HEADER_PREFIX).putShort((short) size).put((byte) type);
+        while (frame.hasRemaining()) {
+            frame.put((byte) frame.position());
+        }
+        return frame.flip();
+    }
+
+    private static byte[] bytes(ByteBuffer... frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer frame : frames) {
+            out.write(frame.array(), 0, frame.limit());
+        }
+        return out.toByteArray();
+    }
+
+    private ByteBuffer writtenBytes() {
+        return ByteBuffer.wrap(written.toByteArray());
+    }
+
+    @Test
+    void stagesFramesUntilTheBatchIsFull() throws IOException {
+        ByteBuffer small = frame(0x05, 100);
+        assertTrue(pipeline.enqueue(small.duplicate()));
+        assertFalse(pipeline.enqueue(small.duplicate()));
+        assertEquals(0, writes);
+
+        pipeline.enqueue(frame(0x05, 812));
+        assertEquals(1, writes);
+        assertEquals(3, pipeline.frames());
+        assertTrue(pipeline.isEmpty());
+    }
+
+    @Test
+    void writesTimestampResponsesAheadOfStagedFrames() throws IOException {
+        ByteBuffer staged = frame(0x05, 100);
+        pipeline.enqueue(staged.duplicate());
+
+        long t2 = pipeline.enqueueTimestampResponse(1000, 1010);
+
+        ByteBuffer out = writtenBytes();
+        assertEquals(DatagramCodec.TIMESTAMP_RESPONSE, out.get(DatagramCodec.HEADER_SIZE));
+        assertEquals(1000, out.getLong(DatagramCodec.HEADER_SIZE + 1));
+        assertEquals(1010, out.getLong(DatagramCodec.HEADER_SIZE + 9));
+        assertEquals(t2, out.getLong(DatagramCodec.HEADER_SIZE + 17));
+        byte[] rest = new byte[out.remaining() - DatagramCodec.HEADER_SIZE - 25];
+        out.position(DatagramCodec.HEADER_SIZE + 25).get(rest);
+        assertArrayEquals(bytes(staged), rest);
+        assertEquals(1, writes);
+    }
+
+    @Test
+    void stampsT2WhenTheResponseIsSwappedIntoABatch() throws Exception {
+        budget = 0;
+        pipeline.enqueue(frame(0x05, 100));
+        assertFalse(pipeline.flush());
+
+        // The sink is busy, so the response waits for the batch in flight
+        long queued = Main.currentTimestamp();
+        assertEquals(-1, pipeline.enqueueTimestampResponse(1000, 1010));
+        Thread.sleep(50);
+        long swapped = Main.currentTimestamp();
+        budget = Integer.MAX_VALUE;
+        assertTrue(pipeline.flush());
+
+        ByteBuffer out = writtenBytes();
+        int response = DatagramCodec.HEADER_SIZE + 100;
+        assertEquals(DatagramCodec.TIMESTAMP_RESPONSE, out.get(response + DatagramCodec.HEADER_SIZE));
+        long t2 = out.getLong(response + DatagramCodec.HEADER_SIZE + 17);
+        assertTrue(t2 >= swapped && t2 >= queued + 50, "t2 " + t2 + " taken before the swap at " + swapped);
+    }
+
+    @Test
+    void retriesABlockedSinkAndSendsWhatWasStagedMeanwhile() throws IOException {
+        budget = 150;
+        ByteBuffer first = frame(0x05, 600);
+        ByteBuffer second = frame(0x05, 600);
+        pipeline.enqueue(first.duplicate());
+        assertFalse(pipeline.flush());
+        assertFalse(pipeline.isEmpty());
+
+        // Staged while the first batch is still being written
+        pipeline.enqueue(second.duplicate());
+        int retries = 0;
+        while (true) {
+            budget = 150;
+            if (pipeline.flush()) {
+                break;
+            }
+            retries++;
+        }
+
+        assertArrayEquals(bytes(first, second), written.toByteArray());
+        assertTrue(retries > 4);
+        assertEquals(2, pipeline.batches());
+        assertEquals(2, pipeline.frames());
+        assertEquals(pipeline.enqueuedBytes(), pipeline.writtenBytes());
+        assertTrue(pipeline.isEmpty());
+    }
+
+    @Test
+    void growsTheStagingBufferForAFrameLargerThanABatch() throws IOException {
+        ByteBuffer large = frame(0x05, 5000);
+        pipeline.enqueue(large.duplicate());
+
+        assertArrayEquals(bytes(large), written.toByteArray());
+    }
+
+    @Test
+    void rejectsTimestampResponsesBeyondTheLimit() throws IOException {
+        budget = 0;
+        // The first response is swapped into the batch in flight, the next 16 wait
+        for (int i = 0; i <= 16; i++) {
+            assertEquals(-1, pipeline.enqueueTimestampResponse(1000 + i, 1010 + i));
+        }
+
+        IOException e = assertThrows(IOException.class, () -> pipeline.enqueueTimestampResponse(2000, 2010));
+        assertEquals("Too many pending timestamp responses", e.getMessage());
+    }
+}
@@ -0,0 +1,189 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class PayloadDispatcherTest {
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    // Holds the first payload in its callback until released, so the following ones queue up
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Main.PayloadViewCallback holdFirst = view -> {
+        if (started.getCount() > 0) {
+            started.countDown();
+            await(release);
+        }
+        received.add(new String(view.payloadBytes(), StandardCharsets.US_ASCII));
+    };
+
+    private static PayloadView view(String identifier, String payload) {
+        ByteBuffer frame = ByteBuffer.allocate(DatagramCodec.MAX_FRAME_SIZE);
+        byte[] bytes = payload.getBytes(StandardCharsets.US_ASCII);
+        DatagramCodec.encodePayloadWithIdentifier(frame, identifier, (byte) 0x01, 1, bytes, 0, bytes.length);
+        return new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE, frame.position() - DatagramCodec.HEADER_SIZE);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Dispatches the first payload and waits until the worker holds it
+    private void holdWorker(PayloadDispatcher dispatcher, String identifier) {
+        dispatcher.dispatch(view(identifier, "a"), holdFirst);
+        await(started);
+    }
+
+    @Test
+    void keepsThePayloadsOfEachIdentifierInOrderOnOneWorker() {
+        Map<String, List<String>> payloads = new ConcurrentHashMap<>();
+        Map<String, Set<String>> workers = new ConcurrentHashMap<>();
+        Main.PayloadViewCallback callback = view -> {
+            payloads.computeIfAbsent(view.identifier(), key -> Collections.synchronizedList(new ArrayList<>()))
+                .add(new String(view.payloadBytes(), StandardCharsets.US_ASCII));
+            workers.computeIfAbsent(view.identifier(), key -> ConcurrentHashMap.newKeySet())
+                .add(Thread.currentThread().getName());
+        };
+
+        PayloadDispatcher dispatcher = new PayloadDispatcher(4, 16, PayloadDispatcher.Overflow.BLOCK);
+        for (int i = 0; i < 1000; i++) {
+            dispatcher.dispatch(view("sub0000" + i % 8, Integer.toString(i)), callback);
+        }
+        dispatcher.close();
+
+        assertEquals(8, payloads.size());
+        for (int identifier = 0; identifier < 8; identifier++) {
+            List<String> expected = new ArrayList<>();
+            for (int i = identifier; i < 1000; i += 8) {
+                expected.add(Integer.toString(i));
+            }
+            assertEquals(expected, payloads.get("sub0000" + identifier));
+            assertEquals(1, workers.get("sub0000" + identifier).size());
+        }
+    }
+
+    @Test
+    void dropsTheNewestPayloadWhenTheShardIsFull() {
+        PayloadDispatcher dispatcher = new PayloadDispatcher(1, 2, PayloadDispatcher.Overflow.DROP_NEWEST);
+        holdWorker(dispatcher, "sub00001");
+        for (String payload : List.of("b", "c", "d")) {
+            dispatcher.dispatch(view("sub00001", payload), holdFirst);
+        }
+
+        assertEquals(2, dispatcher.queueDepth(0));
+        assertEquals(1, dispatcher.dropped(0));
+        release.countDown();
+        dispatcher.close();
+        assertEquals(List.of("a", "b", "c"), received);
+    }
+
+    @Test
+    void dropsTheOldestPayloadWhenTheShardIsFull() {
+        PayloadDispatcher dispatcher = new PayloadDispatcher(1, 2, PayloadDispatcher.Overflow.DROP_OLDEST);
+        holdWorker(dispatcher, "sub00001");
+        for (String payload : List.of("b", "c", "d")) {
+            dispatcher.dispatch(view("sub00001", payload), holdFirst);
+        }
+
+        assertEquals(2, dispatcher.queueDepth(0));
+        assertEquals(1, dispatcher.dropped(0));
+        release.countDown();
+        dispatcher.close();
+        assertEquals(List.of("a", "c", "d"), received);
+    }
+
+    @Test
+    void blocksTheReaderUntilTheShardHasRoom() throws Exception {
+        PayloadDispatcher dispatcher = new PayloadDispatcher(1, 1, PayloadDispatcher.Overflow.BLOCK);
+        holdWorker(dispatcher, "sub00001");
+        dispatcher.dispatch(view("sub00001", "b"), holdFirst);
+
+        Thread reader = new Thread(() -> dispatcher.dispatch(view("sub00001", "c"), holdFirst));
+        reader.start();
+        reader.join(200);
+        assertTrue(reader.isAlive());
+
+        release.countDown();
+        reader.join(5000);
+        dispatcher.close();
+        assertEquals(List.of("a", "b", "c"), received);
+        assertEquals(0, dispatcher.dropped(0));
+    }
+
+    @Test
+    void countsTheQueueDepthPerShard() {
+        PayloadDispatcher dispatcher = new PayloadDispatcher(2, 8, PayloadDispatcher.Overflow.BLOCK);
+        String held = "sub00001";
+        int heldShard = dispatcher.shardOf(view(held, ""));
+        String other = held;
+        for (int i = 2; dispatcher.shardOf(view(other, "")) == heldShard; i++) {
+            other = "sub0000" + i;
+        }
+        int otherShard = dispatcher.shardOf(view(other, ""));
+        assertNotEquals(heldShard, otherShard);
+
+        holdWorker(dispatcher, held);
+        dispatcher.dispatch(view(held, "b"), holdFirst);
+        dispatcher.dispatch(view(held, "c"), holdFirst);
+        CountDownLatch otherHandled = new CountDownLatch(1);
+        Main.PayloadViewCallback countDown = view -> otherHandled.countDown();
+        dispatcher.dispatch(view(other, "x"), countDown);
+        await(otherHandled);
+
+        assertEquals(2, dispatcher.queueDepth(heldShard));
+        assertEquals(0, dispatcher.queueDepth(otherShard));
+        release.countDown();
+        dispatcher.close();
+        assertEquals(List.of("a", "b", "c"), received);
+    }
+
+    @Test
+    void drainsQueuedPayloadsOnClose() throws Exception {
+        PayloadDispatcher dispatcher = new PayloadDispatcher(1, 16, PayloadDispatcher.Overflow.BLOCK);
+        holdWorker(dispatcher, "sub00001");
+        List<String> expected = new ArrayList<>(List.of("a"));
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(view("sub00001", Integer.toString(i)), holdFirst);
+            expected.add(Integer.toString(i));
+        }
+
+        Thread closer = new Thread(dispatcher::close);
+        closer.start();
+        release.countDown();
+        closer.join(5000);
+
+        assertEquals(expected, received);
+        // Payloads that arrive after the close are dropped
+        dispatcher.dispatch(view("sub00001", "late"), holdFirst);
+        assertEquals(1, dispatcher.dropped(0));
+        assertEquals(expected, received);
+    }
+
+    @Test
+    void keepsRunningAfterACallbackFails() {
+        PayloadDispatcher dispatcher = new PayloadDispatcher(1, 4, PayloadDispatcher.Overflow.BLOCK);
+        release.countDown();
+        Main.PayloadViewCallback failing = view -> {
+            throw new IllegalStateException("callback failed");
+        };
+        dispatcher.dispatch(view("sub00001", "fails"), failing);
+        dispatcher.dispatch(view("sub00001", "b"), holdFirst);
+        dispatcher.close();
+
+        assertEquals(List.of("b"), received);
+    }
+}
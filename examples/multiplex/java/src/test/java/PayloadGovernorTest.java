@@ -0,0 +1,174 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class PayloadGovernorTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static Main.SessionInfo session(int rateLimit, int throughputLimit, Duration duration) {
+        Main.SessionInfo session = new Main.SessionInfo("localhost", 0, "token");
+        session.payloadRateLimit = rateLimit;
+        session.payloadRateLimitDuration = duration;
+        session.payloadThroughputLimit = throughputLimit;
+        session.payloadThroughputLimitDuration = duration;
+        return session;
+    }
+
+    private static List<Main.Payload> payloads(int count) {
+        List<Main.Payload> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payloads.add(new Main.Payload("sub00001", (byte) 0x01, new byte[]{(byte) i}));
+        }
+        return payloads;
+    }
+
+    @Test
+    void windowExpiresEventsOlderThanItsDuration() {
+        PayloadGovernor.SlidingWindow window = new PayloadGovernor.SlidingWindow(5 * SECOND, 300, 2);
+        window.record(0, 100);
+        window.record(SECOND, 100);
+        window.record(2 * SECOND, 100);
+
+        assertEquals(300, window.used(2 * SECOND));
+        assertFalse(window.fits(2 * SECOND, 1));
+        // The first event leaves the window exactly one duration after it was recorded
+        assertEquals(300, window.used(5 * SECOND - 1));
+        assertEquals(200, window.used(5 * SECOND));
+        assertTrue(window.fits(5 * SECOND, 100));
+        assertFalse(window.fits(5 * SECOND, 101));
+        assertEquals(0, window.used(7 * SECOND));
+    }
+
+    @Test
+    void nanosUntilFitsWaitsForEnoughEventsToExpire() {
+        PayloadGovernor.SlidingWindow window = new PayloadGovernor.SlidingWindow(5 * SECOND, 300, 4);
+        window.record(0, 100);
+        window.record(SECOND, 100);
+        window.record(2 * SECOND, 100);
+
+        assertEquals(0, new PayloadGovernor.SlidingWindow(5 * SECOND, 300, 4).nanosUntilFits(0, 300));
+        // 150 bytes need the first two events gone, at 6 s
+        assertEquals(3 * SECOND, window.nanosUntilFits(3 * SECOND, 150));
+        assertEquals(2 * SECOND, window.nanosUntilFits(3 * SECOND, 100));
+    }
+
+    @Test
+    void throughputLimitIsInBytesPerSecond() {
+        // The example of the protocol enforcement docs: 60 bytes per second over PT5S allow 300 bytes
+        PayloadGovernor governor = new PayloadGovernor(session(0, 60, Duration.ofSeconds(5)),
+            PayloadGovernor.Backpressure.REJECT, 0, 1.0);
+        int payloadLength = 100 - (DatagramCodec.IDENTIFIER_SIZE + 1 + 8);
+
+        assertTrue(governor.tryAdmit(payloadLength));
+        assertTrue(governor.tryAdmit(payloadLength));
+        assertTrue(governor.tryAdmit(payloadLength));
+        assertFalse(governor.tryAdmit(payloadLength));
+        assertEquals(0, governor.throughputHeadroom(), 1e-9);
+        long wait = governor.nanosUntilAvailable(payloadLength);
+        assertTrue(wait > 0 && wait <= 5 * SECOND, Long.toString(wait));
+    }
+
+    @Test
+    void singleplexPayloadsCountWithoutTheIdentifier() {
+        Main.SessionInfo session = session(0, 60, Duration.ofSeconds(5));
+        session.singleplex = true;
+        PayloadGovernor governor = new PayloadGovernor(session, PayloadGovernor.Backpressure.REJECT, 0, 1.0);
+
+        assertTrue(governor.tryAdmit(300 - (1 + 8)));
+        assertFalse(governor.tryAdmit(0));
+    }
+
+    @Test
+    void headroomKeepsBelowTheLimit() {
+        PayloadGovernor governor = new PayloadGovernor(session(10, 0, Duration.ofSeconds(2)),
+            PayloadGovernor.Backpressure.REJECT, 0, 0.5);
+
+        // 10 payloads per second over 2 s, at half the limit
+        for (int i = 0; i < 10; i++) {
+            assertTrue(governor.tryAdmit(1), "payload " + i);
+        }
+        assertFalse(governor.tryAdmit(1));
+        assertEquals(0.5, governor.rateHeadroom(), 1e-9);
+        assertEquals(1, governor.throughputHeadroom());
+    }
+
+    @Test
+    void dropOldestRequiresAQueue() {
+        Main.SessionInfo session = session(10, 1000, Duration.ofSeconds(1));
+
+        assertThrows(IllegalArgumentException.class,
+            () -> new PayloadGovernor(session, PayloadGovernor.Backpressure.DROP_OLDEST, 0, 1.0));
+        assertEquals(0, new PayloadGovernor(session, PayloadGovernor.Backpressure.DROP_OLDEST, 1, 1.0).queued());
+        assertEquals(0, new PayloadGovernor(session, PayloadGovernor.Backpressure.REJECT, 0, 1.0).queued());
+    }
+
+    @Test
+    void publishReturnsTheNumberOfPayloadsAdmittedBeforeTheFirstRejection() throws Exception {
+        PayloadGovernor governor = new PayloadGovernor(session(3, 0, Duration.ofSeconds(1)),
+            PayloadGovernor.Backpressure.REJECT, 0, 1.0);
+        CapturingConnection connection = new CapturingConnection();
+
+        assertEquals(3, governor.publish(connection, payloads(5), "test"));
+        assertEquals(0, governor.publish(connection, payloads(2), "test"));
+        connection.flush();
+
+        List<PayloadView> datagrams = connection.datagrams();
+        assertEquals(3, datagrams.size());
+        for (int i = 0; i < datagrams.size(); i++) {
+            assertEquals(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, datagrams.get(i).type());
+            assertEquals((byte) i, datagrams.get(i).payloadByte(0));
+        }
+        assertTrue(governor.toString().contains("rejected=4"), governor.toString());
+    }
+
+    @Test
+    void publishQueuesWhatDoesNotFitWithDropOldest() throws Exception {
+        Main.SessionInfo session = session(3, 0, Duration.ofSeconds(1));
+        session.singleplex = true;
+        PayloadGovernor governor = new PayloadGovernor(session, PayloadGovernor.Backpressure.DROP_OLDEST, 4, 1.0);
+        CapturingConnection connection = new CapturingConnection();
+
+        assertEquals(5, governor.publish(connection, payloads(5), "test"));
+        connection.flush();
+
+        assertEquals(List.of(3), connection.runs);
+        assertEquals(2, governor.queued());
+        for (PayloadView datagram : connection.datagrams()) {
+            assertEquals(DatagramCodec.PAYLOAD, datagram.type());
+        }
+    }
+
+    @Test
+    void governorOfANewSessionTakesOverTheQueuedPayloads() throws Exception {
+        PayloadGovernor governor = new PayloadGovernor(session(2, 0, Duration.ofSeconds(1)),
+            PayloadGovernor.Backpressure.DROP_OLDEST, 4, 1.0);
+        CapturingConnection connection = new CapturingConnection();
+        governor.publish(connection, payloads(5), "test");
+        connection.flush();
+        assertEquals(3, governor.queued());
+
+        // The new session allows more payloads than the old one
+        PayloadGovernor next = governor.forSession(session(10, 0, Duration.ofSeconds(1)));
+        assertEquals(3, next.queued());
+        CapturingConnection newConnection = new CapturingConnection();
+        next.drain(newConnection, "test");
+        newConnection.flush();
+
+        List<PayloadView> datagrams = newConnection.datagrams();
+        assertEquals(3, datagrams.size());
+        for (int i = 0; i < datagrams.size(); i++) {
+            assertEquals((byte) (i + 2), datagrams.get(i).payloadByte(0));
+        }
+        assertEquals(0, next.queued());
+        assertEquals("admitted=5, rejected=0, dropped=0, queued=0", next.toString());
+        // Only the payloads sent on the new session count against its limit
+        assertEquals(1.0 - 3 / 10.0, next.rateHeadroom(), 1e-9);
+    }
+}
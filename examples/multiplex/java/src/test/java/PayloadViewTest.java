@@ -0,0 +1,161 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PayloadViewTest {
+    private static final byte[] PAYLOAD = "hello".getBytes(StandardCharsets.US_ASCII);
+
+    private static PayloadView view(ByteBuffer frame) throws Exception {
+        int size = DatagramCodec.datagramSize(frame, 0);
+        assertEquals(frame.position() - DatagramCodec.HEADER_SIZE, size);
+        return new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE, size);
+    }
+
+    // A datagram of the given bytes at an offset, as it sits in a receive buffer
+    private static PayloadView datagram(int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(16 + i, (byte) bytes[i]);
+        }
+        return new PayloadView().wrap(buffer, 16, bytes.length);
+    }
+
+    @Test
+    void payloadWithIdentifierRoundTrip() throws Exception {
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodePayloadWithIdentifier(frame, "sub00001", (byte) 0x02, 1234567890123L, PAYLOAD, 0,
+            PAYLOAD.length);
+        PayloadView view = view(frame);
+
+        assertTrue(view.isValid());
+        assertEquals(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, view.type());
+        assertTrue(view.hasIdentifier());
+        assertEquals("sub00001", view.identifier());
+        assertEquals(DatagramCodec.packIdentifier("sub00001"), view.identifierKey());
+        assertEquals(0x02, view.payloadType());
+        assertEquals(1234567890123L, view.originTimestamp());
+        assertArrayEquals(PAYLOAD, view.payloadBytes());
+    }
+
+    @Test
+    void payloadRoundTrip() throws Exception {
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodePayload(frame, (byte) 0x01, 42, PAYLOAD, 0, PAYLOAD.length);
+        PayloadView view = view(frame);
+
+        assertTrue(view.isValid());
+        assertFalse(view.hasIdentifier());
+        assertEquals(0, view.identifierKey());
+        assertEquals("", view.identifier());
+        assertEquals(0x01, view.payloadType());
+        assertEquals(42, view.originTimestamp());
+        assertArrayEquals(PAYLOAD, view.payloadBytes());
+    }
+
+    @Test
+    void monitorPayloadDescribesTheOriginalDatagram() throws Exception {
+        ByteBuffer original = ByteBuffer.allocate(64);
+        DatagramCodec.encodePayloadWithIdentifier(original, "sub00002", (byte) 0x03, 7, PAYLOAD, 0, PAYLOAD.length);
+        byte[] token = "publisher-token".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodeMonitorPayload(frame, token, 100, 200, original, DatagramCodec.HEADER_SIZE,
+            original.position() - DatagramCodec.HEADER_SIZE);
+        PayloadView view = view(frame);
+
+        assertTrue(view.isValid());
+        assertEquals(DatagramCodec.MONITOR_PAYLOAD, view.type());
+        assertEquals(token.length, view.publisherTokenLength());
+        assertEquals(100, view.publishTimestamp());
+        assertEquals(200, view.sentTimestamp());
+        assertEquals(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, view.originalType());
+        assertEquals("sub00002", view.identifier());
+        assertEquals(0x03, view.payloadType());
+        assertEquals(7, view.originTimestamp());
+        assertArrayEquals(PAYLOAD, view.payloadBytes());
+    }
+
+    @Test
+    void timestampRoundTrip() throws Exception {
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodeTimestampResponse(frame, 1, 2, 3);
+        PayloadView view = view(frame);
+
+        assertTrue(view.isValid());
+        assertEquals(1, view.timestampT0());
+        assertEquals(2, view.timestampT1());
+        assertEquals(3, view.timestampT2());
+    }
+
+    @Test
+    void emptyPayloadIsValid() {
+        assertTrue(datagram(DatagramCodec.PAYLOAD, 0x01, 0, 0, 0, 0, 0, 0, 0, 0).isValid());
+        assertEquals(0, datagram(DatagramCodec.PAYLOAD, 0x01, 0, 0, 0, 0, 0, 0, 0, 0).payloadLength());
+    }
+
+    @Test
+    void shortDatagramsAreInvalid() {
+        assertFalse(datagram().isValid());
+        assertFalse(datagram(DatagramCodec.PAYLOAD, 0x01, 0, 0, 0, 0, 0, 0, 0).isValid());
+        assertFalse(datagram(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, 's', 'u', 'b', 0x01, 0, 0, 0, 0, 0, 0, 0, 0)
+            .isValid());
+        assertFalse(datagram(DatagramCodec.TIMESTAMP_REQUEST, 0, 0, 0).isValid());
+        assertFalse(datagram(DatagramCodec.TIMESTAMP_RESPONSE, 0, 0, 0, 0, 0, 0, 0, 0).isValid());
+        assertFalse(datagram(DatagramCodec.MONITOR_PAYLOAD, 0, 0).isValid());
+        // Datagrams without fixed fields and unknown types are left to their handlers
+        assertTrue(datagram(DatagramCodec.KEEPALIVE).isValid());
+        assertTrue(datagram(0x42).isValid());
+    }
+
+    @Test
+    void monitorPayloadWithATokenBeyondTheDatagramIsInvalid() throws Exception {
+        ByteBuffer original = ByteBuffer.allocate(64);
+        DatagramCodec.encodePayload(original, (byte) 0x01, 7, PAYLOAD, 0, PAYLOAD.length);
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodeMonitorPayload(frame, new byte[4], 100, 200, original, DatagramCodec.HEADER_SIZE,
+            original.position() - DatagramCodec.HEADER_SIZE);
+        int size = frame.position() - DatagramCodec.HEADER_SIZE;
+
+        for (int tokenLength : new int[] {-1, size, Integer.MAX_VALUE, 4 + 6}) {
+            frame.putInt(DatagramCodec.HEADER_SIZE + 1, tokenLength);
+            assertFalse(new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE, size).isValid(),
+                "token length " + tokenLength);
+        }
+        frame.putInt(DatagramCodec.HEADER_SIZE + 1, 4);
+        assertTrue(new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE, size).isValid());
+        // Cut into the original payload datagram
+        assertFalse(new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE, size - PAYLOAD.length - 1).isValid());
+    }
+
+    @Test
+    void monitorPayloadOfAnotherDatagramTypeIsInvalid() {
+        ByteBuffer original = ByteBuffer.allocate(32);
+        DatagramCodec.encodeTimestampRequest(original, 5);
+        ByteBuffer frame = DatagramCodec.frameBuffer();
+        DatagramCodec.encodeMonitorPayload(frame, new byte[0], 100, 200, original, DatagramCodec.HEADER_SIZE,
+            original.position() - DatagramCodec.HEADER_SIZE);
+
+        assertFalse(new PayloadView().wrap(frame, DatagramCodec.HEADER_SIZE,
+            frame.position() - DatagramCodec.HEADER_SIZE).isValid());
+    }
+
+    @Test
+    void viewCallbackReceivesDecodedPayloadsAsViews() {
+        List<String> received = new ArrayList<>();
+        Main.PayloadViewCallback callback = view -> received.add(view.type() + " " + view.identifier() + " "
+            + view.payloadType() + " " + view.originTimestamp() + " "
+            + new String(view.payloadBytes(), StandardCharsets.US_ASCII));
+
+        Main.PayloadCallback decoded = callback;
+        decoded.onPayload("sub00001", (byte) 0x02, 99, PAYLOAD);
+        decoded.onPayload("", (byte) 0x01, 98, PAYLOAD);
+
+        assertEquals(List.of("5 sub00001 2 99 hello", "4  1 98 hello"), received);
+    }
+}
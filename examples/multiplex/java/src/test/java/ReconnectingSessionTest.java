@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+
+class ReconnectingSessionTest {
+    private static final Instant NOW = Instant.parse("2024-01-15T10:00:00Z");
+
+    private final List<Main.SessionInfo> created = new ArrayList<>();
+    private final List<String> deleted = new CopyOnWriteArrayList<>();
+    private final List<String> connected = new ArrayList<>();
+
+    // Hands out sessions on the given hosts in turn
+    private ReconnectingSession sessions(String... hosts) {
+        return new ReconnectingSession(() -> {
+            Main.SessionInfo session = new Main.SessionInfo(hosts[created.size()], 9100, "token" + created.size());
+            created.add(session);
+            return CompletableFuture.completedFuture(session);
+        }, session -> {
+            deleted.add(session.token);
+            return CompletableFuture.completedFuture(null);
+        }, true, "test");
+    }
+
+    @Test
+    void refreshesStandbysBeforeTheyExpire() {
+        assertEquals(-1, ReconnectingSession.refreshDelayMillis(null, NOW));
+        assertEquals(-1, ReconnectingSession.refreshDelayMillis(NOW, NOW));
+        assertEquals(Duration.ofSeconds(270).toMillis(),
+            ReconnectingSession.refreshDelayMillis(NOW.plus(Duration.ofMinutes(5)), NOW));
+        // Short lifetimes are refreshed halfway
+        assertEquals(Duration.ofSeconds(20).toMillis(),
+            ReconnectingSession.refreshDelayMillis(NOW.plus(Duration.ofSeconds(40)), NOW));
+    }
+
+    @Test
+    void usesTheStandbyOnAnotherNode() throws Exception {
+        ReconnectingSession sessions = sessions("node-a", "node-b", "node-c");
+
+        sessions.run(session -> {
+            connected.add(session.token);
+            if (connected.size() == 1) {
+                throw new ReconnectingSession.ReconnectRequested();
+            }
+        });
+
+        assertEquals(List.of("token0", "token1"), connected);
+        // Only the unused standby of the second connection is deleted, when the session ends
+        assertEquals(List.of("token2"), deleted);
+        assertEquals("reconnects=1, standbyUsed=1", sessions.toString());
+    }
+
+    @Test
+    void deletesAStandbyOnTheReconnectingNode() throws Exception {
+        ReconnectingSession sessions = sessions("node-a", "node-a", "node-b", "node-c");
+
+        sessions.run(session -> {
+            connected.add(session.token);
+            if (connected.size() == 1) {
+                throw new ReconnectingSession.ReconnectRequested();
+            }
+        });
+
+        assertEquals(List.of("token0", "token2"), connected);
+        // The standby of the second connection is deleted when the session ends
+        assertEquals(List.of("token1", "token3"), deleted);
+    }
+
+    @Test
+    void createsANewSessionWhenTheStandbyCannotBeReached() throws Exception {
+        ReconnectingSession sessions = sessions("node-a", "node-b", "node-c", "node-d");
+
+        sessions.run(session -> {
+            connected.add(session.token);
+            if (connected.size() == 1) {
+                throw new ReconnectingSession.ReconnectRequested();
+            }
+            if (session.host.equals("node-b")) {
+                throw new ConnectException("Connection refused");
+            }
+        });
+
+        assertEquals(List.of("token0", "token1", "token3"), connected);
+        assertEquals(List.of("token1", "token2"), deleted);
+    }
+
+    @Test
+    void connectFailuresOfOtherSessionsEndTheRun() {
+        ReconnectingSession sessions = sessions("node-a", "node-b");
+
+        assertThrows(ConnectException.class, () -> sessions.run(session -> {
+            throw new ConnectException("Connection refused");
+        }));
+    }
+}
@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class SessionMetricsTest {
+    private final SessionMetrics metrics = new SessionMetrics("test");
+
+    private static int index(String typeName) {
+        return Arrays.asList(SessionMetrics.TYPE_NAMES).indexOf(typeName);
+    }
+
+    @Test
+    void countsARunOfFramesByTheTypeOfEachFrame() {
+        ByteBuffer frames = ByteBuffer.allocate(1024);
+        byte[] payload = new byte[100];
+        DatagramCodec.encodeKeepalive(frames);
+        DatagramCodec.encodePayloadWithIdentifier(frames, "sub00001", (byte) 0x01, 1, payload, 0, payload.length);
+        DatagramCodec.encodePayloadWithIdentifier(frames, "sub00002", (byte) 0x01, 1, payload, 0, 10);
+        DatagramCodec.encodeTimestampResponse(frames, 1, 2, 3);
+        DatagramCodec.encodeDatagram(frames, new byte[]{0x42, 0x00}, 0, 2);
+        frames.flip();
+
+        metrics.sent(frames, 0, frames.limit());
+
+        assertEquals(1, metrics.datagramsSent(index("keepalive")));
+        assertEquals(5, metrics.bytesSent(index("keepalive")));
+        assertEquals(2, metrics.datagramsSent(index("payload_with_identifier")));
+        assertEquals(2 * 22 + 100 + 10, metrics.bytesSent(index("payload_with_identifier")));
+        assertEquals(1, metrics.datagramsSent(index("timestamp_response")));
+        assertEquals(29, metrics.bytesSent(index("timestamp_response")));
+        assertEquals(1, metrics.datagramsSent(index("other")));
+        assertEquals(6, metrics.bytesSent(index("other")));
+        assertEquals(0, metrics.datagramsSent(index("token")));
+    }
+
+    @Test
+    void mapsEveryDatagramTypeToItsName() {
+        List<String> names = List.of(SessionMetrics.TYPE_NAMES);
+        byte[] types = {DatagramCodec.KEEPALIVE, DatagramCodec.TOKEN, DatagramCodec.BYE, DatagramCodec.RECONNECT,
+            DatagramCodec.PAYLOAD, DatagramCodec.PAYLOAD_WITH_IDENTIFIER, DatagramCodec.TIMESTAMP_REQUEST,
+            DatagramCodec.TIMESTAMP_RESPONSE, DatagramCodec.MONITOR_PAYLOAD, 0x08, (byte) 0xFF};
+        for (byte type : types) {
+            metrics.received(type, 10);
+        }
+
+        for (int i = 0; i < names.size() - 1; i++) {
+            assertEquals(1, metrics.datagramsReceived(i), names.get(i));
+            assertEquals(10, metrics.bytesReceived(i), names.get(i));
+        }
+        assertEquals(2, metrics.datagramsReceived(index("other")));
+    }
+
+    @Test
+    void countsFramesAsSentOnceTheSinkTookThem() throws IOException {
+        boolean[] stalled = {true};
+        OutboundPipeline pipeline = new OutboundPipeline(buffers -> {
+            if (stalled[0]) {
+                return false;
+            }
+            for (ByteBuffer buffer : buffers) {
+                buffer.position(buffer.limit());
+            }
+            return true;
+        }, OutboundPipeline.DEFAULT_MAX_BATCH_BYTES, 0, false, metrics);
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        DatagramCodec.encodeKeepalive(frame);
+        frame.flip();
+
+        pipeline.enqueue(frame);
+        pipeline.enqueueTimestampResponse(1, 2);
+        assertEquals(0, metrics.datagramsSent(index("keepalive")));
+        assertEquals(0, metrics.datagramsSent(index("timestamp_response")));
+
+        stalled[0] = false;
+        pipeline.flush();
+        assertEquals(1, metrics.datagramsSent(index("keepalive")));
+        assertEquals(1, metrics.datagramsSent(index("timestamp_response")));
+        assertEquals(29, metrics.bytesSent(index("timestamp_response")));
+    }
+
+    @Test
+    void exposesTotalsAndPerTypeCountsAsAttributes() {
+        metrics.received(DatagramCodec.PAYLOAD_WITH_IDENTIFIER, 30);
+        metrics.received(DatagramCodec.KEEPALIVE, 5);
+        metrics.sent(DatagramCodec.TOKEN, 12);
+        metrics.connected();
+        metrics.payloadLatency(4);
+
+        Map<String, Object> attributes = metrics.attributes();
+        assertEquals(2L, attributes.get("DatagramsReceived"));
+        assertEquals(35L, attributes.get("BytesReceived"));
+        assertEquals(1L, attributes.get("DatagramsSent"));
+        assertEquals(1L, attributes.get("DatagramsReceived_payload_with_identifier"));
+        assertEquals(1L, attributes.get("DatagramsSent_token"));
+        assertEquals(1L, attributes.get("Connections"));
+        assertEquals(1L, attributes.get("PayloadLatencyCount"));
+        assertEquals(1.0, attributes.get("RateHeadroom"));
+    }
+}
@@ -0,0 +1,213 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs engine sessions against a blocking socket on localhost that plays the streaming node.
+ */
+class StreamingEngineTest {
+    private static final String TOKEN = "token";
+    private static final String THREAD_NAME = "test";
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final BlockingQueue<String> payloads = new LinkedBlockingQueue<>();
+    private final Main.PayloadCallback callback = (identifier, payloadType, originTimestamp, payload) ->
+        payloads.add(identifier + ":" + new String(payload, StandardCharsets.US_ASCII));
+    private TimerWheel wheel;
+    private StreamingEngine engine;
+    private ServerSocket server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        wheel = new TimerWheel("test-wheel", 10, 64);
+        engine = new StreamingEngine(1, wheel);
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        engine.close();
+        wheel.close();
+        server.close();
+    }
+
+    private StreamingEngine.Session open() throws IOException {
+        return engine.open(server.getInetAddress().getHostAddress(), server.getLocalPort(), TOKEN, null, callback,
+            connection -> TimeUnit.SECONDS.toNanos(1), SessionMetrics.DETACHED, THREAD_NAME);
+    }
+
+    // Accepts the session and checks the version byte it sends first
+    private Socket accept() throws IOException {
+        Socket node = server.accept();
+        node.setSoTimeout(TIMEOUT_MILLIS);
+        assertEquals(0x01, node.getInputStream().read());
+        return node;
+    }
+
+    private static byte[] frame(byte[] datagram) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + datagram.length);
+        frame.put(Main.HEADER_PREFIX).putShort((short) datagram.length).put(datagram);
+        return frame.array();
+    }
+
+    private static byte[] payloadFrame(String identifier, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer datagram = ByteBuffer.allocate(1 + 8 + 1 + 8 + bytes.length);
+        datagram.put((byte) 0x05).put(identifier.getBytes(StandardCharsets.US_ASCII)).put((byte) 0x01).putLong(1)
+            .put(bytes);
+        return frame(datagram.array());
+    }
+
+    private static byte[] readFrame(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[4];
+        data.readFully(header);
+        assertEquals(Main.HEADER_PREFIX[0], header[0]);
+        assertEquals(Main.HEADER_PREFIX[1], header[1]);
+        byte[] datagram = new byte[ByteBuffer.wrap(header, 2, 2).getShort() & 0xFFFF];
+        data.readFully(datagram);
+        return datagram;
+    }
+
+    private static void assertToken(InputStream in) throws IOException {
+        byte[] datagram = readFrame(in);
+        assertEquals(0x01, datagram[0]);
+        assertEquals(TOKEN, new String(datagram, 1, datagram.length - 1, StandardCharsets.US_ASCII));
+    }
+
+    private String nextPayload() throws InterruptedException {
+        return payloads.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    void handlesTheFirstFrameReceivedTogetherWithTheVersion() throws Exception {
+        open();
+        try (Socket node = accept()) {
+            ByteArrayOutputStream greeting = new ByteArrayOutputStream();
+            greeting.write(0x01);
+            greeting.write(payloadFrame("sub00001", "first"));
+            node.getOutputStream().write(greeting.toByteArray());
+
+            assertToken(node.getInputStream());
+            assertEquals("sub00001:first", nextPayload());
+        }
+    }
+
+    @Test
+    void reassemblesFramesSplitAcrossReads() throws Exception {
+        open();
+        try (Socket node = accept()) {
+            OutputStream out = node.getOutputStream();
+            out.write(0x01);
+            assertToken(node.getInputStream());
+
+            // One frame in pieces, cut inside the header and inside the payload
+            byte[] split = payloadFrame("sub00001", "split");
+            int[] cuts = {0, 1, 3, 12, split.length};
+            for (int i = 1; i < cuts.length; i++) {
+                out.write(split, cuts[i - 1], cuts[i] - cuts[i - 1]);
+                out.flush();
+                Thread.sleep(20);
+            }
+            // Two frames in one read, the second one completed by the next
+            byte[] second = payloadFrame("sub00002", "second");
+            byte[] third = payloadFrame("sub00003", "third");
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            batch.write(second);
+            batch.write(third, 0, 10);
+            out.write(batch.toByteArray());
+            out.flush();
+            Thread.sleep(20);
+            out.write(third, 10, third.length - 10);
+
+            assertEquals("sub00001:split", nextPayload());
+            assertEquals("sub00002:second", nextPayload());
+            assertEquals("sub00003:third", nextPayload());
+        }
+    }
+
+    @Test
+    void sendsWhatWasWrittenWhileTheSocketWasFull() throws Exception {
+        server.setReceiveBufferSize(4096);
+        StreamingEngine.Session session = open();
+        try (Socket node = accept()) {
+            node.getOutputStream().write(0x01);
+            InputStream in = node.getInputStream();
+            assertToken(in);
+
+            // Far more than the socket buffers hold while the node does not read
+            byte[] datagram = new byte[60_000];
+            int frames = 200;
+            for (int i = 0; i < frames; i++) {
+                datagram[0] = (byte) i;
+                session.write(ByteBuffer.wrap(frame(datagram)));
+            }
+
+            for (int i = 0; i < frames; i++) {
+                datagram[0] = (byte) i;
+                assertArrayEquals(datagram, readFrame(in));
+            }
+            // Once drained, the session still reads and writes
+            node.getOutputStream().write(payloadFrame("sub00001", "after"));
+            assertEquals("sub00001:after", nextPayload());
+            session.write(ByteBuffer.wrap(frame(new byte[]{0x00})));
+            assertArrayEquals(new byte[]{0x00}, readFrame(in));
+        }
+    }
+
+    @Test
+    void closesFromAnotherThread() throws Exception {
+        StreamingEngine.Session session = open();
+        try (Socket node = accept()) {
+            node.getOutputStream().write(0x01);
+            assertToken(node.getInputStream());
+
+            session.close();
+            session.awaitClose();
+
+            assertTrue(session.isClosed());
+            assertEquals(-1, node.getInputStream().read());
+        }
+    }
+
+    @Test
+    void failsWhenTheNodeDisconnects() throws Exception {
+        StreamingEngine.Session session = open();
+        try (Socket node = accept()) {
+            node.getOutputStream().write(0x01);
+            assertToken(node.getInputStream());
+        }
+
+        IOException e = assertThrows(IOException.class, session::awaitClose);
+        assertEquals("Socket disconnected", e.getMessage());
+    }
+
+    @Test
+    void rejectsAnUnsupportedVersion() throws Exception {
+        StreamingEngine.Session session = open();
+        try (Socket node = accept()) {
+            node.getOutputStream().write(0x02);
+
+            Exception e = assertThrows(Exception.class, session::awaitClose);
+            assertEquals("Unsupported protocol version received", e.getMessage());
+        }
+    }
+}
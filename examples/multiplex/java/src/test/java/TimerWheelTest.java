@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    private final List<Integer> fired = new CopyOnWriteArrayList<>();
+
+    @Test
+    void firesInDeadlineOrderAndNeverEarly() throws InterruptedException {
+        // Deadlines past one turn of the 32 bucket wheel are included, and all are scheduled out of order
+        int[] delays = {60, 5, 35, 20, 80, 12, 48};
+        long[] firedAfter = new long[delays.length];
+        CountDownLatch done = new CountDownLatch(delays.length);
+        try (TimerWheel wheel = new TimerWheel("test-wheel", 2, 32)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < delays.length; i++) {
+                int index = i;
+                wheel.newTimeout(() -> {
+                    firedAfter[index] = System.nanoTime() - start;
+                    fired.add(delays[index]);
+                    done.countDown();
+                }).schedule(delays[i], TimeUnit.MILLISECONDS);
+            }
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(List.of(5, 12, 20, 35, 48, 60, 80), fired);
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(firedAfter[i] >= TimeUnit.MILLISECONDS.toNanos(delays[i]), "fired early: " + delays[i]);
+        }
+    }
+
+    @Test
+    void rescheduleReplacesTheDeadline() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(2);
+        try (TimerWheel wheel = new TimerWheel("test-wheel", 1, 64)) {
+            TimerWheel.Timeout later = wheel.newTimeout(() -> {
+                fired.add(1);
+                done.countDown();
+            });
+            TimerWheel.Timeout sooner = wheel.newTimeout(() -> {
+                fired.add(2);
+                done.countDown();
+            });
+            later.schedule(10, TimeUnit.MILLISECONDS);
+            sooner.schedule(200, TimeUnit.MILLISECONDS);
+            later.schedule(40, TimeUnit.MILLISECONDS);
+            sooner.schedule(20, TimeUnit.MILLISECONDS);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertFalse(later.isScheduled());
+        }
+
+        assertEquals(List.of(2, 1), fired);
+    }
+
+    @Test
+    void cancelledTimeoutsDoNotFire() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        try (TimerWheel wheel = new TimerWheel("test-wheel", 1, 16)) {
+            TimerWheel.Timeout cancelled = wheel.newTimeout(() -> fired.add(1));
+            cancelled.schedule(5, TimeUnit.MILLISECONDS);
+            assertTrue(cancelled.isScheduled());
+            cancelled.cancel();
+            assertFalse(cancelled.isScheduled());
+            wheel.newTimeout(() -> {
+                fired.add(2);
+                done.countDown();
+            }).schedule(30, TimeUnit.MILLISECONDS);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(wheel.toString().startsWith("armed=0, scheduled=2, fired=1"), wheel.toString());
+        }
+
+        assertEquals(List.of(2), fired);
+    }
+
+    @Test
+    void tasksCanRearmTheirOwnTimeout() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(3);
+        try (TimerWheel wheel = new TimerWheel("test-wheel", 1, 16)) {
+            TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+            timeout[0] = wheel.newTimeout(() -> {
+                done.countDown();
+                if (done.getCount() > 0) {
+                    timeout[0].schedule(2, TimeUnit.MILLISECONDS);
+                }
+            });
+            timeout[0].schedule(2, TimeUnit.MILLISECONDS);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs TLS sessions of the engine against an {@link SSLServerSocket} on localhost that plays the
+ * streaming node, with a self-signed certificate created by keytool.
+ */
+class TlsTransportTest {
+    private static final String TOKEN = "token";
+    private static final String THREAD_NAME = "test";
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @TempDir
+    static Path keyDir;
+    private static SSLContext nodeContext;
+
+    private final BlockingQueue<String> payloads = new LinkedBlockingQueue<>();
+    private final Main.PayloadCallback callback = (identifier, payloadType, originTimestamp, payload) ->
+        payloads.add(identifier + ":" + new String(payload, StandardCharsets.US_ASCII));
+    private TimerWheel wheel;
+    private StreamingEngine engine;
+    private SSLServerSocket server;
+
+    @BeforeAll
+    static void createNodeCertificate() throws Exception {
+        Path keyStore = keyDir.resolve("node.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+            "-genkeypair", "-alias", "node", "-keyalg", "EC", "-dname", "CN=localhost", "-validity", "1",
+            "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", new String(PASSWORD))
+            .redirectErrorStream(true).start();
+        keytool.getInputStream().transferTo(new ByteArrayOutputStream());
+        assertEquals(0, keytool.waitFor());
+
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (FileInputStream in = new FileInputStream(keyStore.toFile())) {
+            store.load(in, PASSWORD);
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, PASSWORD);
+        nodeContext = SSLContext.getInstance("TLS");
+        nodeContext.init(keys.getKeyManagers(), null, null);
+    }
+
+    private void start(String protocol) throws IOException {
+        wheel = new TimerWheel("test-wheel", 10, 64);
+        engine = new StreamingEngine(1, wheel);
+        server = (SSLServerSocket) nodeContext.getServerSocketFactory()
+            .createServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        server.setEnabledProtocols(new String[]{protocol});
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        engine.close();
+        wheel.close();
+        server.close();
+    }
+
+    private StreamingEngine.Session open(String protocol) throws IOException {
+        TlsTransport tls = new TlsTransport(TlsTransport.trustAllContext(), protocol);
+        return engine.open(server.getInetAddress().getHostAddress(), server.getLocalPort(), TOKEN, tls, callback,
+            connection -> TimeUnit.SECONDS.toNanos(1), SessionMetrics.DETACHED, THREAD_NAME);
+    }
+
+    // Accepts the session, completes the handshake and answers the version byte sent first
+    private SSLSocket accept() throws IOException {
+        SSLSocket node = (SSLSocket) server.accept();
+        node.setSoTimeout(TIMEOUT_MILLIS);
+        node.startHandshake();
+        assertEquals(0x01, node.getInputStream().read());
+        node.getOutputStream().write(0x01);
+        assertToken(node.getInputStream());
+        return node;
+    }
+
+    private static byte[] frame(byte[] datagram) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + datagram.length);
+        frame.put(Main.HEADER_PREFIX).putShort((short) datagram.length).put(datagram);
+        return frame.array();
+    }
+
+    private static byte[] payloadFrame(String identifier, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer datagram = ByteBuffer.allocate(1 + 8 + 1 + 8 + bytes.length);
+        datagram.put((byte) 0x05).put(identifier.getBytes(StandardCharsets.US_ASCII)).put((byte) 0x01).putLong(1)
+            .put(bytes);
+        return frame(datagram.array());
+    }
+
+    private static byte[] readFrame(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[4];
+        data.readFully(header);
+        assertEquals(Main.HEADER_PREFIX[0], header[0]);
+        assertEquals(Main.HEADER_PREFIX[1], header[1]);
+        byte[] datagram = new byte[ByteBuffer.wrap(header, 2, 2).getShort() & 0xFFFF];
+        data.readFully(datagram);
+        return datagram;
+    }
+
+    private static void assertToken(InputStream in) throws IOException {
+        byte[] datagram = readFrame(in);
+        assertEquals(0x01, datagram[0]);
+        assertEquals(TOKEN, new String(datagram, 1, datagram.length - 1, StandardCharsets.US_ASCII));
+    }
+
+    private String nextPayload() throws InterruptedException {
+        return payloads.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    void streamsOnceTheHandshakeCompleted() throws Exception {
+        start("TLSv1.2");
+        StreamingEngine.Session session = open("TLSv1.2");
+        try (SSLSocket node = accept()) {
+            node.getOutputStream().write(payloadFrame("sub00001", "first"));
+            assertEquals("sub00001:first", nextPayload());
+
+            session.write(ByteBuffer.wrap(payloadFrame("sub00002", "reply")));
+            assertArrayEquals(payloadFrame("sub00002", "reply"), frame(readFrame(node.getInputStream())));
+        }
+    }
+
+    @Test
+    void decryptsRecordsThatDidNotFitTheReadBuffer() throws Exception {
+        start("TLSv1.2");
+        open("TLSv1.2");
+        try (SSLSocket node = accept()) {
+            // Many times the read buffer in one write, so records queue up undecrypted
+            ByteArrayOutputStream burst = new ByteArrayOutputStream();
+            String payload = "x".repeat(1000);
+            int count = 1000;
+            for (int i = 0; i < count; i++) {
+                burst.write(payloadFrame(String.format("sub%05d", i), payload));
+            }
+            node.getOutputStream().write(burst.toByteArray());
+
+            for (int i = 0; i < count; i++) {
+                assertEquals(String.format("sub%05d", i) + ":" + payload, nextPayload());
+            }
+        }
+    }
+
+    @Test
+    void keepsTheFramesOfOtherThreadsInOrderAcrossAKeyUpdate() throws Exception {
+        start("TLSv1.3");
+        StreamingEngine.Session session = open("TLSv1.3");
+        try (SSLSocket node = accept()) {
+            int writers = 4;
+            int framesPerWriter = 2000;
+            List<Thread> threads = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                String identifier = "writer0" + w;
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        for (int i = 0; i < framesPerWriter; i++) {
+                            session.write(ByteBuffer.wrap(payloadFrame(identifier, Integer.toString(i))));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+
+            int[] next = new int[writers];
+            for (int i = 0; i < writers * framesPerWriter; i++) {
+                if (i == framesPerWriter) {
+                    // Asks the session for a key update, answered by the loop while the writers go on
+                    node.startHandshake();
+                    node.getOutputStream().write(payloadFrame("sub00001", "update"));
+                }
+                byte[] datagram = readFrame(node.getInputStream());
+                int writer = datagram[8] - '0';
+                assertEquals(Integer.toString(next[writer]++),
+                    new String(datagram, 18, datagram.length - 18, StandardCharsets.US_ASCII));
+            }
+            for (Thread thread : threads) {
+                thread.join(TIMEOUT_MILLIS);
+            }
+            assertEquals("sub00001:update", nextPayload());
+        }
+    }
+
+    @Test
+    void endsTheStreamWhenClosedFromAnotherThread() throws Exception {
+        start("TLSv1.2");
+        StreamingEngine.Session session = open("TLSv1.2");
+        try (SSLSocket node = accept()) {
+            session.close();
+            session.awaitClose();
+
+            assertEquals(-1, node.getInputStream().read());
+        }
+    }
+
+    @Test
+    void failsWhenTheNodeDisconnects() throws Exception {
+        start("TLSv1.2");
+        StreamingEngine.Session session = open("TLSv1.2");
+        try (SSLSocket node = accept()) {
+            node.getOutputStream().write(payloadFrame("sub00001", "last"));
+            assertEquals("sub00001:last", nextPayload());
+        }
+
+        IOException e = assertThrows(IOException.class, session::awaitClose);
+        assertEquals("Socket disconnected", e.getMessage());
+    }
+}
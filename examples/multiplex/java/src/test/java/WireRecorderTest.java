@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WireRecorderTest {
+    @TempDir
+    Path directory;
+
+    private final List<String> received = new ArrayList<>();
+    private final Main.PayloadViewCallback callback = view -> received.add(view.identifier() + ":"
+        + new String(view.payloadBytes(), StandardCharsets.US_ASCII) + "@" + view.originTimestamp());
+
+    private static void recordPayload(WireRecorder recorder, String identifier, String value, long originTimestamp,
+            long receiveNanoTime) {
+        ByteBuffer frame = ByteBuffer.allocate(DatagramCodec.MAX_FRAME_SIZE);
+        byte[] payload = value.getBytes(StandardCharsets.US_ASCII);
+        DatagramCodec.encodePayloadWithIdentifier(frame, identifier, (byte) 0x01, originTimestamp, payload, 0,
+            payload.length);
+        recorder.record(frame, 0, frame.position(), receiveNanoTime);
+    }
+
+    @Test
+    void replaysRecordedPayloadsAndSkipsTimestampRequests() throws Exception {
+        long start = Main.currentTimestamp();
+        try (WireRecorder recorder = new WireRecorder(directory, "session", WireRecorder.DEFAULT_SEGMENT_SIZE, 2)) {
+            long now = System.nanoTime();
+            recordPayload(recorder, "sub00001", "a", 11, now);
+            ByteBuffer request = ByteBuffer.allocate(DatagramCodec.MAX_FRAME_SIZE);
+            DatagramCodec.encodeTimestampRequest(request, 12);
+            recorder.record(request, 0, request.position(), now + 1000);
+            recordPayload(recorder, "sub00002", "b", 13, now + 2000);
+        }
+
+        WireReplayer replayer = new WireReplayer(directory, "session");
+        CapturingConnection connection = new CapturingConnection();
+        WireReplayer.Report report = replayer.replay(connection, callback, 0, "test");
+        connection.flush();
+
+        assertEquals(List.of("sub00001:a@11", "sub00002:b@13"), received);
+        assertEquals(2, report.frames());
+        assertEquals(1, report.skipped());
+        assertEquals(2000, report.recordedNanos());
+        // The timestamp request was not answered on the connection
+        assertTrue(connection.datagrams().isEmpty());
+        assertTrue(replayer.startTimestamp() >= start && replayer.startTimestamp() <= Main.currentTimestamp());
+    }
+
+    @Test
+    void replaysAcrossSegmentsInOrder() throws Exception {
+        // Two 30000 byte payloads fit one segment of the minimum size
+        String large = "x".repeat(30_000);
+        int segmentSize = WireRecorder.SEGMENT_HEADER_SIZE + WireRecorder.RECORD_HEADER_SIZE + DatagramCodec.MAX_FRAME_SIZE;
+        WireRecorder recorder = new WireRecorder(directory, "session", segmentSize, 4);
+        try {
+            for (int i = 0; i < 6; i++) {
+                recordPayload(recorder, "sub00001", i + large, i, System.nanoTime());
+                // The next segment is prepared in the background; give it time to be ready
+                Thread.sleep(50);
+            }
+        } finally {
+            recorder.close();
+        }
+        assertTrue(recorder.toString().contains("recorded=6") && recorder.toString().contains("dropped=0"),
+            recorder.toString());
+
+        WireReplayer.Report report = new WireReplayer(directory, "session").replay(new CapturingConnection(), callback,
+            0, "test");
+
+        assertEquals(6, report.frames());
+        for (int i = 0; i < 6; i++) {
+            assertEquals("sub00001:" + i + large + "@" + i, received.get(i));
+        }
+    }
+
+    @Test
+    void dropsFramesOnceAllSegmentsAreFull() throws Exception {
+        String large = "x".repeat(30_000);
+        int segmentSize = WireRecorder.SEGMENT_HEADER_SIZE + WireRecorder.RECORD_HEADER_SIZE + DatagramCodec.MAX_FRAME_SIZE;
+        try (WireRecorder recorder = new WireRecorder(directory, "session", segmentSize, 1)) {
+            for (int i = 0; i < 3; i++) {
+                recordPayload(recorder, "sub00001", i + large, i, System.nanoTime());
+            }
+            assertTrue(recorder.toString().startsWith("recorded=2, "), recorder.toString());
+            assertTrue(recorder.toString().contains("dropped=1"), recorder.toString());
+        }
+
+        new WireReplayer(directory, "session").replay(new CapturingConnection(), callback, 0, "test");
+
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    void replaysAtTheRecordedPace() throws Exception {
+        long gapNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        try (WireRecorder recorder = new WireRecorder(directory, "session", WireRecorder.DEFAULT_SEGMENT_SIZE, 2)) {
+            long now = System.nanoTime();
+            recordPayload(recorder, "sub00001", "a", 1, now);
+            recordPayload(recorder, "sub00001", "b", 2, now + gapNanos);
+        }
+
+        WireReplayer.Report report = new WireReplayer(directory, "session").replay(new CapturingConnection(), callback,
+            1, "test");
+
+        assertEquals(2, received.size());
+        assertEquals(gapNanos, report.recordedNanos());
+        assertTrue(report.elapsedNanos() >= gapNanos, report.toString());
+    }
+
+    @Test
+    void rejectsAMissingRecording() {
+        assertThrows(IOException.class, () -> new WireReplayer(directory, "missing"));
+    }
+}